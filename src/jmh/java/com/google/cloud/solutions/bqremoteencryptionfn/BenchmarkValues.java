@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/** Generates the input values of the benchmarks for a value length distribution. */
+public final class BenchmarkValues {
+
+  private BenchmarkValues() {}
+
+  /**
+   * Returns {@code count} printable ASCII values, the same for a given seed.
+   *
+   * @param lengthDistribution a fixed number of characters, {@code mixed} for 8 to 4096 characters
+   *     uniformly, or {@code skewed} for 90% of 8 to 64 characters and 10% of 1k to 16k characters
+   */
+  public static ImmutableList<String> randomValues(
+      int count, String lengthDistribution, long seed) {
+    var random = new Random(seed);
+    return IntStream.range(0, count)
+        .mapToObj(i -> randomString(random, lengthFor(random, lengthDistribution)))
+        .collect(toImmutableList());
+  }
+
+  /** Returns the values as the single argument calls of a BigQuery request. */
+  public static ImmutableList<List<Object>> asCalls(List<String> values) {
+    return values.stream().map(value -> List.<Object>of(value)).collect(toImmutableList());
+  }
+
+  private static int lengthFor(Random random, String lengthDistribution) {
+    return switch (lengthDistribution) {
+      case "mixed" -> 8 + random.nextInt(4089);
+      case "skewed" ->
+          random.nextInt(10) == 0 ? 1024 + random.nextInt(15361) : 8 + random.nextInt(57);
+      default -> Integer.parseInt(lengthDistribution);
+    };
+  }
+
+  private static String randomString(Random random, int length) {
+    var chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) (' ' + random.nextInt(95));
+    }
+    return new String(chars);
+  }
+}
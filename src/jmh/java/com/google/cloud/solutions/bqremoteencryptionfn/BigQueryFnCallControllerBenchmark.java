@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.Base64Fn.Base64TransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.IdentityFn.IdentityTransformFnFactory;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.Strictness;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full BigQuery call through the {@link BigQueryFnCallController}: parsing the request
+ * JSON, transforming the values and writing the response JSON, with the Gson settings of {@code
+ * application.properties}. The {@code identity} algo measures the request handling alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BigQueryFnCallControllerBenchmark {
+
+  @Param({"identity", "base64"})
+  public String algo;
+
+  @Param({"100", "1000", "10000"})
+  public int rowCount;
+
+  /** See {@link BenchmarkValues#randomValues}. */
+  @Param({"16", "256", "mixed", "skewed"})
+  public String valueLength;
+
+  private Gson gson;
+  private BigQueryFnCallController controller;
+  private String requestJson;
+
+  @Setup
+  public void setUp() {
+    gson = new GsonBuilder().setStrictness(Strictness.LENIENT).create();
+    controller =
+        new BigQueryFnCallController(
+            List.of(new IdentityTransformFnFactory(), new Base64TransformFnFactory()),
+            new TransformMetrics(new SimpleMeterRegistry()),
+            ObservationRegistry.NOOP);
+
+    requestJson =
+        gson.toJson(
+            new BigQueryRemoteFnRequest(
+                "benchmark-request",
+                "//bigquery.googleapis.com/projects/benchmark/jobs/job",
+                "benchmark@example.com",
+                Map.of(BigQueryFnCallController.TRANSFORM_ALGO_KEY, algo),
+                BenchmarkValues.asCalls(
+                    BenchmarkValues.randomValues(rowCount, valueLength, 42))));
+  }
+
+  @Benchmark
+  public String processRequest() {
+    var request = gson.fromJson(requestJson, BigQueryRemoteFnRequest.class);
+    var response = controller.process(request).join().getBody();
+    return gson.toJson(response);
+  }
+}
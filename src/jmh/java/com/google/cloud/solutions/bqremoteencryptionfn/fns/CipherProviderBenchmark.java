@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BenchmarkValues;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesFn.AesKeyType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link AesFn} throughput of the JCA providers selectable with {@code
+ * AES_CIPHER_PROVIDER}, to help choose the fastest provider for a host.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherProviderBenchmark {
+
+  private static final String AES_KEY = "2lDNBd0hHgCZ+1/P+fWO+g==";
+  private static final String AES_IV = "/t2/6YFewDgoHeQM1QBZdw==";
+
+  /** The JCA provider name, {@code default} for {@link CipherProviders#DEFAULT_PROVIDER_NAME}. */
+  @Param({"default", CipherProviders.CONSCRYPT_PROVIDER_NAME})
+  public String provider;
+
+  @Param({"AES/CBC/PKCS5PADDING", "AES/ECB/PKCS5PADDING"})
+  public String cipherType;
+
+  @Param({"1000"})
+  public int rowCount;
+
+  /** See {@link BenchmarkValues#randomValues}. */
+  @Param({"256"})
+  public String valueLength;
+
+  private AesFn aesFn;
+  private List<String> rows;
+  private List<String> tokens;
+
+  @Setup
+  public void setUp() throws Exception {
+    aesFn =
+        new AesFn(
+            Map.of(AesFn.DEFAULT_KEY_ID, AES_KEY),
+            AesFn.DEFAULT_KEY_ID,
+            AesKeyType.BASE64_KEY,
+            cipherType,
+            AES_IV,
+            provider.equals("default") ? CipherProviders.DEFAULT_PROVIDER_NAME : provider,
+            AesTokenCodec.defaultCodec());
+
+    rows = BenchmarkValues.randomValues(rowCount, valueLength, 42);
+    tokens = aesFn.deidentifyUnaryRow(rows);
+  }
+
+  @Benchmark
+  public List<String> encrypt() throws Exception {
+    return aesFn.deidentifyUnaryRow(rows);
+  }
+
+  @Benchmark
+  public List<String> decrypt() throws Exception {
+    return aesFn.reidentifyUnaryRow(tokens);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BenchmarkValues;
+import com.google.cloud.solutions.bqremoteencryptionfn.TransformFn;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesFn.AesKeyType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a deidentify or reidentify call of the local functions, including the extraction of
+ * the argument from the BigQuery calls. The {@code identity} function measures the argument
+ * extraction of {@link UnaryStringArgFn} alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformFnBenchmark {
+
+  private static final String AES_KEY = "2lDNBd0hHgCZ+1/P+fWO+g==";
+  private static final String AES_IV = "/t2/6YFewDgoHeQM1QBZdw==";
+
+  @Param({"identity", "base64", "aes"})
+  public String fnName;
+
+  @Param({"100", "1000", "10000"})
+  public int rowCount;
+
+  /** See {@link BenchmarkValues#randomValues}. */
+  @Param({"16", "256", "mixed", "skewed"})
+  public String valueLength;
+
+  private TransformFn transformFn;
+  private List<List<Object>> calls;
+  private List<List<Object>> deidentifiedCalls;
+
+  @Setup
+  public void setUp() throws Exception {
+    transformFn =
+        switch (fnName) {
+          case "identity" -> new IdentityFn();
+          case "base64" -> new Base64Fn();
+          case "aes" -> new AesFn(AES_KEY, AesKeyType.BASE64_KEY, "AES/CBC/PKCS5PADDING", AES_IV);
+          default -> throw new IllegalArgumentException("Unknown fn: " + fnName);
+        };
+
+    calls = BenchmarkValues.asCalls(BenchmarkValues.randomValues(rowCount, valueLength, 42));
+    deidentifiedCalls = BenchmarkValues.asCalls(transformFn.deidentify(calls));
+  }
+
+  @Benchmark
+  public List<String> deidentify() throws Exception {
+    return transformFn.deidentify(calls);
+  }
+
+  @Benchmark
+  public List<String> reidentify() throws Exception {
+    return transformFn.reidentify(deidentifiedCalls);
+  }
+}
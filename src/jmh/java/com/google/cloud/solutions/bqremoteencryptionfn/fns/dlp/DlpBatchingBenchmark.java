@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BenchmarkValues;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpRequestBatchExecutor.PackedTable;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.CryptoDeterministicConfig;
+import com.google.privacy.dlp.v2.CryptoKey;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.UnwrappedCryptoKey;
+import com.google.protobuf.ByteString;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the local work of a DLP call: packing the values into request tables, building the
+ * reidentify requests and reading the values back from the response tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DlpBatchingBenchmark {
+
+  private static final String COLUMN_NAME = "bqfnvalue";
+
+  @Param({"1000", "10000", "50000"})
+  public int rowCount;
+
+  /** See {@link BenchmarkValues#randomValues}. */
+  @Param({"16", "256", "mixed", "skewed"})
+  public String valueLength;
+
+  private List<String> values;
+  private Function<List<String>, List<PackedTable>> rowsToTableFn;
+  private Function<Table, List<String>> tableToRowsFn;
+  private List<PackedTable> packedTables;
+  private DlpReIdRequestMaker reidRequestMaker;
+
+  @Setup
+  public void setUp() {
+    values = BenchmarkValues.randomValues(rowCount, valueLength, 42);
+
+    var executor =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName(COLUMN_NAME)
+            .setRequestCellCount(1600)
+            .build();
+
+    rowsToTableFn = executor.rowsToTableFn();
+    tableToRowsFn = executor.tableToRowsFn();
+    packedTables = rowsToTableFn.apply(values);
+    reidRequestMaker = DlpReIdRequestMaker.forConfig(cryptoDeterministicConfig()).precompute();
+  }
+
+  @Benchmark
+  public List<PackedTable> rowsToTables() {
+    return rowsToTableFn.apply(values);
+  }
+
+  @Benchmark
+  public int tablesToRows() {
+    var valuesCount = 0;
+    for (var packedTable : packedTables) {
+      valuesCount += tableToRowsFn.apply(packedTable.table()).size();
+    }
+    return valuesCount;
+  }
+
+  @Benchmark
+  public int reidMakeRequests() {
+    var requestRows = 0;
+    for (var packedTable : packedTables) {
+      var request =
+          reidRequestMaker.makeRequest(ContentItem.newBuilder().setTable(packedTable.table()));
+      requestRows += request.getItem().getTable().getRowsCount();
+    }
+    return requestRows;
+  }
+
+  private static DeidentifyConfig cryptoDeterministicConfig() {
+    return DeidentifyConfig.newBuilder()
+        .setRecordTransformations(
+            RecordTransformations.newBuilder()
+                .addFieldTransformations(
+                    FieldTransformation.newBuilder()
+                        .addFields(FieldId.newBuilder().setName(COLUMN_NAME))
+                        .setPrimitiveTransformation(
+                            PrimitiveTransformation.newBuilder()
+                                .setCryptoDeterministicConfig(
+                                    CryptoDeterministicConfig.newBuilder()
+                                        .setCryptoKey(
+                                            CryptoKey.newBuilder()
+                                                .setUnwrapped(
+                                                    UnwrappedCryptoKey.newBuilder()
+                                                        .setKey(ByteString.copyFrom(new byte[32]))))
+                                        .setSurrogateInfoType(
+                                            InfoType.newBuilder().setName("BQ_TOK"))))))
+        .build();
+  }
+}
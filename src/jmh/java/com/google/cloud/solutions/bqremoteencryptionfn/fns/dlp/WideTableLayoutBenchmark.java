@@ -0,0 +1,222 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.dlp.v2.stub.DlpServiceStub;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the single column and the wide table layouts, reporting the time to de-identify 1k
+ * values and the request bytes per value.
+ *
+ * <p>DLP is simulated by an in-process stub that echoes the table after a fixed latency per request
+ * and a cost per table row, modelling the per-row overhead of DLP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WideTableLayoutBenchmark {
+
+  private static final int VALUES_COUNT = 1000;
+
+  @Param({"1", "4", "16"})
+  public int rowWidth;
+
+  @Param({"8", "32"})
+  public int valueLength;
+
+  /** Simulated latency of each DLP request. */
+  @Param({"0", "20"})
+  public int dlpLatencyMillis;
+
+  /** Simulated DLP processing cost of each table row. */
+  @Param({"0", "20"})
+  public int dlpRowMicros;
+
+  private List<String> values;
+  private EchoDlpStub dlpStub;
+  private DlpRequestBatchExecutor<DeidentifyContentRequest, DeidentifyContentResponse> executor;
+
+  @Setup
+  public void setUp() {
+    var random = new Random(42);
+    values =
+        IntStream.range(0, VALUES_COUNT)
+            .mapToObj(i -> randomValue(random, valueLength))
+            .collect(toImmutableList());
+
+    dlpStub = new EchoDlpStub(dlpLatencyMillis, dlpRowMicros);
+    executor =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("bqfnvalue")
+            .setRequestCellCount(400)
+            .setRowWidth(rowWidth)
+            .setDlpClientFactory(() -> DlpServiceClient.create(dlpStub))
+            .setDlpCallFnFactory(dlpClient -> dlpClient::deidentifyContent)
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setParent("projects/benchmark-project")
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(request -> request.getItem().getTable())
+            .setDlpResponseToTableFn(response -> response.getItem().getTable())
+            .build();
+  }
+
+  @Benchmark
+  public List<String> deidentify_1kValues(RequestCounters counters) throws Exception {
+    var requestBytes = dlpStub.requestBytes.get();
+    var result = executor.process(values);
+
+    counters.requestBytes += dlpStub.requestBytes.get() - requestBytes;
+    counters.values += VALUES_COUNT;
+    return result;
+  }
+
+  private static String randomValue(Random random, int length) {
+    var value = new StringBuilder(length);
+    random.ints(length, 'a', 'z' + 1).forEach(value::appendCodePoint);
+    return value.toString();
+  }
+
+  /** Request bytes sent to the stub, reported next to the timing results. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class RequestCounters {
+    public long requestBytes;
+    public long values;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      requestBytes = 0;
+      values = 0;
+    }
+
+    public double bytesPerValue() {
+      return values == 0 ? 0 : (double) requestBytes / values;
+    }
+  }
+
+  /** Answers DeidentifyContent requests with the request's table. */
+  private static final class EchoDlpStub extends DlpServiceStub {
+
+    private final int latencyMillis;
+    private final int rowMicros;
+    private final AtomicLong requestBytes = new AtomicLong();
+    private boolean shutdown;
+
+    private EchoDlpStub(int latencyMillis, int rowMicros) {
+      this.latencyMillis = latencyMillis;
+      this.rowMicros = rowMicros;
+    }
+
+    @Override
+    public UnaryCallable<DeidentifyContentRequest, DeidentifyContentResponse>
+        deidentifyContentCallable() {
+      return new UnaryCallable<>() {
+        @Override
+        public ApiFuture<DeidentifyContentResponse> futureCall(
+            DeidentifyContentRequest request, ApiCallContext context) {
+          return ApiFutures.immediateFuture(deidentify(request));
+        }
+      };
+    }
+
+    private DeidentifyContentResponse deidentify(DeidentifyContentRequest request) {
+      requestBytes.addAndGet(request.getSerializedSize());
+
+      var table = request.getItem().getTable();
+      var delayNanos =
+          TimeUnit.MILLISECONDS.toNanos(latencyMillis)
+              + TimeUnit.MICROSECONDS.toNanos((long) rowMicros * table.getRowsCount());
+
+      if (delayNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(delayNanos);
+        } catch (InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      return DeidentifyContentResponse.newBuilder()
+          .setItem(ContentItem.newBuilder().setTable(table))
+          .build();
+    }
+
+    @Override
+    public void close() {
+      shutdown = true;
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public void shutdownNow() {
+      shutdown = true;
+    }
+
+    @Override
+    public boolean awaitTermination(long duration, TimeUnit unit) {
+      return shutdown;
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.localmask;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.dlp.v2.stub.DlpServiceStub;
+import com.google.cloud.solutions.bqremoteencryptionfn.TransformFn;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpTransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.localmask.LocalMaskFn.LocalMaskTransformFnFactory;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Table.Row;
+import com.google.privacy.dlp.v2.Value;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Compares {@link LocalMaskFn} against {@link DlpFn} masking emails and phone numbers, the
+ * info-types of {@code sample_dlp_deid_config.json}.
+ *
+ * <p>The DLP path uses an in-process stub that masks with the same detectors after a simulated
+ * round-trip latency, so the results include the batching and request building overhead but not
+ * DLP's inspection cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalMaskFnBenchmark {
+
+  private static final String TEMPLATE_NAME =
+      "projects/benchmark-project/locations/global/deidentifyTemplates/email-phone";
+
+  private static final List<String> SAMPLE_TEXTS =
+      List.of(
+          "My email is %s and phone is 555-%03d-1234.",
+          "Reach out at %s",
+          "Order %s shipped to customer %d",
+          "No contact details in this comment %s %d");
+
+  @Param({"1000", "10000"})
+  public int rowCount;
+
+  /** Simulated latency of each DLP sub-request. */
+  @Param({"0", "50"})
+  public int dlpLatencyMillis;
+
+  private List<List<Object>> calls;
+  private TransformFn localMaskFn;
+  private TransformFn dlpFn;
+
+  @Setup
+  public void setUp() throws Exception {
+    var random = new Random(42);
+
+    calls =
+        IntStream.range(0, rowCount)
+            .mapToObj(
+                i ->
+                    List.<Object>of(
+                        String.format(
+                            SAMPLE_TEXTS.get(random.nextInt(SAMPLE_TEXTS.size())),
+                            "user" + i + "@example.com",
+                            random.nextInt(1000))))
+            .collect(toImmutableList());
+
+    var detectorConfig =
+        DetectorConfig.fromResource(new ClassPathResource("localmask_detectors.json"))
+            .select(List.of("EMAIL_ADDRESS", "PHONE_NUMBER"));
+
+    localMaskFn = new LocalMaskTransformFnFactory(detectorConfig, 2000).createFn(Map.of());
+
+    var detectors = CompiledDetectors.compile(detectorConfig);
+    dlpFn =
+        new DlpTransformFnFactory(
+                "bqfnvalue",
+                1600,
+                500000,
+                /* localEngineEnabled= */ false,
+                () -> DlpServiceClient.create(new MaskingDlpStub(detectors, dlpLatencyMillis)))
+            .createFn(Map.of("dlp-deid-template", TEMPLATE_NAME));
+  }
+
+  @Benchmark
+  public List<String> deidentify_localMask() throws Exception {
+    return localMaskFn.deidentify(calls);
+  }
+
+  @Benchmark
+  public List<String> deidentify_dlp() throws Exception {
+    return dlpFn.deidentify(calls);
+  }
+
+  /** Answers DeidentifyContent requests by masking the table using the local detectors. */
+  private static final class MaskingDlpStub extends DlpServiceStub {
+
+    private final CompiledDetectors detectors;
+    private final int latencyMillis;
+    private boolean shutdown;
+
+    private MaskingDlpStub(CompiledDetectors detectors, int latencyMillis) {
+      this.detectors = detectors;
+      this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public UnaryCallable<DeidentifyContentRequest, DeidentifyContentResponse>
+        deidentifyContentCallable() {
+      return new UnaryCallable<>() {
+        @Override
+        public ApiFuture<DeidentifyContentResponse> futureCall(
+            DeidentifyContentRequest request, ApiCallContext context) {
+          return ApiFutures.immediateFuture(deidentify(request));
+        }
+      };
+    }
+
+    private DeidentifyContentResponse deidentify(DeidentifyContentRequest request) {
+      if (latencyMillis > 0) {
+        try {
+          Thread.sleep(latencyMillis);
+        } catch (InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      var table = request.getItem().getTable();
+      var responseTable = Table.newBuilder().addAllHeaders(table.getHeadersList());
+
+      for (var row : table.getRowsList()) {
+        var masked = detectors.apply(row.getValues(0).getStringValue());
+        responseTable.addRows(
+            Row.newBuilder().addValues(Value.newBuilder().setStringValue(masked)));
+      }
+
+      return DeidentifyContentResponse.newBuilder()
+          .setItem(ContentItem.newBuilder().setTable(responseTable))
+          .build();
+    }
+
+    @Override
+    public void close() {
+      shutdown = true;
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public void shutdownNow() {
+      shutdown = true;
+    }
+
+    @Override
+    public boolean awaitTermination(long duration, TimeUnit unit) {
+      return shutdown;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.loadtest;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryFnCallController;
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryRemoteFnRequest;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Creates the JSON bodies of BigQuery remote function calls, with random printable ASCII values.
+ *
+ * <p>Value lengths are a fixed number of characters, {@code mixed} for 8 to 4096 characters
+ * uniformly, or {@code skewed} for 90% of 8 to 64 characters and 10% of 1k to 16k characters.
+ */
+final class CallGenerator {
+
+  /** DLP template of the calls using the {@code dlp} algo, answered by the DLP stand-in. */
+  static final String DLP_TEMPLATE =
+      "projects/loadtest-project/locations/global/deidentifyTemplates/loadtest";
+
+  /** Number of distinct calls of each algo, sent in turn. */
+  private static final int CALLS_PER_ALGO = 16;
+
+  private final Gson gson = new Gson();
+  private final Random random;
+  private final int rowsPerCall;
+  private final String valueLength;
+
+  CallGenerator(int rowsPerCall, String valueLength, long seed) {
+    this.random = new Random(seed);
+    this.rowsPerCall = rowsPerCall;
+    this.valueLength = valueLength;
+  }
+
+  /** Returns the calls of each algo, interleaved so that consecutive calls use different algos. */
+  ImmutableList<Call> generate(List<String> algos) {
+    return IntStream.range(0, CALLS_PER_ALGO)
+        .boxed()
+        .flatMap(index -> algos.stream().map(algo -> newCall(algo, index)))
+        .collect(toImmutableList());
+  }
+
+  private Call newCall(String algo, int index) {
+    var calls =
+        IntStream.range(0, rowsPerCall)
+            .mapToObj(row -> List.<Object>of(randomValue()))
+            .collect(toImmutableList());
+
+    var request =
+        new BigQueryRemoteFnRequest(
+            "loadtest-" + algo + "-" + index,
+            "//bigquery.googleapis.com/projects/loadtest-project/jobs/loadtest",
+            "loadtest@example.com",
+            userDefinedContext(algo),
+            calls);
+
+    return new Call(algo, rowsPerCall, gson.toJson(request));
+  }
+
+  private static ImmutableMap<String, String> userDefinedContext(String algo) {
+    var context =
+        ImmutableMap.<String, String>builder()
+            .put(BigQueryFnCallController.CALL_MODE_KEY, "deidentify")
+            .put(BigQueryFnCallController.TRANSFORM_ALGO_KEY, algo);
+
+    if (algo.equals(DlpFn.FN_NAME)) {
+      context.put("dlp-deid-template", DLP_TEMPLATE);
+    }
+
+    return context.buildOrThrow();
+  }
+
+  private String randomValue() {
+    var length =
+        switch (valueLength) {
+          case "mixed" -> 8 + random.nextInt(4089);
+          case "skewed" ->
+              random.nextInt(10) == 0 ? 1024 + random.nextInt(15361) : 8 + random.nextInt(57);
+          default -> Integer.parseInt(valueLength);
+        };
+
+    var chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) (' ' + random.nextInt(95));
+    }
+    return new String(chars);
+  }
+
+  /** The JSON body of a call along with its algo and number of rows. */
+  record Call(String algo, int rows, String json) {}
+}
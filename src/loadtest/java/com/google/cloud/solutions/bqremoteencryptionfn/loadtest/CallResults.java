@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.loadtest;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Collects the latency and outcome of the calls of each algo, and formats the report. */
+final class CallResults {
+
+  /** Outcome of a call as seen by BigQuery. */
+  enum Outcome {
+    /** HTTP 200 with a reply for each row. */
+    SUCCESS,
+    /** HTTP 200 with an error message, failing the query. */
+    ERROR_REPLY,
+    /** HTTP 503, retried by BigQuery. */
+    RETRYABLE,
+    /** Any other HTTP status. */
+    HTTP_ERROR,
+    /** No response, e.g. a timeout or a connection error. */
+    FAILURE
+  }
+
+  private final Map<String, AlgoResults> algoResults = new TreeMap<>();
+
+  synchronized void record(String algo, int rows, Outcome outcome, long latencyNanos) {
+    algoResults.computeIfAbsent(algo, unused -> new AlgoResults()).add(rows, outcome, latencyNanos);
+  }
+
+  /** Returns the report of the calls recorded over the measured duration. */
+  synchronized String report(Duration duration) {
+    var seconds = duration.toNanos() / 1e9;
+    var report = new StringBuilder();
+    report.append(
+        String.format(
+            "%-10s %8s %10s %12s %9s %9s %9s %8s  %s%n",
+            "algo",
+            "calls",
+            "calls/s",
+            "rows/s",
+            "p50 ms",
+            "p95 ms",
+            "p99 ms",
+            "errors",
+            "outcomes"));
+
+    algoResults.forEach(
+        (algo, results) -> {
+          var latencies = results.sortedLatencies();
+          var errors = results.calls - results.outcomes.getOrDefault(Outcome.SUCCESS, 0L);
+
+          report.append(
+              String.format(
+                  "%-10s %8d %10.1f %12.0f %9.1f %9.1f %9.1f %7.2f%%  %s%n",
+                  algo,
+                  results.calls,
+                  results.calls / seconds,
+                  results.rows / seconds,
+                  percentileMillis(latencies, 0.50),
+                  percentileMillis(latencies, 0.95),
+                  percentileMillis(latencies, 0.99),
+                  results.calls == 0 ? 0 : 100.0 * errors / results.calls,
+                  results.outcomes));
+        });
+
+    return report.toString();
+  }
+
+  private static double percentileMillis(long[] sortedLatencies, double percentile) {
+    if (sortedLatencies.length == 0) {
+      return 0;
+    }
+
+    var index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(index, 0)] / 1e6;
+  }
+
+  private static final class AlgoResults {
+    private final EnumMap<Outcome, Long> outcomes = new EnumMap<>(Outcome.class);
+    private long[] latencies = new long[1024];
+    private int calls;
+    private long rows;
+
+    private void add(int callRows, Outcome outcome, long latencyNanos) {
+      if (calls == latencies.length) {
+        latencies = Arrays.copyOf(latencies, calls * 2);
+      }
+
+      latencies[calls++] = latencyNanos;
+      outcomes.merge(outcome, 1L, Long::sum);
+
+      if (outcome == Outcome.SUCCESS) {
+        rows += callRows;
+      }
+    }
+
+    private long[] sortedLatencies() {
+      var sorted = Arrays.copyOf(latencies, calls);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+}
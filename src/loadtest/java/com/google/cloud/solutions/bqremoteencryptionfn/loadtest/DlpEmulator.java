@@ -0,0 +1,340 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.dlp.v2.DlpServiceSettings;
+import com.google.common.flogger.GoogleLogger;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.DeidentifyTemplate;
+import com.google.privacy.dlp.v2.DlpServiceGrpc;
+import com.google.privacy.dlp.v2.GetDeidentifyTemplateRequest;
+import com.google.privacy.dlp.v2.ReidentifyContentRequest;
+import com.google.privacy.dlp.v2.ReidentifyContentResponse;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Value;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import javax.annotation.Nullable;
+
+/**
+ * A local DLP server, reached through the real {@link DlpServiceClient} over gRPC, for benchmarking
+ * the batching and concurrency of the DLP functions end-to-end.
+ *
+ * <p>Implements {@code DeidentifyContent} and {@code ReidentifyContent} for table items, replacing
+ * each string value {@code v} with {@code EMU:base64(v)} and back, and {@code
+ * GetDeidentifyTemplate}, answering with an empty template of the requested name.
+ *
+ * <p>Each reply is delayed by a log-normal latency, and the {@link Settings} inject request size
+ * rejections and quota errors as DLP reports them.
+ *
+ * <pre>{@code
+ * ./gradlew dlpEmulator -PdlpEmulator.port=9090 -PdlpEmulator.maxRows=500
+ * }</pre>
+ */
+public final class DlpEmulator implements AutoCloseable {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  static final String SURROGATE_PREFIX = "EMU:";
+
+  /**
+   * Latency and faults of the emulator.
+   *
+   * @param medianLatency median delay of the replies
+   * @param p99Latency 99th percentile delay of the replies, the median for a fixed delay
+   * @param maxRows table rows above which requests fail with "Retry with a smaller request", 0 for
+   *     no limit
+   * @param maxBytes request bytes above which requests fail, 0 for no limit
+   * @param requestsPerSecond requests accepted each second, others failing with a quota error, 0
+   *     for no limit
+   * @param quotaErrorRate fraction of the requests failing with a quota error
+   */
+  public record Settings(
+      Duration medianLatency,
+      Duration p99Latency,
+      int maxRows,
+      int maxBytes,
+      int requestsPerSecond,
+      double quotaErrorRate) {
+
+    /** Reads the settings from the {@code dlpEmulator.*} system properties. */
+    public static Settings fromSystemProperties() {
+      var latencyMillis = Integer.getInteger("dlpEmulator.latencyMillis", 50);
+
+      return new Settings(
+          Duration.ofMillis(latencyMillis),
+          Duration.ofMillis(Integer.getInteger("dlpEmulator.p99LatencyMillis", latencyMillis)),
+          Integer.getInteger("dlpEmulator.maxRows", 0),
+          Integer.getInteger("dlpEmulator.maxBytes", 524288),
+          Integer.getInteger("dlpEmulator.requestsPerSecond", 0),
+          Double.parseDouble(System.getProperty("dlpEmulator.quotaErrorRate", "0")));
+    }
+
+    private long latencyNanos() {
+      var medianNanos = medianLatency.toNanos();
+      if (medianNanos == 0 || p99Latency.compareTo(medianLatency) <= 0) {
+        return medianNanos;
+      }
+
+      // 2.326 is the 99th percentile of the standard normal distribution.
+      var sigma = Math.log((double) p99Latency.toNanos() / medianNanos) / 2.326;
+      return (long) (medianNanos * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+  }
+
+  private final Settings settings;
+  private final Server server;
+  private final ManagedChannel channel;
+  private final ScheduledExecutorService replyScheduler;
+  private final ScheduledExecutorService clientExecutor;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong sizeRejections = new AtomicLong();
+  private final AtomicLong quotaErrors = new AtomicLong();
+
+  private long quotaSecond;
+  private int quotaSecondRequests;
+
+  private DlpEmulator(Settings settings, int port) throws IOException {
+    this.settings = settings;
+    this.replyScheduler = Executors.newScheduledThreadPool(2);
+    this.clientExecutor = Executors.newScheduledThreadPool(2);
+    this.server =
+        Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+            .addService(new EmulatedDlpService())
+            .build()
+            .start();
+    this.channel =
+        Grpc.newChannelBuilderForAddress(
+                "localhost", server.getPort(), InsecureChannelCredentials.create())
+            .build();
+  }
+
+  /** Starts the emulator on the port, or on a free port for 0. */
+  public static DlpEmulator start(Settings settings, int port) throws IOException {
+    var emulator = new DlpEmulator(settings, port);
+    logger.atInfo().log("DLP emulator listening on port %s with %s", emulator.port(), settings);
+    return emulator;
+  }
+
+  public static void main(String[] args) throws Exception {
+    try (var emulator =
+        start(Settings.fromSystemProperties(), Integer.getInteger("dlpEmulator.port", 9090))) {
+      emulator.server.awaitTermination();
+    }
+  }
+
+  public int port() {
+    return server.getPort();
+  }
+
+  /** Returns a client of the emulator, sharing the emulator's channel. */
+  public DlpServiceClient newClient() throws IOException {
+    return DlpServiceClient.create(
+        DlpServiceSettings.newBuilder()
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .setTransportChannelProvider(
+                FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+            .setBackgroundExecutorProvider(FixedExecutorProvider.create(clientExecutor))
+            .build());
+  }
+
+  /** Returns the number of requests and of injected errors so far. */
+  public String stats() {
+    return String.format(
+        "requests=%s sizeRejections=%s quotaErrors=%s",
+        requests.get(), sizeRejections.get(), quotaErrors.get());
+  }
+
+  @Override
+  public void close() {
+    channel.shutdownNow();
+    server.shutdownNow();
+    replyScheduler.shutdownNow();
+    clientExecutor.shutdownNow();
+  }
+
+  private final class EmulatedDlpService extends DlpServiceGrpc.DlpServiceImplBase {
+
+    @Override
+    public void deidentifyContent(
+        DeidentifyContentRequest request,
+        StreamObserver<DeidentifyContentResponse> responseObserver) {
+      reply(
+          request.getItem(),
+          request.getSerializedSize(),
+          responseObserver,
+          table ->
+              DeidentifyContentResponse.newBuilder()
+                  .setItem(
+                      ContentItem.newBuilder()
+                          .setTable(transform(table, DlpEmulator::deidentifyValue)))
+                  .build());
+    }
+
+    @Override
+    public void reidentifyContent(
+        ReidentifyContentRequest request,
+        StreamObserver<ReidentifyContentResponse> responseObserver) {
+      reply(
+          request.getItem(),
+          request.getSerializedSize(),
+          responseObserver,
+          table ->
+              ReidentifyContentResponse.newBuilder()
+                  .setItem(
+                      ContentItem.newBuilder()
+                          .setTable(transform(table, DlpEmulator::reidentifyValue)))
+                  .build());
+    }
+
+    @Override
+    public void getDeidentifyTemplate(
+        GetDeidentifyTemplateRequest request, StreamObserver<DeidentifyTemplate> responseObserver) {
+      responseObserver.onNext(
+          DeidentifyTemplate.newBuilder()
+              .setName(request.getName())
+              .setDeidentifyConfig(DeidentifyConfig.getDefaultInstance())
+              .build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  /** Sends the response, or the injected error, once the latency elapses. */
+  private <T> void reply(
+      ContentItem item,
+      int requestBytes,
+      StreamObserver<T> responseObserver,
+      Function<Table, T> responseFn) {
+    requests.incrementAndGet();
+    var error = injectedError(item, requestBytes);
+
+    replyScheduler.schedule(
+        () -> {
+          if (error != null) {
+            responseObserver.onError(error.asRuntimeException());
+            return;
+          }
+
+          responseObserver.onNext(responseFn.apply(item.getTable()));
+          responseObserver.onCompleted();
+        },
+        settings.latencyNanos(),
+        TimeUnit.NANOSECONDS);
+  }
+
+  @Nullable
+  private Status injectedError(ContentItem item, int requestBytes) {
+    if (!item.hasTable()) {
+      return Status.INVALID_ARGUMENT.withDescription("The emulator only supports table items.");
+    }
+
+    if (settings.maxBytes() > 0 && requestBytes > settings.maxBytes()) {
+      sizeRejections.incrementAndGet();
+      return Status.INVALID_ARGUMENT.withDescription(
+          String.format("Request payload size exceeds the limit: %s bytes.", settings.maxBytes()));
+    }
+
+    if (settings.maxRows() > 0 && item.getTable().getRowsCount() > settings.maxRows()) {
+      sizeRejections.incrementAndGet();
+      return Status.INVALID_ARGUMENT.withDescription(
+          "Too many findings to de-identify. Retry with a smaller request.");
+    }
+
+    if (isOverQuota()) {
+      quotaErrors.incrementAndGet();
+      return Status.RESOURCE_EXHAUSTED.withDescription(
+          "Quota exceeded for quota metric 'Number of requests' of service 'dlp.googleapis.com'.");
+    }
+
+    return null;
+  }
+
+  private boolean isOverQuota() {
+    if (settings.quotaErrorRate() > 0
+        && ThreadLocalRandom.current().nextDouble() < settings.quotaErrorRate()) {
+      return true;
+    }
+
+    if (settings.requestsPerSecond() <= 0) {
+      return false;
+    }
+
+    var second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    synchronized (this) {
+      if (second != quotaSecond) {
+        quotaSecond = second;
+        quotaSecondRequests = 0;
+      }
+      return ++quotaSecondRequests > settings.requestsPerSecond();
+    }
+  }
+
+  private static Table transform(Table table, UnaryOperator<String> valueFn) {
+    var transformed = Table.newBuilder().addAllHeaders(table.getHeadersList());
+
+    for (var row : table.getRowsList()) {
+      var transformedRow = transformed.addRowsBuilder();
+      for (var value : row.getValuesList()) {
+        transformedRow.addValues(
+            value.hasStringValue()
+                ? Value.newBuilder().setStringValue(valueFn.apply(value.getStringValue()))
+                : value.toBuilder());
+      }
+    }
+
+    return transformed.build();
+  }
+
+  static String deidentifyValue(String value) {
+    return SURROGATE_PREFIX + Base64.getEncoder().encodeToString(value.getBytes(UTF_8));
+  }
+
+  static String reidentifyValue(String value) {
+    if (!value.startsWith(SURROGATE_PREFIX)) {
+      return value;
+    }
+
+    return new String(
+        Base64.getDecoder().decode(value.substring(SURROGATE_PREFIX.length())), UTF_8);
+  }
+}
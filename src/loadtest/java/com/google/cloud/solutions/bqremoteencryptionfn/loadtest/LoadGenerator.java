@@ -0,0 +1,173 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.loadtest;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryRemoteFnResponse;
+import com.google.cloud.solutions.bqremoteencryptionfn.loadtest.CallGenerator.Call;
+import com.google.cloud.solutions.bqremoteencryptionfn.loadtest.CallResults.Outcome;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.GoogleLogger;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends BigQuery remote function calls to an instance from a number of concurrent workers, each
+ * sending its next call once the previous one completes as BigQuery does, and reports the
+ * throughput, latency percentiles and errors of each algo.
+ *
+ * <p>Without a {@code loadtest.target} URL, an offline instance is started in-process, sending DLP
+ * calls to a {@link DlpEmulator} configured by the {@code dlpEmulator.*} properties.
+ *
+ * <pre>{@code
+ * ./gradlew loadTest -Ploadtest.algos=base64,dlp -Ploadtest.concurrency=16 \
+ *     -PdlpEmulator.maxRows=500
+ * }</pre>
+ */
+public final class LoadGenerator {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final Duration CALL_TIMEOUT = Duration.ofMinutes(2);
+
+  private final LoadTestOptions options;
+  private final URI target;
+  private final Gson gson = new Gson();
+  private final HttpClient httpClient;
+
+  public LoadGenerator(LoadTestOptions options, URI target) {
+    this.options = options;
+    this.target = target;
+    this.httpClient =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    var options = LoadTestOptions.fromSystemProperties();
+
+    if (options.target() != null) {
+      System.out.print(new LoadGenerator(options, options.target()).run());
+      return;
+    }
+
+    try (var instance = OfflineInstance.start(options.dlpEmulator())) {
+      System.out.print(new LoadGenerator(options, instance.uri()).run());
+      System.out.println("DLP emulator: " + instance.dlpEmulator().stats());
+    }
+  }
+
+  /** Sends the calls for the warmup and the measured durations, returning the report. */
+  public String run() throws InterruptedException {
+    var calls =
+        new CallGenerator(options.rowsPerCall(), options.valueLength(), /* seed= */ 42)
+            .generate(options.algos());
+    var results = new CallResults();
+
+    var measureStartNanos = System.nanoTime() + options.warmup().toNanos();
+    var endNanos = measureStartNanos + options.duration().toNanos();
+
+    logger.atInfo().log(
+        "Sending %s calls of %s rows (%s) to %s with %s workers",
+        options.algos(),
+        options.rowsPerCall(),
+        options.valueLength(),
+        target,
+        options.concurrency());
+
+    try (var workers = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int worker = 0; worker < options.concurrency(); worker++) {
+        var firstCall = worker;
+        workers.submit(() -> sendCalls(calls, firstCall, measureStartNanos, endNanos, results));
+      }
+    }
+
+    return results.report(options.duration());
+  }
+
+  private void sendCalls(
+      ImmutableList<Call> calls,
+      int firstCall,
+      long measureStartNanos,
+      long endNanos,
+      CallResults results) {
+    for (int index = firstCall;
+        System.nanoTime() < endNanos && !Thread.currentThread().isInterrupted();
+        index++) {
+      var call = calls.get(index % calls.size());
+      var startNanos = System.nanoTime();
+      var outcome = send(call);
+
+      if (startNanos >= measureStartNanos) {
+        results.record(call.algo(), call.rows(), outcome, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  private Outcome send(Call call) {
+    var request =
+        HttpRequest.newBuilder(target)
+            .timeout(CALL_TIMEOUT)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(call.json()))
+            .build();
+
+    try {
+      var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+
+      return switch (response.statusCode()) {
+        case 200 -> replyOutcome(call, response.body());
+        case 503 -> Outcome.RETRYABLE;
+        default -> Outcome.HTTP_ERROR;
+      };
+    } catch (IOException ioException) {
+      logger.atWarning().atMostEvery(10, TimeUnit.SECONDS).withCause(ioException).log(
+          "call failed");
+      return Outcome.FAILURE;
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      return Outcome.FAILURE;
+    }
+  }
+
+  private Outcome replyOutcome(Call call, String body) {
+    try {
+      var response = gson.fromJson(body, BigQueryRemoteFnResponse.class);
+
+      if (response.errorMessage() != null) {
+        logger.atWarning().atMostEvery(10, TimeUnit.SECONDS).log(
+            "%s call failed: %s", call.algo(), response.errorMessage());
+        return Outcome.ERROR_REPLY;
+      }
+
+      return response.replies() != null && response.replies().size() == call.rows()
+          ? Outcome.SUCCESS
+          : Outcome.ERROR_REPLY;
+    } catch (JsonParseException jsonParseException) {
+      return Outcome.ERROR_REPLY;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.loadtest;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.net.URI;
+import java.time.Duration;
+import javax.annotation.Nullable;
+
+/**
+ * Settings of a load test run, read from the {@code loadtest.*} system properties.
+ *
+ * @param target URL of a running instance, or {@code null} to start an offline instance
+ * @param algos functions called in turn, e.g. {@code base64,aes,dlp}
+ * @param rowsPerCall rows of each BigQuery call
+ * @param valueLength a fixed number of characters, {@code mixed} or {@code skewed}, see {@link
+ *     CallGenerator}
+ * @param concurrency number of calls in flight
+ * @param warmup time spent sending calls that are not reported
+ * @param duration time spent sending the reported calls
+ * @param dlpEmulator latency and faults of the DLP emulator of the offline instance
+ */
+public record LoadTestOptions(
+    @Nullable URI target,
+    ImmutableList<String> algos,
+    int rowsPerCall,
+    String valueLength,
+    int concurrency,
+    Duration warmup,
+    Duration duration,
+    DlpEmulator.Settings dlpEmulator) {
+
+  public static LoadTestOptions fromSystemProperties() {
+    var target = System.getProperty("loadtest.target", "");
+
+    return new LoadTestOptions(
+        target.isBlank() ? null : URI.create(target),
+        ImmutableList.copyOf(
+            Splitter.on(',')
+                .trimResults()
+                .omitEmptyStrings()
+                .split(System.getProperty("loadtest.algos", "identity,base64,aes,dlp"))),
+        Integer.getInteger("loadtest.rowsPerCall", 1000),
+        System.getProperty("loadtest.valueLength", "skewed"),
+        Integer.getInteger("loadtest.concurrency", 8),
+        Duration.ofSeconds(Integer.getInteger("loadtest.warmupSeconds", 10)),
+        Duration.ofSeconds(Integer.getInteger("loadtest.durationSeconds", 30)),
+        DlpEmulator.Settings.fromSystemProperties());
+  }
+}
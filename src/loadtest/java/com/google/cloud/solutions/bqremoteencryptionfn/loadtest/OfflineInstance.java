@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.loadtest;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BqTransformFnApp;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
+import java.io.IOException;
+import java.net.URI;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Runs the application in-process on a random port, sending DLP calls to an in-process {@link
+ * DlpEmulator}, so that load tests need no network access or credentials. The {@code aes} function
+ * uses a fixed test key.
+ */
+final class OfflineInstance implements AutoCloseable {
+
+  static final String OFFLINE_PROFILE = "offline";
+
+  private final DlpEmulator dlpEmulator;
+  private final ConfigurableApplicationContext context;
+
+  private OfflineInstance(DlpEmulator dlpEmulator, ConfigurableApplicationContext context) {
+    this.dlpEmulator = dlpEmulator;
+    this.context = context;
+  }
+
+  static OfflineInstance start(DlpEmulator.Settings dlpEmulatorSettings) throws IOException {
+    var dlpEmulator = DlpEmulator.start(dlpEmulatorSettings, /* port= */ 0);
+
+    var context =
+        new SpringApplicationBuilder(BqTransformFnApp.class)
+            .profiles(OFFLINE_PROFILE)
+            .properties(
+                "server.port=0",
+                "AES_KEY=2lDNBd0hHgCZ+1/P+fWO+g==",
+                "AES_IV_PARAMETER_BASE64=/t2/6YFewDgoHeQM1QBZdw==")
+            .initializers(
+                applicationContext ->
+                    applicationContext
+                        .getBeanFactory()
+                        .registerSingleton(
+                            "emulatorDlpClientFactory", (DlpClientFactory) dlpEmulator::newClient))
+            .run();
+
+    return new OfflineInstance(dlpEmulator, context);
+  }
+
+  URI uri() {
+    var port = ((WebServerApplicationContext) context).getWebServer().getPort();
+    return URI.create("http://localhost:" + port + "/");
+  }
+
+  DlpEmulator dlpEmulator() {
+    return dlpEmulator;
+  }
+
+  @Override
+  public void close() {
+    context.close();
+    dlpEmulator.close();
+  }
+}
@@ -19,10 +19,18 @@ package com.google.cloud.solutions.bqremoteencryptionfn;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.cloud.solutions.bqremoteencryptionfn.fns.IdentityFn.IdentityTransformFnFactory;
+import com.google.common.base.Throwables;
 import com.google.common.flogger.GoogleLogger;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -39,37 +47,129 @@ public class BigQueryFnCallController {
 
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
+  /** Seconds between two retryable error logs, as an open DLP circuit rejects every request. */
+  private static final int RETRYABLE_ERROR_LOG_PERIOD_SECONDS = 10;
+
   public static final String CALL_MODE_KEY = "mode";
   public static final String TRANSFORM_ALGO_KEY = "algo";
 
-  @Autowired private List<TransformFnFactory<? extends TransformFn>> transformFnFactories;
+  private final List<TransformFnFactory<? extends TransformFn>> transformFnFactories;
+  private final TransformMetrics metrics;
+  private final ObservationRegistry observationRegistry;
+
+  @Autowired
+  public BigQueryFnCallController(
+      List<TransformFnFactory<? extends TransformFn>> transformFnFactories,
+      TransformMetrics metrics,
+      ObservationRegistry observationRegistry) {
+    this.transformFnFactories = transformFnFactories;
+    this.metrics = metrics;
+    this.observationRegistry = observationRegistry;
+  }
 
+  /**
+   * Processes the BigQuery call without holding the request thread while the transform waits on
+   * remote calls, answering with HTTP 503 on a {@link RetryableTransformException} so that BigQuery
+   * retries the call.
+   */
   @PostMapping("/")
-  public BigQueryRemoteFnResponse process(@RequestBody BigQueryRemoteFnRequest request) {
+  public CompletableFuture<ResponseEntity<BigQueryRemoteFnResponse>> process(
+      @RequestBody BigQueryRemoteFnRequest request) {
+    var recording = metrics.startRequest(request);
+
+    CompletableFuture<List<String>> replies;
     try {
-      var options =
-          checkNotNull(request.userDefinedContext(), "userDefinedContext is required. Found null.");
-      var callMode = identifyCallMode(options);
-      var algo = checkNotNull(options.get(TRANSFORM_ALGO_KEY), "Invalid Algorithm. Found null");
-
-      var transformFn =
-          transformFnFactories.stream()
-              .filter(factory -> factory.getFnName().equals(algo))
-              .findFirst()
-              .orElseGet(IdentityTransformFnFactory::new)
-              .createFn(options);
-
-      var replies =
+      replies = transform(request, recording);
+    } catch (Exception exception) {
+      replies = CompletableFuture.failedFuture(exception);
+    } finally {
+      // The cost stays with the recording, components completing on other threads captured it.
+      recording.detachFromThread();
+    }
+
+    return replies.handle(
+        (result, error) ->
+            (error == null)
+                ? success(recording, result)
+                : failure(recording, unwrapCompletionException(error)));
+  }
+
+  private CompletableFuture<List<String>> transform(
+      BigQueryRemoteFnRequest request, TransformMetrics.Recording recording) throws Exception {
+    var options =
+        checkNotNull(request.userDefinedContext(), "userDefinedContext is required. Found null.");
+    var callMode = identifyCallMode(options);
+    var algo = checkNotNull(options.get(TRANSFORM_ALGO_KEY), "Invalid Algorithm. Found null");
+
+    var transformFn =
+        transformFnFactories.stream()
+            .filter(factory -> factory.getFnName().equals(algo))
+            .findFirst()
+            .orElseGet(IdentityTransformFnFactory::new)
+            .createFn(options);
+    recording.setTransform(transformFn.getName(), callMode);
+
+    var observation =
+        Observation.createNotStarted("bqfn.transform", observationRegistry)
+            .lowCardinalityKeyValue("algo", transformFn.getName())
+            .lowCardinalityKeyValue("mode", callMode.name().toLowerCase())
+            .highCardinalityKeyValue(
+                "rows", String.valueOf(request.calls() == null ? 0 : request.calls().size()))
+            .start();
+
+    // The scope makes the transform span the parent of the spans started by the transform.
+    CompletableFuture<List<String>> replies;
+    try (var unused = observation.openScope()) {
+      replies =
           switch (callMode) {
-            case DEIDENTIFY -> transformFn.deidentify(request.calls());
-            case REIDENTIFY -> transformFn.reidentify(request.calls());
+            case DEIDENTIFY -> transformFn.deidentifyAsync(request.calls());
+            case REIDENTIFY -> transformFn.reidentifyAsync(request.calls());
           };
+    } catch (RuntimeException exception) {
+      observation.error(exception);
+      observation.stop();
+      throw exception;
+    }
+
+    return replies.whenComplete(
+        (result, error) -> {
+          if (error != null) {
+            observation.error(unwrapCompletionException(error));
+          }
+          observation.stop();
+        });
+  }
+
+  private static ResponseEntity<BigQueryRemoteFnResponse> success(
+      TransformMetrics.Recording recording, List<String> replies) {
+    recording.complete("success");
+    return ResponseEntity.ok(BigQueryRemoteFnResponse.withReplies(replies));
+  }
+
+  private static ResponseEntity<BigQueryRemoteFnResponse> failure(
+      TransformMetrics.Recording recording, Throwable error) {
+    var retryableException =
+        Throwables.getCausalChain(error).stream()
+            .filter(RetryableTransformException.class::isInstance)
+            .findFirst();
 
-      return BigQueryRemoteFnResponse.withReplies(replies);
-    } catch (Exception exp) {
-      logger.atInfo().withCause(exp).log("error processing request");
-      return BigQueryRemoteFnResponse.withErrorMessage(exp.getMessage());
+    if (retryableException.isPresent()) {
+      logger.atWarning().atMostEvery(RETRYABLE_ERROR_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+          "retryable error: %s", retryableException.get().getMessage());
+      recording.complete("retryable_error");
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .body(BigQueryRemoteFnResponse.withErrorMessage(retryableException.get().getMessage()));
     }
+
+    logger.atInfo().withCause(error).log("error processing request");
+    recording.complete("error");
+    return ResponseEntity.ok(BigQueryRemoteFnResponse.withErrorMessage(error.getMessage()));
+  }
+
+  private static Throwable unwrapCompletionException(Throwable error) {
+    return (error instanceof CompletionException && error.getCause() != null)
+        ? error.getCause()
+        : error;
   }
 
   private static CallMode identifyCallMode(Map<String, String> userContext) {
@@ -16,18 +16,25 @@
 
 package com.google.cloud.solutions.bqremoteencryptionfn;
 
-import com.google.cloud.dlp.v2.DlpServiceClient;
-import com.google.cloud.dlp.v2.DlpServiceSettings;
-import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.RegionalDlpClientFactory;
+import com.google.gson.Gson;
+import io.micrometer.observation.ObservationRegistry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.exporter.logging.LoggingSpanExporter;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
 import org.apache.coyote.http11.AbstractHttp11Protocol;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
 import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.http.converter.json.GsonHttpMessageConverter;
 
 @SpringBootApplication
 @EnableConfigurationProperties
@@ -38,12 +45,33 @@ public class BqTransformFnApp {
     SpringApplication.run(BqTransformFnApp.class, args);
   }
 
+  // The test and offline (load test) profiles provide their own DLP stand-in
   @Bean
-  @Profile("!test")
-  public DlpClientFactory defaultDlpClientFactory(UserAgentHeaderProvider userAgentHeaderProvider) {
-    return () ->
-        DlpServiceClient.create(
-            DlpServiceSettings.newBuilder().setHeaderProvider(userAgentHeaderProvider).build());
+  @Profile("!test & !offline")
+  public RegionalDlpClientFactory defaultDlpClientFactory(
+      UserAgentHeaderProvider userAgentHeaderProvider,
+      ObjectProvider<OpenTelemetry> openTelemetry,
+      @Value("${dlp.regionalEndpoints}") String regionalEndpoints,
+      @Value("${dlp.channelsPerEndpoint}") int channelsPerEndpoint) {
+    return new RegionalDlpClientFactory(
+        RegionalDlpClientFactory.parseLocationEndpoints(regionalEndpoints),
+        channelsPerEndpoint,
+        userAgentHeaderProvider,
+        openTelemetry.getIfAvailable(OpenTelemetry::noop).getPropagators().getTextMapPropagator());
+  }
+
+  // Traces the request parsing and the response serialization
+  @Bean
+  public GsonHttpMessageConverter gsonHttpMessageConverter(
+      Gson gson, ObservationRegistry observationRegistry) {
+    return new ObservedGsonHttpMessageConverter(gson, observationRegistry);
+  }
+
+  // Writes the spans to the logs, for environments without an OTLP collector
+  @Bean
+  @ConditionalOnProperty(name = "tracing.logSpans", havingValue = "true")
+  public SpanExporter loggingSpanExporter() {
+    return LoggingSpanExporter.create();
   }
 
   // Enable Keep-Alive HTTP Response header
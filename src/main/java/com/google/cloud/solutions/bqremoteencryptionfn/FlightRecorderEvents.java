@@ -0,0 +1,117 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events of the stages of a BigQuery call, shown next to the JVM events of a
+ * recording, e.g. one taken with the {@link FlightRecordingEndpoint}.
+ *
+ * <p>Each stage begins an event and only fills and commits it when {@link Event#shouldCommit()},
+ * so that a disabled event costs an allocation the JIT usually removes.
+ */
+public final class FlightRecorderEvents {
+
+  private static final String CATEGORY = "BigQuery Remote Functions";
+
+  private FlightRecorderEvents() {}
+
+  @Name("bqfn.RequestParse")
+  @Label("Request Parse")
+  @Description("Parsing of the BigQuery call from JSON")
+  @Category(CATEGORY)
+  public static final class RequestParse extends Event {
+    @Label("Rows")
+    public int rows;
+  }
+
+  @Name("bqfn.ArgumentExtraction")
+  @Label("Argument Extraction")
+  @Description("Extraction of the function argument from the rows of the call")
+  @Category(CATEGORY)
+  public static final class ArgumentExtraction extends Event {
+    @Label("Rows")
+    public int rows;
+  }
+
+  @Name("bqfn.TablePacking")
+  @Label("Table Packing")
+  @Description("Packing of the values into DLP request tables")
+  @Category({CATEGORY, "DLP"})
+  public static final class TablePacking extends Event {
+    @Label("Values")
+    public int values;
+
+    @Label("Tables")
+    public int tables;
+  }
+
+  @Name("bqfn.DlpRpc")
+  @Label("DLP RPC")
+  @Description("A DLP request, from sending it to its response or error")
+  @Category({CATEGORY, "DLP"})
+  public static final class DlpRpc extends Event {
+    @Label("Rows")
+    public int rows;
+
+    @Label("Table Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Status")
+    public String status;
+
+    @Label("Attempt")
+    public int attempt;
+
+    @Label("Split Depth")
+    public int splitDepth;
+
+    @Label("Hedge")
+    public boolean hedge;
+  }
+
+  @Name("bqfn.CipherBatch")
+  @Label("Cipher Batch")
+  @Description("Encryption or decryption of the values of a call")
+  @Category(CATEGORY)
+  public static final class CipherBatch extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Transformation")
+    public String transformation;
+
+    @Label("Rows")
+    public int rows;
+  }
+
+  @Name("bqfn.ResponseWrite")
+  @Label("Response Write")
+  @Description("Serialization of the reply to JSON")
+  @Category(CATEGORY)
+  public static final class ResponseWrite extends Event {
+    @Label("Rows")
+    public int rows;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import com.google.common.flogger.GoogleLogger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Takes JDK Flight Recorder recordings of a live instance, which include the {@link
+ * FlightRecorderEvents}: {@code POST /actuator/flightrecording} starts a recording, {@code GET}
+ * downloads the events of the last {@code maxAgeSeconds} as a {@code .jfr} file, and {@code
+ * DELETE} stops it.
+ *
+ * <p>Disabled unless {@code jfr.endpoint.enabled} is set, as the recordings contain stack traces
+ * and thread names of the instance.
+ */
+@Component
+@Endpoint(id = "flightrecording")
+@ConditionalOnProperty(name = "jfr.endpoint.enabled", havingValue = "true")
+public class FlightRecordingEndpoint implements AutoCloseable {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private final String settings;
+  private final Duration defaultMaxAge;
+
+  @Nullable private Recording recording;
+
+  @Autowired
+  public FlightRecordingEndpoint(
+      @Value("${jfr.settings}") String settings,
+      @Value("${jfr.maxAgeSeconds}") long defaultMaxAgeSeconds) {
+    this.settings = settings;
+    this.defaultMaxAge = Duration.ofSeconds(defaultMaxAgeSeconds);
+  }
+
+  /**
+   * Starts a recording with the {@code jfr.settings}, e.g. {@code profile}, replacing the current
+   * one.
+   */
+  @WriteOperation
+  public synchronized Map<String, Object> start(@Nullable Long maxAgeSeconds)
+      throws IOException, ParseException {
+    close();
+
+    var newRecording = new Recording(Configuration.getConfiguration(settings));
+    newRecording.setName("bqfn");
+    newRecording.setToDisk(true);
+    newRecording.setMaxAge(
+        maxAgeSeconds == null ? defaultMaxAge : Duration.ofSeconds(maxAgeSeconds));
+    newRecording.start();
+    recording = newRecording;
+
+    logger.atInfo().log(
+        "Started flight recording (%s settings, max age: %s)", settings, recording.getMaxAge());
+    return status();
+  }
+
+  /** Returns the events recorded so far, the recording continues. */
+  @ReadOperation(produces = "application/octet-stream")
+  public synchronized WebEndpointResponse<Resource> dump() throws IOException {
+    if (recording == null) {
+      return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+    }
+
+    var dumpFile = Files.createTempFile("bqfn-", ".jfr");
+    try {
+      recording.dump(dumpFile);
+      return new WebEndpointResponse<>(new ByteArrayResource(Files.readAllBytes(dumpFile)));
+    } finally {
+      Files.deleteIfExists(dumpFile);
+    }
+  }
+
+  @DeleteOperation
+  public synchronized Map<String, Object> stop() {
+    close();
+    return status();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (recording != null) {
+      recording.close();
+      recording = null;
+    }
+  }
+
+  private Map<String, Object> status() {
+    var status = new LinkedHashMap<String, Object>();
+    status.put("recording", recording != null);
+    if (recording != null) {
+      status.put("settings", settings);
+      status.put("startTime", recording.getStartTime().toString());
+      status.put("maxAgeSeconds", recording.getMaxAge().toSeconds());
+    }
+    return status;
+  }
+}
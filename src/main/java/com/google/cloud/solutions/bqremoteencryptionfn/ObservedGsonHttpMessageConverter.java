@@ -0,0 +1,77 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import com.google.gson.Gson;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import javax.annotation.Nullable;
+import org.springframework.http.converter.json.GsonHttpMessageConverter;
+
+/**
+ * Traces the parsing of the BigQuery request and the serialization of the response, which happen
+ * outside the controller, also recording them as {@link FlightRecorderEvents}.
+ */
+public class ObservedGsonHttpMessageConverter extends GsonHttpMessageConverter {
+
+  private final ObservationRegistry observationRegistry;
+
+  public ObservedGsonHttpMessageConverter(Gson gson, ObservationRegistry observationRegistry) {
+    super(gson);
+    this.observationRegistry = observationRegistry;
+  }
+
+  @Override
+  protected Object readInternal(Type resolvedType, Reader reader) throws Exception {
+    var event = new FlightRecorderEvents.RequestParse();
+    event.begin();
+
+    var object =
+        Observation.createNotStarted("bqfn.json.read", observationRegistry)
+            .observeChecked(() -> super.readInternal(resolvedType, reader));
+
+    if (event.shouldCommit()) {
+      event.rows =
+          (object instanceof BigQueryRemoteFnRequest request && request.calls() != null)
+              ? request.calls().size()
+              : 0;
+      event.commit();
+    }
+
+    return object;
+  }
+
+  @Override
+  protected void writeInternal(Object object, @Nullable Type type, Writer writer) throws Exception {
+    var event = new FlightRecorderEvents.ResponseWrite();
+    event.begin();
+
+    Observation.createNotStarted("bqfn.json.write", observationRegistry)
+        .observeChecked(() -> super.writeInternal(object, type, writer));
+
+    if (event.shouldCommit()) {
+      event.rows =
+          (object instanceof BigQueryRemoteFnResponse response && response.replies() != null)
+              ? response.replies().size()
+              : 0;
+      event.commit();
+    }
+  }
+}
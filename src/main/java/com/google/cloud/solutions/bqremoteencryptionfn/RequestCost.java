@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import com.google.common.flogger.GoogleLogger;
+import com.google.gson.Gson;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Cost of a single BigQuery call: the DLP requests it sent and the wall time of its stages,
+ * accumulated while the call is processed and logged once as a JSON record when it completes, to
+ * attribute the DLP usage to the BigQuery callers.
+ *
+ * <p>The cost of the call is {@link #current()} on the request thread, components completing the
+ * call on other threads capture it before leaving the request thread.
+ */
+public final class RequestCost {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+  private static final Gson GSON = new Gson();
+
+  private static final ThreadLocal<RequestCost> CURRENT = new ThreadLocal<>();
+
+  /** Discards the costs recorded outside a BigQuery call, e.g. during the warm-up. */
+  private static final RequestCost UNTRACKED = new RequestCost(null, null);
+
+  @Nullable private final String requestId;
+  @Nullable private final String caller;
+  private final LongAdder dlpRequests = new LongAdder();
+  private final LongAdder dlpRequestBytes = new LongAdder();
+  private final LongAdder dlpErrors = new LongAdder();
+  private final LongAdder dlpSplits = new LongAdder();
+  private final LongAdder dlpRetries = new LongAdder();
+  private final Map<String, LongAdder> stageNanos = new ConcurrentHashMap<>();
+
+  RequestCost(@Nullable String requestId, @Nullable String caller) {
+    this.requestId = requestId;
+    this.caller = caller;
+  }
+
+  /** Returns the cost of the call processed by this thread. */
+  public static RequestCost current() {
+    var cost = CURRENT.get();
+    return cost == null ? UNTRACKED : cost;
+  }
+
+  /** Makes this cost current on this thread until {@link #detach()}. */
+  void attach() {
+    CURRENT.set(this);
+  }
+
+  /** Stops this cost being current on this thread, if it still is. */
+  void detach() {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Runs the task with this cost current on this thread, for a task continuing the call on another
+   * thread, and restores the thread's previous cost.
+   */
+  public <T> T callAttached(Callable<T> task) throws Exception {
+    var previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return task.call();
+    } finally {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  /** Records a DLP request with the bytes of its table, including the failed ones. */
+  public void recordDlpRequest(long tableBytes, boolean failed) {
+    if (this == UNTRACKED) {
+      return;
+    }
+
+    dlpRequests.increment();
+    dlpRequestBytes.add(tableBytes);
+    if (failed) {
+      dlpErrors.increment();
+    }
+  }
+
+  public void recordDlpSplit() {
+    if (this != UNTRACKED) {
+      dlpSplits.increment();
+    }
+  }
+
+  public void recordDlpRetry() {
+    if (this != UNTRACKED) {
+      dlpRetries.increment();
+    }
+  }
+
+  /** Adds the wall time of a stage, e.g. {@code pack}, summed when a call runs it many times. */
+  public void recordStage(String stage, long nanos) {
+    if (this != UNTRACKED) {
+      stageNanos.computeIfAbsent(stage, unused -> new LongAdder()).add(nanos);
+    }
+  }
+
+  public long dlpRequests() {
+    return dlpRequests.sum();
+  }
+
+  public long dlpRequestBytes() {
+    return dlpRequestBytes.sum();
+  }
+
+  public long dlpErrors() {
+    return dlpErrors.sum();
+  }
+
+  public long dlpSplits() {
+    return dlpSplits.sum();
+  }
+
+  public long dlpRetries() {
+    return dlpRetries.sum();
+  }
+
+  public long stageNanos(String stage) {
+    var nanos = stageNanos.get(stage);
+    return nanos == null ? 0 : nanos.sum();
+  }
+
+  /** Logs the cost record of the completed call. */
+  void log(String algo, String mode, String outcome, long rows, long inputBytes, long wallNanos) {
+    var record = new LinkedHashMap<String, Object>();
+    record.put("requestId", requestId);
+    record.put("caller", caller);
+    record.put("algo", algo);
+    record.put("mode", mode);
+    record.put("outcome", outcome);
+    record.put("rows", rows);
+    record.put("inputBytes", inputBytes);
+    record.put("dlpRequests", dlpRequests());
+    record.put("dlpRequestBytes", dlpRequestBytes());
+    record.put("dlpErrors", dlpErrors());
+    record.put("dlpSplits", dlpSplits());
+    record.put("dlpRetries", dlpRetries());
+    record.put("wallMillis", toMillis(wallNanos));
+
+    var stageMillis = new TreeMap<String, Double>();
+    stageNanos.forEach((stage, nanos) -> stageMillis.put(stage, toMillis(nanos.sum())));
+    record.put("stageMillis", stageMillis);
+
+    logger.atInfo().log("request cost: %s", GSON.toJson(record));
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+/**
+ * Signals a transient failure of a {@link TransformFn}, for which the call is answered with an HTTP
+ * 503 so that BigQuery retries it, instead of failing the query with the error message.
+ */
+public class RetryableTransformException extends RuntimeException {
+
+  public RetryableTransformException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpTemplateCache;
+import com.google.common.base.Stopwatch;
+import com.google.common.flogger.GoogleLogger;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Warms the service up before the web server starts listening, so that the first BigQuery call
+ * after a cold start doesn't pay for it. Disabled by default, enable using {@code
+ * WARMUP_ENABLED=true}.
+ *
+ * <p>The warm-up prefetches the DeidentifyTemplates configured in {@code DLP_PREFETCH_TEMPLATES},
+ * which also opens the DLP channels for the templates' locations, and then runs synthetic batches
+ * through every registered {@link TransformFn} to load classes and warm the JIT. DLP functions are
+ * called once for each prefetched template, other functions {@code WARMUP_ITERATIONS} times.
+ */
+@Component
+@PropertySource("classpath:warmup.properties")
+public class StartupWarmer implements SmartInitializingSingleton {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final String DLP_DEID_TEMPLATE_KEY = "dlp-deid-template";
+
+  private final boolean enabled;
+  private final int rowCount;
+  private final int iterations;
+  private final List<TransformFnFactory<? extends TransformFn>> transformFnFactories;
+  private final DlpTemplateCache templateCache;
+  private final DlpClientFactory dlpClientFactory;
+
+  public StartupWarmer(
+      @Value("${warmup.enabled}") boolean enabled,
+      @Value("${warmup.rows}") int rowCount,
+      @Value("${warmup.iterations}") int iterations,
+      List<TransformFnFactory<? extends TransformFn>> transformFnFactories,
+      DlpTemplateCache templateCache,
+      DlpClientFactory dlpClientFactory) {
+    this.enabled = enabled;
+    this.rowCount = rowCount;
+    this.iterations = iterations;
+    this.transformFnFactories = transformFnFactories;
+    this.templateCache = templateCache;
+    this.dlpClientFactory = dlpClientFactory;
+  }
+
+  @Override
+  public void afterSingletonsInstantiated() {
+    if (enabled) {
+      warmUp();
+    }
+  }
+
+  void warmUp() {
+    var stopwatch = Stopwatch.createStarted();
+
+    prefetchTemplates();
+
+    var calls = makeSyntheticCalls(rowCount);
+
+    for (var factory : transformFnFactories) {
+      if (factory.getFnName().equals(DlpFn.FN_NAME)) {
+        templateCache
+            .templateNames()
+            .forEach(
+                templateName ->
+                    warmFn(factory, Map.of(DLP_DEID_TEMPLATE_KEY, templateName), calls, 1));
+      } else {
+        warmFn(factory, Map.of(), calls, iterations);
+      }
+    }
+
+    logger.atInfo().log("Warm-up completed in %s", stopwatch);
+  }
+
+  private void prefetchTemplates() {
+    for (var templateName : templateCache.templateNames()) {
+      try (var dlpClient = dlpClientFactory.newClient(DlpFn.extractDlpLocation(templateName))) {
+        templateCache.prefetch(templateName, dlpClient);
+        logger.atInfo().log("Prefetched template (%s)", templateName);
+      } catch (Exception exception) {
+        logger.atWarning().withCause(exception).log(
+            "Unable to prefetch template (%s)", templateName);
+      }
+    }
+  }
+
+  private static void warmFn(
+      TransformFnFactory<? extends TransformFn> factory,
+      Map<String, String> options,
+      List<List<Object>> calls,
+      int iterations) {
+    var stopwatch = Stopwatch.createStarted();
+
+    try {
+      for (int iteration = 0; iteration < iterations; iteration++) {
+        var transformFn = factory.createFn(options);
+        var tokens = transformFn.deidentify(calls);
+
+        try {
+          transformFn.reidentify(
+              tokens.stream().map(token -> List.<Object>of(token)).collect(toImmutableList()));
+        } catch (Exception reidException) {
+          // Not all functions or templates are reversible, deidentify has been warmed.
+        }
+      }
+
+      logger.atInfo().log(
+          "Warmed fn (%s) %s with %s batches in %s",
+          factory.getFnName(), options, iterations, stopwatch);
+    } catch (Exception exception) {
+      logger.atWarning().withCause(exception).log(
+          "Warm-up failed for fn (%s) %s", factory.getFnName(), options);
+    }
+  }
+
+  private static List<List<Object>> makeSyntheticCalls(int rowCount) {
+    return IntStream.range(0, rowCount)
+        .mapToObj(
+            index ->
+                List.<Object>of(
+                    String.format(
+                        "warmup row %d user%d@example.com 555-%03d-%04d",
+                        index, index, index % 1000, index % 10000)))
+        .collect(toImmutableList());
+  }
+}
@@ -17,6 +17,7 @@
 package com.google.cloud.solutions.bqremoteencryptionfn;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /** Interface describing a general contract for any tokenization algorithm. */
 public interface TransformFn {
@@ -43,6 +44,30 @@ public interface TransformFn {
    */
   List<String> reidentify(List<List<Object>> rows) throws Exception;
 
+  /**
+   * Returns a future of the {@link #deidentify} result, for use by asynchronous callers. The
+   * default implementation computes the result on the calling thread.
+   */
+  default CompletableFuture<List<String>> deidentifyAsync(List<List<Object>> rows) {
+    try {
+      return CompletableFuture.completedFuture(deidentify(rows));
+    } catch (Exception exception) {
+      return CompletableFuture.failedFuture(exception);
+    }
+  }
+
+  /**
+   * Returns a future of the {@link #reidentify} result, for use by asynchronous callers. The
+   * default implementation computes the result on the calling thread.
+   */
+  default CompletableFuture<List<String>> reidentifyAsync(List<List<Object>> rows) {
+    try {
+      return CompletableFuture.completedFuture(reidentify(rows));
+    } catch (Exception exception) {
+      return CompletableFuture.failedFuture(exception);
+    }
+  }
+
   /**
    * Returns the name of the encryption algorithm implemented. Needs to be unique for all loaded
    * function classes.
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryFnCallController.CallMode;
+import com.google.common.base.Utf8;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records the latency, size and outcome of the BigQuery calls, tagged by algo and mode, along with
+ * the number of calls in flight, and logs the {@link RequestCost} of each call.
+ */
+@Component
+public class TransformMetrics {
+
+  private static final String UNKNOWN = "unknown";
+
+  private final AtomicInteger activeRequests;
+  private final Meter.MeterProvider<Timer> requestTimers;
+  private final Meter.MeterProvider<DistributionSummary> requestRows;
+  private final Meter.MeterProvider<DistributionSummary> requestBytes;
+
+  @Autowired
+  public TransformMetrics(MeterRegistry registry) {
+    this.activeRequests = registry.gauge("bqfn.requests.active", new AtomicInteger());
+    this.requestTimers =
+        Timer.builder("bqfn.requests")
+            .description("Latency of the BigQuery calls")
+            .withRegistry(registry);
+    this.requestRows =
+        DistributionSummary.builder("bqfn.request.rows")
+            .description("Rows of the BigQuery calls")
+            .withRegistry(registry);
+    this.requestBytes =
+        DistributionSummary.builder("bqfn.request.bytes")
+            .description("UTF-8 bytes of the values of the BigQuery calls")
+            .baseUnit("bytes")
+            .withRegistry(registry);
+  }
+
+  /** Returns metrics that are not exported. */
+  public static TransformMetrics noop() {
+    return new TransformMetrics(new CompositeMeterRegistry());
+  }
+
+  /**
+   * Counts the call as in flight until the returned recording completes, its cost being current on
+   * this thread meanwhile.
+   */
+  public Recording startRequest(BigQueryRemoteFnRequest request) {
+    return startRequest(new RequestCost(request.requestId(), request.caller()), request.calls());
+  }
+
+  public Recording startRequest(@Nullable List<List<Object>> calls) {
+    return startRequest(new RequestCost(null, null), calls);
+  }
+
+  private Recording startRequest(RequestCost cost, @Nullable List<List<Object>> calls) {
+    activeRequests.incrementAndGet();
+    cost.attach();
+    return new Recording(cost, calls);
+  }
+
+  /** Measurements of a single call. */
+  public final class Recording {
+    private final long startNanos;
+    private final RequestCost cost;
+    @Nullable private final List<List<Object>> calls;
+    private String algo;
+    private String mode;
+
+    private Recording(RequestCost cost, @Nullable List<List<Object>> calls) {
+      this.startNanos = System.nanoTime();
+      this.cost = cost;
+      this.calls = calls;
+      this.algo = UNKNOWN;
+      this.mode = UNKNOWN;
+    }
+
+    /** Sets the tags of the call once the function is resolved. */
+    public void setTransform(String algo, CallMode callMode) {
+      this.algo = algo;
+      this.mode = callMode.name().toLowerCase();
+    }
+
+    public RequestCost cost() {
+      return cost;
+    }
+
+    /**
+     * Stops the cost being current on the request thread, for calls completing on other threads.
+     */
+    public void detachFromThread() {
+      cost.detach();
+    }
+
+    /**
+     * Records the call with its outcome, e.g. {@code success} or {@code error}, and logs its cost.
+     */
+    public void complete(String outcome) {
+      var wallNanos = System.nanoTime() - startNanos;
+      activeRequests.decrementAndGet();
+      cost.detach();
+
+      requestTimers
+          .withTags("algo", algo, "mode", mode, "outcome", outcome)
+          .record(wallNanos, TimeUnit.NANOSECONDS);
+
+      var rows = 0L;
+      var inputBytes = 0L;
+      if (calls != null) {
+        rows = calls.size();
+        inputBytes = valueBytes(calls);
+        requestRows.withTags("algo", algo, "mode", mode).record(rows);
+        requestBytes.withTags("algo", algo, "mode", mode).record(inputBytes);
+      }
+
+      cost.log(algo, mode, outcome, rows, inputBytes, wallNanos);
+    }
+  }
+
+  private static long valueBytes(List<List<Object>> calls) {
+    var bytes = 0L;
+    for (var call : calls) {
+      for (var value : call) {
+        if (value instanceof CharSequence charSequence) {
+          bytes += utf8Length(charSequence);
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static long utf8Length(CharSequence value) {
+    try {
+      return Utf8.encodedLength(value);
+    } catch (IllegalArgumentException unpairedSurrogate) {
+      return value.length();
+    }
+  }
+}
@@ -16,18 +16,28 @@
 
 package com.google.cloud.solutions.bqremoteencryptionfn.fns;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.FlightRecorderEvents.CipherBatch;
 import com.google.cloud.solutions.bqremoteencryptionfn.TransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesTokenCodec.Compression;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesTokenCodec.TokenEncoding;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.BaseEncoding;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
 import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Component;
@@ -35,12 +45,33 @@ import org.springframework.stereotype.Component;
 /**
  * Implementation of AES Encryption. The actual Key type is passed as a parameter and is dependent
  * on the KeyString length.
+ *
+ * <p>Supports a keyring of named keys to allow key rotation. Tokens encrypted with a named key are
+ * prefixed with the key-id ({@code <keyId>:<base64 ciphertext>}), while tokens encrypted with the
+ * default (unnamed) key carry no prefix, keeping them compatible with earlier releases. Decryption
+ * selects the key per row using the token prefix, so a batch can contain tokens of multiple key
+ * generations. A token whose prefix is not a configured key-id is decrypted whole with the default
+ * key.
+ *
+ * <p>Token size can be reduced by compressing the plaintext before encryption and by using the
+ * unpadded base64url encoding, see {@link AesTokenCodec}.
  */
 public final class AesFn extends UnaryStringArgFn {
 
   public static final String FN_NAME = "aes";
   public static final String AES_CIPHER_TYPE_KEY = "aes-cipher-type";
   public static final String AES_IV_PARAMETER_KEY = "aes-iv-parameter-base64";
+  public static final String AES_KEY_ID_KEY = "aes-key-id";
+  public static final String AES_CIPHER_PROVIDER_KEY = "aes-cipher-provider";
+  public static final String AES_COMPRESSION_KEY = "aes-compression";
+  public static final String AES_TOKEN_ENCODING_KEY = "aes-token-encoding";
+
+  /** The key-id used for the default key, tokens encrypted using this key carry no prefix. */
+  public static final String DEFAULT_KEY_ID = "";
+
+  private static final char KEY_ID_SEPARATOR = ':';
+
+  private static final Pattern KEY_ID_PATTERN = Pattern.compile("^[A-Za-z0-9_-]{1,16}$");
 
   public enum AesKeyType {
     UTF8_KEY,
@@ -51,8 +82,7 @@ public final class AesFn extends UnaryStringArgFn {
   @PropertySource("classpath:aes.properties")
   public static class AesTransformFnFactory implements TransformFnFactory<AesFn> {
 
-    @Value("${aesKey}")
-    private String aesKeyString;
+    private final ImmutableMap<String, String> keyring;
 
     @Value("${aesKeyType}")
     private AesKeyType aesKeyType;
@@ -63,6 +93,30 @@ public final class AesFn extends UnaryStringArgFn {
     @Value("${aesIvParameterBase64}")
     private String ivParameterBase64;
 
+    @Value("${aesKeyId}")
+    private String aesKeyId;
+
+    @Value("${aesCipherProvider}")
+    private String cipherProvider;
+
+    @Value("${aesCompression}")
+    private String compression;
+
+    @Value("${aesCompressionMinBytes}")
+    private int compressionMinBytes;
+
+    @Value("${aesCompressionDictionaryBase64}")
+    private String compressionDictionaryBase64;
+
+    @Value("${aesTokenEncoding}")
+    private String tokenEncoding;
+
+    @Autowired
+    public AesTransformFnFactory(
+        @Value("${aesKey}") String aesKeyString, @Value("${aesKeyring}") String aesKeyring) {
+      this.keyring = parseKeyring(aesKeyString, aesKeyring);
+    }
+
     @Override
     public String getFnName() {
       return FN_NAME;
@@ -71,63 +125,178 @@ public final class AesFn extends UnaryStringArgFn {
     @Override
     public AesFn createFn(@Nonnull Map<String, String> options) {
       return new AesFn(
-          aesKeyString,
+          keyring,
+          options.getOrDefault(AES_KEY_ID_KEY, aesKeyId),
           aesKeyType,
           options.getOrDefault(AES_CIPHER_TYPE_KEY, cipherType),
-          options.getOrDefault(AES_IV_PARAMETER_KEY, ivParameterBase64));
+          options.getOrDefault(AES_IV_PARAMETER_KEY, ivParameterBase64),
+          options.getOrDefault(AES_CIPHER_PROVIDER_KEY, cipherProvider),
+          new AesTokenCodec(
+              Compression.valueOf(
+                  options.getOrDefault(AES_COMPRESSION_KEY, compression).toUpperCase()),
+              compressionMinBytes,
+              BaseEncoding.base64().decode(compressionDictionaryBase64),
+              TokenEncoding.valueOf(
+                  options.getOrDefault(AES_TOKEN_ENCODING_KEY, tokenEncoding).toUpperCase())));
     }
   }
 
-  private final String keyString;
+  /**
+   * Returns the keyring combining the default key with the named keys.
+   *
+   * @param defaultKeyString the key used for tokens without a key-id prefix
+   * @param keyringString comma separated list of {@code keyId:keyString} pairs
+   */
+  public static ImmutableMap<String, String> parseKeyring(
+      String defaultKeyString, String keyringString) {
+    var namedKeys =
+        (keyringString == null || keyringString.isBlank())
+            ? Map.<String, String>of()
+            : Splitter.on(',')
+                .trimResults()
+                .omitEmptyStrings()
+                .withKeyValueSeparator(KEY_ID_SEPARATOR)
+                .split(keyringString);
+
+    namedKeys
+        .keySet()
+        .forEach(
+            keyId ->
+                checkArgument(
+                    KEY_ID_PATTERN.matcher(keyId).matches(), "Invalid AES key-id (%s)", keyId));
+
+    return ImmutableMap.<String, String>builder()
+        .put(DEFAULT_KEY_ID, defaultKeyString)
+        .putAll(namedKeys)
+        .buildOrThrow();
+  }
+
+  private final ImmutableMap<String, String> keyring;
+  private final String encryptKeyId;
   private final AesKeyType keyType;
   private final String cipherTransformType;
   private final String ivParameterBase64;
+  private final String cipherProvider;
+  private final AesTokenCodec tokenCodec;
 
   public AesFn(
       String keyString, AesKeyType keyType, String cipherTransformType, String ivParameterBase64) {
-    this.keyString = keyString;
+    this(
+        ImmutableMap.of(DEFAULT_KEY_ID, keyString),
+        DEFAULT_KEY_ID,
+        keyType,
+        cipherTransformType,
+        ivParameterBase64,
+        CipherProviders.DEFAULT_PROVIDER_NAME,
+        AesTokenCodec.defaultCodec());
+  }
+
+  public AesFn(
+      Map<String, String> keyring,
+      String encryptKeyId,
+      AesKeyType keyType,
+      String cipherTransformType,
+      String ivParameterBase64,
+      String cipherProvider,
+      AesTokenCodec tokenCodec) {
+    this.keyring = ImmutableMap.copyOf(keyring);
+    this.encryptKeyId = (encryptKeyId == null) ? DEFAULT_KEY_ID : encryptKeyId;
     this.keyType = keyType;
     this.cipherTransformType = cipherTransformType;
     this.ivParameterBase64 = ivParameterBase64;
+    this.cipherProvider = cipherProvider;
+    this.tokenCodec = tokenCodec;
+
+    checkArgument(
+        this.keyring.containsKey(this.encryptKeyId),
+        "Unknown AES key-id (%s)",
+        this.encryptKeyId);
   }
 
   @Override
   public List<String> deidentifyUnaryRow(List<String> rows) throws Exception {
-    var encryptCipher = makeCipher(Cipher.ENCRYPT_MODE);
+    var event = new CipherBatch();
+    event.begin();
+
+    var encryptCipher = makeCipher(Cipher.ENCRYPT_MODE, encryptKeyId);
 
-    var encoder = Base64.getEncoder();
+    var tokenPrefix = encryptKeyId.equals(DEFAULT_KEY_ID) ? "" : encryptKeyId + KEY_ID_SEPARATOR;
 
     ImmutableList.Builder<String> replies = ImmutableList.builder();
 
     for (String element : rows) {
-      var bytes = element.getBytes(StandardCharsets.UTF_8);
-      replies.add(encoder.encodeToString(encryptCipher.doFinal(bytes)));
+      var bytes = tokenCodec.toPlaintext(element);
+      replies.add(tokenPrefix + tokenCodec.encode(encryptCipher.doFinal(bytes)));
     }
+
+    commitCipherBatch(event, "encrypt", rows.size());
     return replies.build();
   }
 
   @Override
   public List<String> reidentifyUnaryRow(List<String> rows) throws Exception {
+    var event = new CipherBatch();
+    event.begin();
 
-    var decryptCipher = makeCipher(Cipher.DECRYPT_MODE);
-
-    var decoder = Base64.getDecoder();
+    // Ciphers are initialized once per key-id and reused for all rows of the batch.
+    var decryptCiphers = new HashMap<String, Cipher>();
 
     ImmutableList.Builder<String> replies = ImmutableList.builder();
 
-    for (String base64String : rows) {
-      var bytes = decoder.decode(base64String);
-      replies.add(new String(decryptCipher.doFinal(bytes), StandardCharsets.UTF_8));
+    for (String token : rows) {
+      var keyId = tokenKeyId(token);
+
+      var decryptCipher = decryptCiphers.get(keyId);
+      if (decryptCipher == null) {
+        decryptCipher = makeCipher(Cipher.DECRYPT_MODE, keyId);
+        decryptCiphers.put(keyId, decryptCipher);
+      }
+
+      var encodedCiphertext =
+          keyId.equals(DEFAULT_KEY_ID) ? token : token.substring(keyId.length() + 1);
+      var bytes = tokenCodec.decode(encodedCiphertext);
+      replies.add(tokenCodec.fromPlaintext(decryptCipher.doFinal(bytes)));
     }
+
+    commitCipherBatch(event, "decrypt", rows.size());
     return replies.build();
   }
 
+  /** Returns the token's key-id prefix, or the default key-id if it isn't a configured key-id. */
+  private String tokenKeyId(String token) {
+    var separatorIndex = token.indexOf(KEY_ID_SEPARATOR);
+
+    if (separatorIndex > 0) {
+      var keyId = token.substring(0, separatorIndex);
+      if (keyring.containsKey(keyId)) {
+        return keyId;
+      }
+    }
+
+    return DEFAULT_KEY_ID;
+  }
+
+  private void commitCipherBatch(CipherBatch event, String operation, int rows) {
+    if (event.shouldCommit()) {
+      event.operation = operation;
+      event.transformation = cipherTransformType;
+      event.rows = rows;
+      event.commit();
+    }
+  }
+
   @Override
   public String getName() {
     return FN_NAME;
   }
 
-  private Cipher makeCipher(int opMode) throws GeneralSecurityException {
+  private Cipher makeCipher(int opMode, String keyId) throws GeneralSecurityException {
+
+    var keyString = keyring.get(keyId);
+
+    if (keyString == null) {
+      throw new IllegalArgumentException(String.format("Unknown AES key-id (%s)", keyId));
+    }
 
     var keyBytes =
         switch (keyType) {
@@ -136,7 +305,7 @@ public final class AesFn extends UnaryStringArgFn {
         };
 
     var secretKey = new SecretKeySpec(keyBytes, "AES");
-    var cipher = Cipher.getInstance(cipherTransformType);
+    var cipher = CipherProviders.newCipher(cipherTransformType, cipherProvider);
 
     if (!cipherTransformType.toUpperCase().contains("ECB")) {
       var ivBytes = Base64.getDecoder().decode(ivParameterBase64);
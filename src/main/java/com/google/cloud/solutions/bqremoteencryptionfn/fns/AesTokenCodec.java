@@ -0,0 +1,179 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+
+/**
+ * Converts values to the bytes that are encrypted and the encrypted bytes to tokens.
+ *
+ * <p>When compression is enabled, compressed plaintexts are prefixed with a header byte that never
+ * starts UTF-8 text. Values shorter than the minimum compression size, or values that do not
+ * shrink, are stored as plain UTF-8 without header, so tokens written before compression was
+ * enabled are still reidentified. The same dictionary is required to reidentify the tokens.
+ *
+ * <p>Compression makes the token length depend on the compressibility of the value, which leaks
+ * information about the plaintext. It is therefore disabled by default.
+ */
+public final class AesTokenCodec {
+
+  public enum Compression {
+    NONE,
+    DEFLATE
+  }
+
+  public enum TokenEncoding {
+    /** Standard Base64 alphabet with padding. */
+    BASE64,
+
+    /** URL and filename safe Base64 alphabet without padding. */
+    BASE64URL
+  }
+
+  public static final int DEFAULT_COMPRESSION_MIN_BYTES = 64;
+
+  /** Headers of the compressed formats, bytes 0xF8 to 0xFF never occur in UTF-8 text. */
+  private static final byte DEFLATE_HEADER = (byte) 0xF8;
+
+  private static final byte DEFLATE_DICTIONARY_HEADER = (byte) 0xF9;
+
+  private final Compression compression;
+  private final int compressionMinBytes;
+  @Nullable private final byte[] dictionary;
+  private final TokenEncoding encoding;
+
+  public AesTokenCodec(
+      Compression compression,
+      int compressionMinBytes,
+      @Nullable byte[] dictionary,
+      TokenEncoding encoding) {
+    this.compression = compression;
+    this.compressionMinBytes = compressionMinBytes;
+    this.dictionary = (dictionary == null || dictionary.length == 0) ? null : dictionary;
+    this.encoding = encoding;
+  }
+
+  /** Returns a codec producing uncompressed, standard Base64 encoded tokens. */
+  public static AesTokenCodec defaultCodec() {
+    return new AesTokenCodec(
+        Compression.NONE, DEFAULT_COMPRESSION_MIN_BYTES, null, TokenEncoding.BASE64);
+  }
+
+  /** Returns the bytes to encrypt for the value. */
+  public byte[] toPlaintext(String value) {
+    var bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    if (compression == Compression.NONE || bytes.length < compressionMinBytes) {
+      return bytes;
+    }
+
+    var compressed = deflate(bytes);
+    return (compressed != null) ? compressed : bytes;
+  }
+
+  /** Returns the value from the decrypted bytes. */
+  public String fromPlaintext(byte[] plaintext) throws DataFormatException {
+    if (compression == Compression.NONE
+        || plaintext.length == 0
+        || (plaintext[0] != DEFLATE_HEADER && plaintext[0] != DEFLATE_DICTIONARY_HEADER)) {
+      return new String(plaintext, StandardCharsets.UTF_8);
+    }
+
+    return inflate(plaintext);
+  }
+
+  /** Returns the token for the encrypted bytes. */
+  public String encode(byte[] ciphertext) {
+    return switch (encoding) {
+      case BASE64 -> Base64.getEncoder().encodeToString(ciphertext);
+      case BASE64URL -> Base64.getUrlEncoder().withoutPadding().encodeToString(ciphertext);
+    };
+  }
+
+  /** Returns the encrypted bytes from the token. */
+  public byte[] decode(String token) {
+    return switch (encoding) {
+      case BASE64 -> Base64.getDecoder().decode(token);
+      case BASE64URL -> Base64.getUrlDecoder().decode(token);
+    };
+  }
+
+  /** Returns the header prefixed compressed bytes, or null when compression does not help. */
+  @Nullable
+  private byte[] deflate(byte[] bytes) {
+    // Ended explicitly, as its native memory is otherwise only released by the GC.
+    var deflater = new Deflater(Deflater.BEST_COMPRESSION, /* nowrap= */ true);
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      deflater.setInput(bytes);
+      deflater.finish();
+
+      // Only useful when smaller than the raw value.
+      var output = new byte[bytes.length];
+      output[0] = (dictionary == null) ? DEFLATE_HEADER : DEFLATE_DICTIONARY_HEADER;
+
+      var length = 1;
+      while (!deflater.finished() && length < output.length) {
+        length += deflater.deflate(output, length, output.length - length);
+      }
+
+      return (deflater.finished() && length < output.length)
+          ? Arrays.copyOf(output, length)
+          : null;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private String inflate(byte[] plaintext) throws DataFormatException {
+    if (plaintext[0] == DEFLATE_DICTIONARY_HEADER && dictionary == null) {
+      throw new DataFormatException("Token requires a compression dictionary");
+    }
+
+    var inflater = new Inflater(/* nowrap= */ true);
+    try {
+      if (plaintext[0] == DEFLATE_DICTIONARY_HEADER) {
+        inflater.setDictionary(dictionary);
+      }
+      inflater.setInput(plaintext, 1, plaintext.length - 1);
+
+      var output = new ByteArrayOutputStream(plaintext.length * 3);
+      var buffer = new byte[Math.max(256, plaintext.length * 2)];
+
+      while (!inflater.finished()) {
+        var length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Truncated compressed token");
+        }
+        output.write(buffer, 0, length);
+      }
+
+      return output.toString(StandardCharsets.UTF_8);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+import com.google.common.flogger.GoogleLogger;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Resolves the JCA provider used to create {@link Cipher} instances.
+ *
+ * <p>Providers are looked up by name from the installed security providers. The BoringSSL backed
+ * Conscrypt provider is loaded from the classpath when requested, without requiring it to be
+ * installed. When a provider is unavailable or does not support the transformation the JDK default
+ * provider is used.
+ */
+public final class CipherProviders {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** Name representing the JDK's default provider selection. */
+  public static final String DEFAULT_PROVIDER_NAME = "";
+
+  public static final String CONSCRYPT_PROVIDER_NAME = "Conscrypt";
+
+  private static final ConcurrentHashMap<String, Optional<Provider>> PROVIDERS =
+      new ConcurrentHashMap<>();
+
+  private CipherProviders() {}
+
+  /**
+   * Returns the provider for the given name, or empty when the JDK default provider should be
+   * used.
+   */
+  public static Optional<Provider> findProvider(String providerName) {
+    if (isNullOrEmpty(providerName)) {
+      return Optional.empty();
+    }
+
+    return PROVIDERS.computeIfAbsent(providerName, CipherProviders::loadProvider);
+  }
+
+  /**
+   * Returns a new Cipher for the transformation using the named provider, falling back to the JDK
+   * default provider when the named provider does not support the transformation.
+   */
+  public static Cipher newCipher(String transformation, String providerName)
+      throws GeneralSecurityException {
+    var provider = findProvider(providerName);
+
+    if (provider.isPresent()) {
+      try {
+        return Cipher.getInstance(transformation, provider.get());
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException exception) {
+        logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).log(
+            "Provider (%s) does not support %s, using default provider",
+            providerName, transformation);
+      }
+    }
+
+    return Cipher.getInstance(transformation);
+  }
+
+  private static Optional<Provider> loadProvider(String providerName) {
+    var installedProvider = Security.getProvider(providerName);
+
+    if (installedProvider != null) {
+      return Optional.of(installedProvider);
+    }
+
+    if (CONSCRYPT_PROVIDER_NAME.equalsIgnoreCase(providerName)) {
+      try {
+        var conscryptClass = Class.forName("org.conscrypt.Conscrypt");
+
+        if ((Boolean) conscryptClass.getMethod("isAvailable").invoke(null)) {
+          return Optional.of((Provider) conscryptClass.getMethod("newProvider").invoke(null));
+        }
+      } catch (ReflectiveOperationException | LinkageError exception) {
+        logger.atWarning().withCause(exception).log("Unable to load Conscrypt provider");
+      }
+    }
+
+    logger.atWarning().log("JCA provider (%s) not available, using default provider", providerName);
+    return Optional.empty();
+  }
+}
@@ -18,8 +18,11 @@ package com.google.cloud.solutions.bqremoteencryptionfn.fns;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
+import com.google.cloud.solutions.bqremoteencryptionfn.FlightRecorderEvents;
 import com.google.cloud.solutions.bqremoteencryptionfn.TransformFn;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Base class for transform functions that take a single argument for deidentify and reidentify
@@ -37,11 +40,62 @@ public abstract class UnaryStringArgFn implements TransformFn {
     return reidentifyUnaryRow(makeUnaryArgumentRow(rows));
   }
 
+  @Override
+  public final CompletableFuture<List<String>> deidentifyAsync(List<List<Object>> rows) {
+    return deidentifyUnaryRowAsync(makeUnaryArgumentRow(rows));
+  }
+
+  @Override
+  public final CompletableFuture<List<String>> reidentifyAsync(List<List<Object>> rows) {
+    return reidentifyUnaryRowAsync(makeUnaryArgumentRow(rows));
+  }
+
   private List<String> makeUnaryArgumentRow(List<List<Object>> calledRows) {
-    return calledRows.stream().map(r -> r.get(0)).map(Object::toString).collect(toImmutableList());
+    var event = new FlightRecorderEvents.ArgumentExtraction();
+    event.begin();
+
+    var arguments =
+        calledRows.stream().map(r -> r.get(0)).map(Object::toString).collect(toImmutableList());
+
+    if (event.shouldCommit()) {
+      event.rows = arguments.size();
+      event.commit();
+    }
+
+    return arguments;
   }
 
   protected abstract List<String> deidentifyUnaryRow(List<String> rows) throws Exception;
 
   protected abstract List<String> reidentifyUnaryRow(List<String> rows) throws Exception;
+
+  /** Override to deidentify without blocking the calling thread. */
+  protected CompletableFuture<List<String>> deidentifyUnaryRowAsync(List<String> rows) {
+    try {
+      return CompletableFuture.completedFuture(deidentifyUnaryRow(rows));
+    } catch (Exception exception) {
+      return CompletableFuture.failedFuture(exception);
+    }
+  }
+
+  /** Override to reidentify without blocking the calling thread. */
+  protected CompletableFuture<List<String>> reidentifyUnaryRowAsync(List<String> rows) {
+    try {
+      return CompletableFuture.completedFuture(reidentifyUnaryRow(rows));
+    } catch (Exception exception) {
+      return CompletableFuture.failedFuture(exception);
+    }
+  }
+
+  /** Waits for the result of the future, rethrowing the exception it failed with. */
+  protected static <T> T await(CompletableFuture<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException executionException) {
+      if (executionException.getCause() instanceof Exception cause) {
+        throw cause;
+      }
+      throw executionException;
+    }
+  }
 }
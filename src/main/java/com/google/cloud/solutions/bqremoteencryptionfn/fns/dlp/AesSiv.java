@@ -0,0 +1,180 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Deterministic authenticated encryption using AES-SIV.
+ *
+ * <p>Instances initialize their ciphers once and are not thread-safe.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc5297">RFC 5297</a>
+ */
+final class AesSiv {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
+
+  private final Cipher macCipher;
+  private final Cipher ctrCipher;
+  private final SecretKeySpec ctrKey;
+
+  private final byte[] subKey1;
+  private final byte[] subKey2;
+
+  /**
+   * Creates an AES-SIV instance for the key.
+   *
+   * @param key 32, 48 or 64 bytes, the first half is used for S2V and the second half for CTR.
+   */
+  AesSiv(byte[] key) throws GeneralSecurityException {
+    checkArgument(
+        key.length == 32 || key.length == 48 || key.length == 64,
+        "AES-SIV key must be 32, 48 or 64 bytes. Found %s",
+        key.length);
+
+    var half = key.length / 2;
+
+    this.macCipher = Cipher.getInstance("AES/ECB/NoPadding");
+    this.macCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, half, "AES"));
+
+    this.ctrCipher = Cipher.getInstance("AES/CTR/NoPadding");
+    this.ctrKey = new SecretKeySpec(key, half, half, "AES");
+
+    this.subKey1 = dbl(macCipher.doFinal(ZERO_BLOCK));
+    this.subKey2 = dbl(subKey1);
+  }
+
+  /** Returns the synthetic IV followed by the ciphertext. */
+  byte[] encrypt(byte[] plaintext, byte[]... associatedData) throws GeneralSecurityException {
+    var iv = s2v(plaintext, associatedData);
+
+    var output = Arrays.copyOf(iv, BLOCK_SIZE + plaintext.length);
+    ctr(iv).doFinal(plaintext, 0, plaintext.length, output, BLOCK_SIZE);
+    return output;
+  }
+
+  /** Returns the plaintext after verifying the synthetic IV. */
+  byte[] decrypt(byte[] ciphertext, byte[]... associatedData) throws GeneralSecurityException {
+    if (ciphertext.length < BLOCK_SIZE) {
+      throw new AEADBadTagException("Ciphertext shorter than synthetic IV");
+    }
+
+    var iv = Arrays.copyOf(ciphertext, BLOCK_SIZE);
+    var plaintext = ctr(iv).doFinal(ciphertext, BLOCK_SIZE, ciphertext.length - BLOCK_SIZE);
+
+    if (!MessageDigest.isEqual(iv, s2v(plaintext, associatedData))) {
+      throw new AEADBadTagException("AES-SIV synthetic IV mismatch");
+    }
+
+    return plaintext;
+  }
+
+  private Cipher ctr(byte[] iv) throws GeneralSecurityException {
+    var counter = iv.clone();
+    counter[8] &= 0x7f;
+    counter[12] &= 0x7f;
+
+    ctrCipher.init(Cipher.ENCRYPT_MODE, ctrKey, new IvParameterSpec(counter));
+    return ctrCipher;
+  }
+
+  private byte[] s2v(byte[] plaintext, byte[]... associatedData) throws GeneralSecurityException {
+    var d = cmac(ZERO_BLOCK);
+
+    for (var data : associatedData) {
+      d = xor(dbl(d), cmac(data));
+    }
+
+    byte[] t;
+    if (plaintext.length >= BLOCK_SIZE) {
+      t = plaintext.clone();
+      var offset = plaintext.length - BLOCK_SIZE;
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        t[offset + i] ^= d[i];
+      }
+    } else {
+      t = xor(dbl(d), pad(plaintext));
+    }
+
+    return cmac(t);
+  }
+
+  private byte[] cmac(byte[] message) throws GeneralSecurityException {
+    var blocks = Math.max(1, (message.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    var lastComplete = message.length > 0 && message.length % BLOCK_SIZE == 0;
+
+    var x = new byte[BLOCK_SIZE];
+
+    for (int block = 0; block < blocks - 1; block++) {
+      for (int i = 0; i < BLOCK_SIZE; i++) {
+        x[i] ^= message[block * BLOCK_SIZE + i];
+      }
+      x = macCipher.doFinal(x);
+    }
+
+    var lastBlock =
+        lastComplete
+            ? xor(Arrays.copyOfRange(message, (blocks - 1) * BLOCK_SIZE, message.length), subKey1)
+            : xor(
+                pad(Arrays.copyOfRange(message, (blocks - 1) * BLOCK_SIZE, message.length)),
+                subKey2);
+
+    return macCipher.doFinal(xor(x, lastBlock));
+  }
+
+  private static byte[] pad(byte[] partial) {
+    var padded = Arrays.copyOf(partial, BLOCK_SIZE);
+    padded[partial.length] = (byte) 0x80;
+    return padded;
+  }
+
+  private static byte[] dbl(byte[] block) {
+    var doubled = new byte[BLOCK_SIZE];
+    var carry = 0;
+
+    for (int i = BLOCK_SIZE - 1; i >= 0; i--) {
+      var value = block[i] & 0xff;
+      doubled[i] = (byte) ((value << 1) | carry);
+      carry = value >>> 7;
+    }
+
+    if (carry != 0) {
+      doubled[BLOCK_SIZE - 1] ^= (byte) 0x87;
+    }
+
+    return doubled;
+  }
+
+  private static byte[] xor(byte[] first, byte[] second) {
+    var result = new byte[BLOCK_SIZE];
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      result[i] = (byte) (first[i] ^ second[i]);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.solutions.bqremoteencryptionfn.RetryableTransformException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * Circuit breaker for the DLP requests sent to one DLP endpoint, so that calls fail immediately
+ * while DLP is degraded instead of waiting through retries and splits.
+ *
+ * <p>The breaker opens when the failure or slow call rate of the last {@link
+ * Settings#windowSize()} requests crosses its threshold. While open, new calls are rejected with a
+ * {@link RetryableTransformException} for {@link Settings#openDuration()}, after which {@link
+ * Settings#halfOpenProbes()} requests are let through as probes. The breaker closes when that many
+ * requests succeed, and opens again on the first failure.
+ *
+ * <p>Each DLP request, including retries, hedges and splits, acquires its own permission, so a
+ * probe is a single request, whatever the size of the call sending it. The outcome of a request is
+ * only counted in the state that permitted it, e.g. a request sent before the breaker opened
+ * doesn't close the breaker by succeeding while it is half-open.
+ *
+ * <p>Only backend failures are counted, e.g. a request rejected as too large is not a failure.
+ */
+public final class DlpCircuitBreaker {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final ImmutableSet<StatusCode.Code> BACKEND_FAILURE_CODES =
+      ImmutableSet.of(
+          StatusCode.Code.UNAVAILABLE,
+          StatusCode.Code.DEADLINE_EXCEEDED,
+          StatusCode.Code.RESOURCE_EXHAUSTED,
+          StatusCode.Code.INTERNAL);
+
+  private static final DlpCircuitBreaker DISABLED =
+      new DlpCircuitBreaker("disabled", null, (name, from, to) -> {}, System::nanoTime);
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /** Thresholds of a circuit breaker, the rates are fractions of the requests in the window. */
+  public record Settings(
+      int windowSize,
+      int minimumCalls,
+      double failureRateThreshold,
+      Duration slowCallDuration,
+      double slowCallRateThreshold,
+      Duration openDuration,
+      int halfOpenProbes) {
+
+    public Settings {
+      checkArgument(
+          minimumCalls > 0 && minimumCalls <= windowSize,
+          "Provided minimumCalls (%s) should be between 1 and windowSize (%s)",
+          minimumCalls,
+          windowSize);
+      checkArgument(
+          halfOpenProbes > 0, "Provided halfOpenProbes (%s) should be positive", halfOpenProbes);
+    }
+  }
+
+  /**
+   * Permission to send one DLP request, to report with its outcome.
+   *
+   * @param generation identifies the state that granted the permission, as the number of state
+   *     changes of the breaker then.
+   * @param probe true when the request is one of the half-open probes.
+   */
+  public record Permission(long generation, boolean probe) {}
+
+  /** Notified on every state change of a breaker, e.g. to count the transitions. */
+  public interface StateListener {
+    void onStateChange(String name, State from, State to);
+  }
+
+  private final String name;
+  @Nullable private final Settings settings;
+  private final StateListener stateListener;
+  private final LongSupplier nanoClock;
+
+  /** Outcomes of the recent requests, as a ring of {@code windowSize} entries. */
+  private final Outcome[] outcomes;
+
+  private int outcomesCount;
+  private int nextOutcome;
+  private int failuresCount;
+  private int slowCallsCount;
+
+  private State state;
+  private long generation;
+  private long stateSinceNanos;
+  private int probesIssued;
+  private int probeSuccesses;
+
+  DlpCircuitBreaker(
+      String name,
+      @Nullable Settings settings,
+      StateListener stateListener,
+      LongSupplier nanoClock) {
+    this.name = name;
+    this.settings = settings;
+    this.stateListener = stateListener;
+    this.nanoClock = nanoClock;
+    this.outcomes = new Outcome[settings == null ? 0 : settings.windowSize()];
+    this.state = State.CLOSED;
+    this.stateSinceNanos = nanoClock.getAsLong();
+  }
+
+  /** Returns a breaker that never opens. */
+  public static DlpCircuitBreaker disabled() {
+    return DISABLED;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  public synchronized State state() {
+    return state;
+  }
+
+  /**
+   * Checks, without taking a probe, that a request of a new call would be let through, e.g. to
+   * reject the call before preparing its requests.
+   *
+   * @throws RetryableTransformException when the breaker is open, or half-open with all the probes
+   *     in flight.
+   */
+  public synchronized void checkPermission() {
+    if (settings == null || state == State.CLOSED) {
+      return;
+    }
+
+    var elapsedNanos = nanoClock.getAsLong() - stateSinceNanos;
+    if (elapsedNanos >= settings.openDuration().toNanos()
+        || (state == State.HALF_OPEN && probesIssued < settings.halfOpenProbes())) {
+      return;
+    }
+
+    throw rejection();
+  }
+
+  /**
+   * Checks that a new request can be sent to DLP, moving to half-open once the open duration
+   * elapsed, where the request takes one of the probes.
+   *
+   * @return the permission to report with the outcome of the request.
+   * @throws RetryableTransformException when the breaker is open, or half-open with all the probes
+   *     in flight.
+   */
+  public synchronized Permission acquirePermission() {
+    if (settings == null || state == State.CLOSED) {
+      return new Permission(generation, /* probe= */ false);
+    }
+
+    var elapsedNanos = nanoClock.getAsLong() - stateSinceNanos;
+    var waitElapsed = elapsedNanos >= settings.openDuration().toNanos();
+
+    if (state == State.OPEN && waitElapsed) {
+      transitionTo(State.HALF_OPEN);
+    } else if (state == State.HALF_OPEN && waitElapsed) {
+      // The earlier probes ended without any DLP response, let new probes through, and ignore
+      // the late responses of the earlier ones.
+      generation++;
+      stateSinceNanos = nanoClock.getAsLong();
+      probesIssued = 0;
+      probeSuccesses = 0;
+    }
+
+    if (state == State.HALF_OPEN && probesIssued < settings.halfOpenProbes()) {
+      probesIssued++;
+      return new Permission(generation, /* probe= */ true);
+    }
+
+    throw rejection();
+  }
+
+  private RetryableTransformException rejection() {
+    return new RetryableTransformException(
+        String.format("DLP circuit (%s) is %s, retry later", name, state));
+  }
+
+  /** Returns true when new DLP requests are rejected, e.g. to stop retrying in-flight calls. */
+  public synchronized boolean isOpen() {
+    return state == State.OPEN;
+  }
+
+  /**
+   * Records a DLP response received after the provided latency, ignored when the permission was
+   * granted in an earlier state.
+   */
+  public synchronized void onSuccess(Permission permission, Duration latency) {
+    if (settings == null || !isCurrent(permission)) {
+      return;
+    }
+
+    var slow = latency.compareTo(settings.slowCallDuration()) >= 0;
+
+    if (state == State.HALF_OPEN) {
+      if (slow) {
+        transitionTo(State.OPEN);
+      } else if (++probeSuccesses >= settings.halfOpenProbes()) {
+        transitionTo(State.CLOSED);
+      }
+      return;
+    }
+
+    record(slow ? Outcome.SLOW : Outcome.SUCCESS);
+  }
+
+  /**
+   * Records a failed DLP request, ignoring the errors that don't show a backend failure and the
+   * requests permitted in an earlier state.
+   */
+  public synchronized void onFailure(Permission permission, Throwable error) {
+    if (settings == null || !isCurrent(permission) || !isBackendFailure(error)) {
+      return;
+    }
+
+    if (state == State.HALF_OPEN) {
+      transitionTo(State.OPEN);
+      return;
+    }
+
+    record(Outcome.FAILURE);
+  }
+
+  /** Returns true when the permission was granted in the current state, as a probe if half-open. */
+  private boolean isCurrent(Permission permission) {
+    return permission.generation() == generation
+        && (state != State.HALF_OPEN || permission.probe());
+  }
+
+  private void record(Outcome outcome) {
+    if (outcomesCount == outcomes.length) {
+      var evicted = outcomes[nextOutcome];
+      failuresCount -= evicted == Outcome.FAILURE ? 1 : 0;
+      slowCallsCount -= evicted == Outcome.SLOW ? 1 : 0;
+    } else {
+      outcomesCount++;
+    }
+
+    outcomes[nextOutcome] = outcome;
+    nextOutcome = (nextOutcome + 1) % outcomes.length;
+    failuresCount += outcome == Outcome.FAILURE ? 1 : 0;
+    slowCallsCount += outcome == Outcome.SLOW ? 1 : 0;
+
+    if (state == State.CLOSED
+        && outcomesCount >= settings.minimumCalls()
+        && ((double) failuresCount / outcomesCount >= settings.failureRateThreshold()
+            || (double) slowCallsCount / outcomesCount >= settings.slowCallRateThreshold())) {
+      logger.atWarning().log(
+          "Opening DLP circuit (%s): %s failed and %s slow of %s requests",
+          name, failuresCount, slowCallsCount, outcomesCount);
+      transitionTo(State.OPEN);
+    }
+  }
+
+  private void transitionTo(State newState) {
+    var oldState = state;
+    state = newState;
+    generation++;
+    stateSinceNanos = nanoClock.getAsLong();
+    probesIssued = 0;
+    probeSuccesses = 0;
+
+    if (newState == State.CLOSED) {
+      outcomesCount = 0;
+      nextOutcome = 0;
+      failuresCount = 0;
+      slowCallsCount = 0;
+    }
+
+    logger.atInfo().log("DLP circuit (%s): %s -> %s", name, oldState, newState);
+    stateListener.onStateChange(name, oldState, newState);
+  }
+
+  private static boolean isBackendFailure(Throwable error) {
+    return error instanceof ApiException apiException
+        && BACKEND_FAILURE_CODES.contains(apiException.getStatusCode().getCode());
+  }
+
+  private enum Outcome {
+    SUCCESS,
+    SLOW,
+    FAILURE
+  }
+}
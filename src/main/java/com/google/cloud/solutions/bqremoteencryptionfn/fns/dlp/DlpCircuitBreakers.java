@@ -0,0 +1,139 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpCircuitBreaker.Settings;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpCircuitBreaker.State;
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds one {@link DlpCircuitBreaker} for each DLP location, configured using the {@code
+ * dlp.circuitBreaker.*} properties, and counts the state changes of all the breakers, which are
+ * exported as metrics.
+ */
+@Component
+@PropertySource("classpath:dlp.properties")
+public class DlpCircuitBreakers implements MeterBinder {
+
+  @Nullable private final Settings settings;
+  private final LongSupplier nanoClock;
+  private final Map<String, DlpCircuitBreaker> breakers = new ConcurrentHashMap<>();
+  private final EnumMap<State, AtomicLong> transitionCounts = new EnumMap<>(State.class);
+
+  @Autowired
+  public DlpCircuitBreakers(
+      @Value("${dlp.circuitBreaker.enabled}") boolean enabled,
+      @Value("${dlp.circuitBreaker.windowSize}") int windowSize,
+      @Value("${dlp.circuitBreaker.minimumCalls}") int minimumCalls,
+      @Value("${dlp.circuitBreaker.failureRateThreshold}") double failureRateThreshold,
+      @Value("${dlp.circuitBreaker.slowCallMillis}") long slowCallMillis,
+      @Value("${dlp.circuitBreaker.slowCallRateThreshold}") double slowCallRateThreshold,
+      @Value("${dlp.circuitBreaker.openMillis}") long openMillis,
+      @Value("${dlp.circuitBreaker.halfOpenProbes}") int halfOpenProbes) {
+    this(
+        enabled
+            ? new Settings(
+                windowSize,
+                minimumCalls,
+                failureRateThreshold,
+                Duration.ofMillis(slowCallMillis),
+                slowCallRateThreshold,
+                Duration.ofMillis(openMillis),
+                halfOpenProbes)
+            : null,
+        System::nanoTime);
+  }
+
+  DlpCircuitBreakers(@Nullable Settings settings, LongSupplier nanoClock) {
+    this.settings = settings;
+    this.nanoClock = nanoClock;
+    Arrays.stream(State.values()).forEach(state -> transitionCounts.put(state, new AtomicLong()));
+  }
+
+  /** Returns breakers that never open. */
+  public static DlpCircuitBreakers disabled() {
+    return new DlpCircuitBreakers(null, System::nanoTime);
+  }
+
+  /** Returns the breaker of the DLP location, e.g. global or us-central1. */
+  public DlpCircuitBreaker forLocation(String location) {
+    if (settings == null) {
+      return DlpCircuitBreaker.disabled();
+    }
+
+    return breakers.computeIfAbsent(
+        location,
+        name ->
+            new DlpCircuitBreaker(
+                name,
+                settings,
+                (breakerName, from, to) -> transitionCounts.get(to).incrementAndGet(),
+                nanoClock));
+  }
+
+  /** Returns the number of times any breaker moved to the state. */
+  public long transitionCount(State toState) {
+    return transitionCounts.get(toState).get();
+  }
+
+  /** Exports the state transition counts and the number of breakers in each state. */
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    for (var state : State.values()) {
+      var stateName = state.name().toLowerCase();
+
+      FunctionCounter.builder(
+              "bqfn.dlp.circuit.transitions", transitionCounts.get(state), AtomicLong::get)
+          .description("DLP circuit breaker changes to the state")
+          .tag("state", stateName)
+          .register(registry);
+
+      Gauge.builder(
+              "bqfn.dlp.circuits",
+              breakers,
+              breakersMap ->
+                  breakersMap.values().stream().filter(breaker -> breaker.state() == state).count())
+          .description("DLP circuit breakers in the state")
+          .tag("state", stateName)
+          .register(registry);
+    }
+  }
+
+  /** Returns the current state of the breaker of each location used so far. */
+  public ImmutableMap<String, State> states() {
+    return breakers.entrySet().stream()
+        .collect(toImmutableMap(Map.Entry::getKey, entry -> entry.getValue().state()));
+  }
+}
@@ -21,9 +21,22 @@ import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import java.lang.reflect.Field;
 import java.util.Map;
+import javax.annotation.Nullable;
 
-/** Configuration Model for request options in a BigQuery remote function call. */
-public record DlpConfig(String deidTemplate, String inspectTemplate) {
+/**
+ * Configuration Model for request options in a BigQuery remote function call.
+ *
+ * @param reidPrefilter when true, reidentify sends only the values containing a surrogate marker
+ *     to DLP and returns the other values unchanged.
+ * @param chunkOversizedValues when true, values larger than a DLP table cell are transformed in
+ *     chunks cut outside of findings instead of failing the call, if the findings can be inspected
+ *     with the inspect template or the info types of the deidentify template.
+ */
+public record DlpConfig(
+    String deidTemplate,
+    String inspectTemplate,
+    @Nullable Boolean reidPrefilter,
+    @Nullable Boolean chunkOversizedValues) {
 
   private static final Gson jsonMapper =
       new Gson()
@@ -32,6 +45,14 @@ public record DlpConfig(String deidTemplate, String inspectTemplate) {
               (Field f) -> "dlp-" + FieldNamingPolicy.LOWER_CASE_WITH_DASHES.translateName(f))
           .create();
 
+  public DlpConfig(String deidTemplate, String inspectTemplate) {
+    this(deidTemplate, inspectTemplate, null);
+  }
+
+  public DlpConfig(String deidTemplate, String inspectTemplate, @Nullable Boolean reidPrefilter) {
+    this(deidTemplate, inspectTemplate, reidPrefilter, null);
+  }
+
   public static DlpConfig fromJson(Map<String, String> nodeTree) {
     return jsonMapper.fromJson(jsonMapper.toJsonTree(nodeTree), DlpConfig.class);
   }
@@ -48,6 +69,14 @@ public record DlpConfig(String deidTemplate, String inspectTemplate) {
     return !Strings.isNullOrEmpty(deidTemplate);
   }
 
+  public boolean isReidPrefilterEnabled() {
+    return Boolean.TRUE.equals(reidPrefilter);
+  }
+
+  public boolean isChunkOversizedValuesEnabled() {
+    return Boolean.TRUE.equals(chunkOversizedValues);
+  }
+
   public String toJson() {
     return jsonMapper.toJson(this);
   }
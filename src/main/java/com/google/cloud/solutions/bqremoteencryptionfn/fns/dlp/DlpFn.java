@@ -16,16 +16,33 @@
 
 package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
 
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpRequestBatchExecutor.HOT_PATH_LOG_PERIOD_SECONDS;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.RequestCost;
 import com.google.cloud.solutions.bqremoteencryptionfn.TransformFnFactory;
 import com.google.cloud.solutions.bqremoteencryptionfn.fns.UnaryStringArgFn;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpTemplateCache.PreparedTemplate;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.privacy.dlp.v2.*;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Component;
@@ -34,6 +51,23 @@ import org.springframework.stereotype.Component;
  * Implements the Google Cloud DLP based tokenization using the provided Deidentify Templates. The
  * Function does not manage DLP batch sizes, which can potentially throw an error.
  *
+ * <p>When the local engine is enabled ({@code dlp.localEngine}), templates listed in {@code
+ * dlp.prefetchTemplates} whose transformations can be computed without inspection are reidentified
+ * in-process using {@link LocalDeidentifyEngine}, once a batch has been verified to produce the
+ * same output as DLP, and a sample of the later batches is still verified. Local deidentify output
+ * is written to BigQuery, so it additionally requires {@code dlp.localEngine.deidentify} and is
+ * verified separately from reidentify, see {@link LocalEngineRegistry}.
+ *
+ * <p>With a {@code dlp.rowWidth} above 1, the values are sent in wide tables, see {@link
+ * WideTableLayout}, and the template's config is sent inline with its record transformations
+ * repeated on every column.
+ *
+ * <p>Calls are rejected without contacting DLP while the {@link DlpCircuitBreaker} of the
+ * template's location is open.
+ *
+ * <p>A call starts on a setup thread, which creates the DLP client and fetches the template when
+ * not cached, so that the request thread is not blocked before the DLP requests are sent.
+ *
  * <p>
  *
  * @see <a href="https://cloud.google.com/dlp/docs/creating-templates-deid">Deidentify Templates</a>
@@ -41,12 +75,22 @@ import org.springframework.stereotype.Component;
 public final class DlpFn extends UnaryStringArgFn {
   public static final String FN_NAME = "dlp";
 
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
   private static final Pattern TEMPLATE_LOCATION_REGEX =
       Pattern.compile("^projects/(?<project>[^/]+)/locations/(?<location>[^/]+)");
 
   /** Factory Interface to manage client creation. */
   public interface DlpClientFactory {
     DlpServiceClient newClient() throws Exception;
+
+    /**
+     * Returns a client for the DLP endpoint serving the location of a template, uses the default
+     * client unless overridden.
+     */
+    default DlpServiceClient newClient(String location) throws Exception {
+      return newClient();
+    }
   }
 
   @Component
@@ -57,17 +101,70 @@ public final class DlpFn extends UnaryStringArgFn {
     private final int requestCellCount;
 
     private final int requestBytes;
+    private final int rowWidth;
+    private final int maxConcurrentRequests;
     private final DlpClientFactory dlpClientFactory;
 
+    @Nullable private final LocalEngineRegistry localEngines;
+    private final boolean localDeidentifyEnabled;
+    private final DlpTemplateCache templateCache;
+    private final DlpRetryPolicy retryPolicy;
+    private final DlpCircuitBreakers circuitBreakers;
+    private final DlpMetrics metrics;
+
+    /** Unbounded, as its tasks are bounded by the calls in progress on the request threads. */
+    private final Executor setupExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("dlp-setup-%d").setDaemon(true).build());
+
+    @Autowired
     public DlpTransformFnFactory(
         @Value("${dlp.valueColName}") String dlpColName,
         @Value("${dlp.requestCellCount}") int requestCellCount,
         @Value("${dlp.requestBytes}") int requestBytes,
-        DlpClientFactory dlpClientFactory) {
+        @Value("${dlp.localEngine}") boolean localEngineEnabled,
+        @Value("${dlp.localEngine.deidentify}") boolean localDeidentifyEnabled,
+        @Value("${dlp.rowWidth}") int rowWidth,
+        @Value("${dlp.maxConcurrentRequests}") int maxConcurrentRequests,
+        DlpClientFactory dlpClientFactory,
+        DlpTemplateCache templateCache,
+        DlpRetryPolicy retryPolicy,
+        DlpCircuitBreakers circuitBreakers,
+        DlpMetrics metrics) {
       this.dlpColName = dlpColName;
       this.requestCellCount = requestCellCount;
       this.requestBytes = requestBytes;
+      this.rowWidth = rowWidth;
+      this.maxConcurrentRequests = maxConcurrentRequests;
       this.dlpClientFactory = dlpClientFactory;
+      this.localEngines =
+          localEngineEnabled ? new LocalEngineRegistry().bindTo(metrics.registry()) : null;
+      this.localDeidentifyEnabled = localEngineEnabled && localDeidentifyEnabled;
+      this.templateCache = templateCache;
+      this.retryPolicy = retryPolicy;
+      this.circuitBreakers = circuitBreakers;
+      this.metrics = metrics;
+    }
+
+    public DlpTransformFnFactory(
+        String dlpColName,
+        int requestCellCount,
+        int requestBytes,
+        boolean localEngineEnabled,
+        DlpClientFactory dlpClientFactory) {
+      this(
+          dlpColName,
+          requestCellCount,
+          requestBytes,
+          localEngineEnabled,
+          /* localDeidentifyEnabled= */ localEngineEnabled,
+          /* rowWidth= */ 1,
+          DlpRequestBatchExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS,
+          dlpClientFactory,
+          DlpTemplateCache.disabled(),
+          DlpRetryPolicy.noRetries(),
+          DlpCircuitBreakers.disabled(),
+          DlpMetrics.noop());
     }
 
     @Override
@@ -75,9 +172,18 @@ public final class DlpFn extends UnaryStringArgFn {
       return new DlpFn(
           requestCellCount,
           requestBytes,
+          rowWidth,
+          maxConcurrentRequests,
           dlpColName,
           DlpConfig.fromJson(options),
-          dlpClientFactory);
+          dlpClientFactory,
+          localEngines,
+          localDeidentifyEnabled,
+          templateCache,
+          retryPolicy,
+          circuitBreakers,
+          metrics,
+          setupExecutor);
     }
 
     @Override
@@ -91,71 +197,346 @@ public final class DlpFn extends UnaryStringArgFn {
   private final int requestCellCount;
 
   private final int requestBytes;
+  private final int rowWidth;
+  private final int maxConcurrentRequests;
   private final DlpConfig dlpConfig;
   private final DlpClientFactory dlpClientFactory;
+  @Nullable private final LocalEngineRegistry localEngines;
+  private final boolean localDeidentifyEnabled;
+  private final DlpTemplateCache templateCache;
+  private final DlpRetryPolicy retryPolicy;
+  private final DlpCircuitBreakers circuitBreakers;
+  private final DlpMetrics metrics;
+  private final Executor setupExecutor;
 
   private DlpFn(
       int requestCellCount,
       int requestBytes,
+      int rowWidth,
+      int maxConcurrentRequests,
       String dlpColName,
       DlpConfig dlpConfig,
-      DlpClientFactory dlpClientFactory) {
+      DlpClientFactory dlpClientFactory,
+      @Nullable LocalEngineRegistry localEngines,
+      boolean localDeidentifyEnabled,
+      DlpTemplateCache templateCache,
+      DlpRetryPolicy retryPolicy,
+      DlpCircuitBreakers circuitBreakers,
+      DlpMetrics metrics,
+      Executor setupExecutor) {
     this.requestCellCount = requestCellCount;
     this.requestBytes = requestBytes;
+    this.rowWidth = rowWidth;
+    this.maxConcurrentRequests = maxConcurrentRequests;
     this.dlpColName = dlpColName;
     this.dlpConfig = dlpConfig;
-    this.dlpClientFactory = dlpClientFactory;
+    this.dlpClientFactory =
+        () -> dlpClientFactory.newClient(extractDlpLocation(dlpConfig.deidTemplate()));
+    this.localEngines = localEngines;
+    this.localDeidentifyEnabled = localDeidentifyEnabled;
+    this.templateCache = templateCache;
+    this.retryPolicy = retryPolicy;
+    this.circuitBreakers = circuitBreakers;
+    this.metrics = metrics;
+    this.setupExecutor = setupExecutor;
   }
 
   @Override
   public List<String> deidentifyUnaryRow(List<String> rows) throws Exception {
+    return await(deidentifyUnaryRowAsync(rows));
+  }
+
+  @Override
+  public List<String> reidentifyUnaryRow(List<String> rows) throws Exception {
+    return await(reidentifyUnaryRowAsync(rows));
+  }
+
+  @Override
+  protected CompletableFuture<List<String>> deidentifyUnaryRowAsync(List<String> rows) {
+    return startOnSetupThread(() -> startDeidentify(rows));
+  }
+
+  @Override
+  protected CompletableFuture<List<String>> reidentifyUnaryRowAsync(List<String> rows) {
+    return startOnSetupThread(() -> startReidentify(rows));
+  }
+
+  /**
+   * Runs the start of the call on the setup executor, with the observation and the cost of the
+   * call current as on the request thread, for the DLP requests to be traced and counted.
+   */
+  private CompletableFuture<List<String>> startOnSetupThread(
+      Callable<CompletableFuture<List<String>>> start) {
+    var observation = metrics.observationRegistry().getCurrentObservation();
+    var cost = RequestCost.current();
+
+    return CompletableFuture.supplyAsync(
+            () -> {
+              try (var unused = observation == null ? null : observation.openScope()) {
+                return cost.callAttached(start);
+              } catch (Exception exception) {
+                return CompletableFuture.<List<String>>failedFuture(exception);
+              }
+            },
+            setupExecutor)
+        .thenCompose(future -> future);
+  }
+
+  private CompletableFuture<List<String>> startDeidentify(List<String> rows) throws Exception {
+    var localEntry =
+        localDeidentifyEnabled ? findLocalEngine() : Optional.<LocalEngineRegistry.Entry>empty();
+
+    if (localEntry.isPresent()) {
+      var localRows =
+          localEntry.get().deidentifyEngine().flatMap(engine -> engine.deidentify(rows));
+
+      if (localRows.isPresent()) {
+        var verifier = localEntry.get().deidentifyVerifier();
+        if (verifier.skipsVerification()) {
+          return CompletableFuture.completedFuture(localRows.get());
+        }
+
+        return dlpDeidentify(rows)
+            .thenApply(
+                dlpRows -> {
+                  verifier.recordVerification(localRows.get().equals(dlpRows));
+                  return dlpRows;
+                });
+      }
+    }
+
+    return dlpDeidentify(rows);
+  }
+
+  private CompletableFuture<List<String>> startReidentify(List<String> rows) throws Exception {
+    // A token that decrypts locally may still not be DLP's, e.g. with a different key encoding,
+    // so the local output is verified against DLP like the deidentify output.
+    var localEntry = findLocalEngine();
+
+    if (localEntry.isPresent()) {
+      var localRows =
+          localEntry.get().reidentifyEngine().flatMap(engine -> engine.reidentify(rows));
+
+      if (localRows.isPresent()) {
+        var verifier = localEntry.get().reidentifyVerifier();
+        if (verifier.skipsVerification()) {
+          return CompletableFuture.completedFuture(localRows.get());
+        }
+
+        return dlpReidentify(rows)
+            .thenApply(
+                dlpRows -> {
+                  verifier.recordVerification(localRows.get().equals(dlpRows));
+                  return dlpRows;
+                });
+      }
+    }
+
+    return dlpReidentify(rows);
+  }
+
+  /**
+   * Returns the local engine of the template's current version, which requires the template to be
+   * cached to identify its version without fetching it on every call.
+   */
+  private Optional<LocalEngineRegistry.Entry> findLocalEngine() throws Exception {
+    if (localEngines == null
+        || dlpConfig.hasInspectTemplate()
+        || !templateCache.templateNames().contains(dlpConfig.deidTemplate())) {
+      return Optional.empty();
+    }
+
+    var template = templateCache.get(dlpConfig.deidTemplate(), dlpClientFactory);
+    return Optional.of(localEngines.get(template, dlpColName));
+  }
+
+  private CompletableFuture<List<String>> dlpDeidentify(List<String> rows) throws Exception {
+    circuitBreaker().checkPermission();
+
+    var requestPrototypeBuilder =
+        DeidentifyContentRequest.newBuilder()
+            .setParent(extractDlpParent(dlpConfig.deidTemplate()))
+            .setInspectTemplateName(
+                dlpConfig.hasInspectTemplate() ? dlpConfig.inspectTemplate() : "");
+
+    if (rowWidth > 1) {
+      try (var dlpClient = dlpClientFactory.newClient()) {
+        requestPrototypeBuilder.setDeidentifyConfig(
+            WideTableLayout.expandConfig(
+                templateCache.get(dlpConfig.deidTemplate(), dlpClient).deidentifyConfig(),
+                dlpColName,
+                rowWidth));
+      }
+    } else {
+      requestPrototypeBuilder.setDeidentifyTemplateName(dlpConfig.deidTemplate());
+    }
+
+    var requestPrototype = requestPrototypeBuilder.build();
+
     return DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
         .setDlpColumnName(dlpColName)
         .setRequestCellCount(requestCellCount)
         .setRequestMaxBytes(requestBytes)
+        .setRowWidth(rowWidth)
+        .setMaxConcurrentRequests(maxConcurrentRequests)
+        .setRetryPolicy(retryPolicy)
+        .setCircuitBreaker(circuitBreaker())
+        .setMetrics(metrics)
         .setDlpClientFactory(dlpClientFactory)
-        .setDlpCallFnFactory(dlpClient -> dlpClient::deidentifyContent)
+        .setOversizedValueChunker(
+            dlpConfig.isChunkOversizedValuesEnabled()
+                ? deidentifyChunker(requestPrototype.getParent())
+                : null)
+        .setDlpFutureCallFnFactory(
+            dlpClient -> dlpClient.deidentifyContentCallable()::futureCall)
         .setTableToDlpRequestFnFactory(
             dlpClient ->
                 table ->
-                    DeidentifyContentRequest.newBuilder()
-                        .setParent(extractDlpParent(dlpConfig.deidTemplate()))
-                        .setDeidentifyTemplateName(dlpConfig.deidTemplate())
-                        .setInspectTemplateName(
-                            dlpConfig.hasInspectTemplate() ? dlpConfig.inspectTemplate() : "")
-                        .setItem(ContentItem.newBuilder().setTable(table).build())
+                    requestPrototype.toBuilder()
+                        .setItem(ContentItem.newBuilder().setTable(table))
                         .build())
         .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
         .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
         .build()
-        .process(rows);
+        .processAsync(rows);
   }
 
-  @Override
-  public List<String> reidentifyUnaryRow(List<String> rows) throws Exception {
+  /** Returns the circuit breaker of the DLP location serving the template. */
+  private DlpCircuitBreaker circuitBreaker() {
+    return circuitBreakers.forLocation(extractDlpLocation(dlpConfig.deidTemplate()));
+  }
+
+  /**
+   * Returns the chunker for oversized values, inspecting with the inspect template, or else with
+   * the info types of the deidentify template, to avoid splitting a finding across chunks.
+   *
+   * <p>Returns {@code null} when neither can be used, so oversized values fail as without chunking.
+   */
+  @Nullable
+  private OversizedValueChunker deidentifyChunker(String parent) throws Exception {
+    if (dlpConfig.hasInspectTemplate()) {
+      return OversizedValueChunker.withInspection(parent, dlpConfig.inspectTemplate());
+    }
+
+    var template = templateCache.get(dlpConfig.deidTemplate(), dlpClientFactory);
+    return OversizedValueChunker.forDeidentifyConfig(parent, template.deidentifyConfig())
+        .orElse(null);
+  }
+
+  /**
+   * Returns the chunker for oversized values, inspecting the surrogates, and the findings of the
+   * inspect template if any, to avoid splitting a surrogate across chunks.
+   *
+   * <p>Returns {@code null} when there is nothing to inspect, so oversized values fail as without
+   * chunking.
+   */
+  @Nullable
+  private OversizedValueChunker reidentifyChunker(
+      String parent, DlpReIdRequestMaker reidRequestMaker) {
+    var inspectConfig = reidRequestMaker.inspectConfig();
+    if (inspectConfig.isEmpty() && !dlpConfig.hasInspectTemplate()) {
+      return null;
+    }
+
+    return OversizedValueChunker.withInspection(
+        parent,
+        dlpConfig.hasInspectTemplate() ? dlpConfig.inspectTemplate() : "",
+        inspectConfig.orElse(InspectConfig.getDefaultInstance()));
+  }
+
+  /** Reidentifies the rows using a client that is closed once the returned future completes. */
+  private CompletableFuture<List<String>> dlpReidentify(List<String> rows) throws Exception {
+    circuitBreaker().checkPermission();
+
+    var dlpClient = dlpClientFactory.newClient();
+
+    try {
+      return dlpReidentify(dlpClient, rows).whenComplete((result, error) -> dlpClient.close());
+    } catch (Exception exception) {
+      dlpClient.close();
+      throw exception;
+    }
+  }
+
+  private CompletableFuture<List<String>> dlpReidentify(
+      DlpServiceClient dlpClient, List<String> rows) {
+    var template = templateCache.get(dlpConfig.deidTemplate(), dlpClient);
+
+    var candidateIndexes = surrogateCandidateIndexes(template, rows);
+    if (candidateIndexes == null) {
+      return dlpReidentify(dlpClient, template, rows);
+    }
+
+    logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+        "reid prefilter: sending %s of %s rows to DLP", candidateIndexes.size(), rows.size());
+
+    if (candidateIndexes.isEmpty()) {
+      return CompletableFuture.completedFuture(rows);
+    }
+
+    return dlpReidentify(
+            dlpClient,
+            template,
+            candidateIndexes.stream().map(rows::get).collect(toImmutableList()))
+        .thenApply(
+            reidRows -> {
+              var results = new ArrayList<>(rows);
+              for (int i = 0; i < candidateIndexes.size(); i++) {
+                results.set(candidateIndexes.get(i), reidRows.get(i));
+              }
+              return results;
+            });
+  }
+
+  /**
+   * Returns the indexes of rows containing a surrogate marker, or {@code null} when the prefilter
+   * is disabled or the template's surrogates can't be detected reliably.
+   */
+  @Nullable
+  private List<Integer> surrogateCandidateIndexes(PreparedTemplate template, List<String> rows) {
+    if (!dlpConfig.isReidPrefilterEnabled() || template.surrogateMarkerFilter().isEmpty()) {
+      return null;
+    }
+
+    var markerFilter = template.surrogateMarkerFilter().get();
+    return IntStream.range(0, rows.size())
+        .filter(index -> markerFilter.test(rows.get(index)))
+        .boxed()
+        .collect(toImmutableList());
+  }
+
+  private CompletableFuture<List<String>> dlpReidentify(
+      DlpServiceClient dlpClient, PreparedTemplate template, List<String> rows) {
+    var reidRequestMaker =
+        rowWidth > 1
+            ? DlpReIdRequestMaker.forConfig(
+                WideTableLayout.expandConfig(template.deidentifyConfig(), dlpColName, rowWidth))
+            : template.reidRequestMaker();
+
+    var tableRequestFn =
+        reidRequestMaker.tableRequestFn(
+            template.parent(), dlpConfig.hasInspectTemplate() ? dlpConfig.inspectTemplate() : "");
+
     return DlpRequestBatchExecutor.<ReidentifyContentRequest, ReidentifyContentResponse>builder()
         .setDlpColumnName(dlpColName)
         .setRequestCellCount(requestCellCount)
         .setRequestMaxBytes(requestBytes)
+        .setRowWidth(rowWidth)
+        .setMaxConcurrentRequests(maxConcurrentRequests)
+        .setRetryPolicy(retryPolicy)
+        .setCircuitBreaker(circuitBreaker())
+        .setMetrics(metrics)
         .setDlpClientFactory(dlpClientFactory)
-        .setDlpCallFnFactory(dlpClient -> dlpClient::reidentifyContent)
-        .setTableToDlpRequestFnFactory(
-            dlpClient -> {
-              var deidentifyConfig =
-                  dlpClient.getDeidentifyTemplate(dlpConfig.deidTemplate()).getDeidentifyConfig();
-              return (table) ->
-                  DlpReIdRequestMaker.forConfig(deidentifyConfig)
-                      .makeRequest(ContentItem.newBuilder().setTable(table))
-                      .toBuilder()
-                      .setParent(extractDlpParent(dlpConfig.deidTemplate()))
-                      .setInspectTemplateName(
-                          dlpConfig.hasInspectTemplate() ? dlpConfig.inspectTemplate() : "")
-                      .build();
-            })
+        .setOversizedValueChunker(
+            dlpConfig.isChunkOversizedValuesEnabled()
+                ? reidentifyChunker(template.parent(), reidRequestMaker)
+                : null)
+        .setDlpFutureCallFnFactory(client -> client.reidentifyContentCallable()::futureCall)
+        .setTableToDlpRequestFnFactory(client -> tableRequestFn)
         .setDlpRequestToTableFn(reidRequest -> reidRequest.getItem().getTable())
         .setDlpResponseToTableFn(reidResponse -> reidResponse.getItem().getTable())
         .build()
-        .process(rows);
+        .processAsync(dlpClient, rows);
   }
 
   @Override
@@ -163,12 +544,14 @@ public final class DlpFn extends UnaryStringArgFn {
     return FN_NAME;
   }
 
-  private static String extractDlpParent(String dlpTemplateName) {
+  /** Returns the location of the template, e.g. global or us-central1. */
+  public static String extractDlpLocation(String dlpTemplateName) {
+    return matchTemplateName(dlpTemplateName).group("location");
+  }
 
-    var matcher = TEMPLATE_LOCATION_REGEX.matcher(dlpTemplateName);
-    if (!matcher.find()) {
-      throw new RuntimeException("Invalid DLP Template name");
-    }
+  static String extractDlpParent(String dlpTemplateName) {
+
+    var matcher = matchTemplateName(dlpTemplateName);
 
     var location = matcher.group("location");
 
@@ -180,4 +563,13 @@ public final class DlpFn extends UnaryStringArgFn {
 
     return parentBuilder.toString();
   }
+
+  private static Matcher matchTemplateName(String dlpTemplateName) {
+    var matcher = TEMPLATE_LOCATION_REGEX.matcher(dlpTemplateName);
+    if (!matcher.find()) {
+      throw new RuntimeException("Invalid DLP Template name");
+    }
+
+    return matcher;
+  }
 }
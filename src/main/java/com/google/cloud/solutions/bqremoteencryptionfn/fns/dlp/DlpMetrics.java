@@ -0,0 +1,130 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import com.google.api.gax.rpc.ApiException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records the DLP requests sent by the {@link DlpRequestBatchExecutor}: the number of sub-batch
+ * tables of each call, the latency of each request by status, and the splits, retries and hedges.
+ *
+ * <p>Also holds the {@link ObservationRegistry} used to trace the packing of the tables and each
+ * DLP request.
+ */
+@Component
+public class DlpMetrics {
+
+  private static final DlpMetrics NOOP = new DlpMetrics(new CompositeMeterRegistry());
+
+  private final MeterRegistry registry;
+  private final ObservationRegistry observationRegistry;
+  private final DistributionSummary subBatches;
+  private final Meter.MeterProvider<Timer> rpcTimers;
+  private final Counter splits;
+  private final Counter retries;
+  private final Counter hedges;
+
+  public DlpMetrics(MeterRegistry registry) {
+    this(registry, ObservationRegistry.NOOP);
+  }
+
+  @Autowired
+  public DlpMetrics(MeterRegistry registry, ObservationRegistry observationRegistry) {
+    this.registry = registry;
+    this.observationRegistry = observationRegistry;
+    this.subBatches =
+        DistributionSummary.builder("bqfn.dlp.subbatches")
+            .description("DLP request tables of a call")
+            .register(registry);
+    this.rpcTimers =
+        Timer.builder("bqfn.dlp.rpc")
+            .description("Latency of the DLP requests")
+            .withRegistry(registry);
+    this.splits =
+        Counter.builder("bqfn.dlp.splits")
+            .description("DLP request tables split in halves")
+            .register(registry);
+    this.retries =
+        Counter.builder("bqfn.dlp.retries")
+            .description("DLP requests retried after a transient error")
+            .register(registry);
+    this.hedges =
+        Counter.builder("bqfn.dlp.hedges")
+            .description("Duplicate DLP requests sent for a slow request")
+            .register(registry);
+  }
+
+  /** Returns metrics that are not exported. */
+  public static DlpMetrics noop() {
+    return NOOP;
+  }
+
+  MeterRegistry registry() {
+    return registry;
+  }
+
+  ObservationRegistry observationRegistry() {
+    return observationRegistry;
+  }
+
+  void recordSubBatches(int tablesCount) {
+    subBatches.record(tablesCount);
+  }
+
+  /** Records a DLP request, with the status code of its error or {@code OK}. */
+  void recordRpc(long latencyNanos, @Nullable Throwable error) {
+    rpcTimers.withTags("status", status(error)).record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordSplit() {
+    splits.increment();
+  }
+
+  void recordRetry() {
+    retries.increment();
+  }
+
+  void recordHedge() {
+    hedges.increment();
+  }
+
+  static String status(@Nullable Throwable error) {
+    if (error == null) {
+      return "OK";
+    }
+
+    if (error instanceof CancellationException) {
+      return "CANCELLED";
+    }
+
+    return error instanceof ApiException apiException
+        ? apiException.getStatusCode().getCode().name()
+        : "UNKNOWN";
+  }
+}
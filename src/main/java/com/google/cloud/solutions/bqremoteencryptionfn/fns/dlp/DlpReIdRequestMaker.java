@@ -19,6 +19,8 @@ package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.stream.Collectors.toList;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.privacy.dlp.v2.ContentItem;
 import com.google.privacy.dlp.v2.CustomInfoType;
 import com.google.privacy.dlp.v2.CustomInfoType.SurrogateType;
@@ -32,8 +34,10 @@ import com.google.privacy.dlp.v2.PrimitiveTransformation;
 import com.google.privacy.dlp.v2.PrimitiveTransformation.TransformationCase;
 import com.google.privacy.dlp.v2.RecordTransformations;
 import com.google.privacy.dlp.v2.ReidentifyContentRequest;
+import com.google.privacy.dlp.v2.Table;
 import com.google.privacy.dlp.v2.TransformationErrorHandling;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -52,19 +56,52 @@ public final class DlpReIdRequestMaker {
 
   private final DeidentifyConfig deidentifyConfig;
 
+  /** The request without the content item, built once and copied for every table. */
+  private final Supplier<ReidentifyContentRequest> requestPrototype;
+
   private DlpReIdRequestMaker(DeidentifyConfig deidentifyConfig) {
     this.deidentifyConfig = deidentifyConfig;
+    this.requestPrototype = Suppliers.memoize(this::makeRequestPrototype);
   }
 
   public static DlpReIdRequestMaker forConfig(DeidentifyConfig deidentifyConfig) {
     return new DlpReIdRequestMaker(deidentifyConfig);
   }
 
+  /**
+   * Computes the request prototype with the reidentify config and the surrogate custom
+   * info-types, which is otherwise computed on the first request.
+   *
+   * @throws RuntimeException when the config contains a transformation that can't be reversed
+   */
+  public DlpReIdRequestMaker precompute() {
+    requestPrototype.get();
+    return this;
+  }
+
   public ReidentifyContentRequest makeRequest(ContentItem.Builder itemBuilder) {
+    return requestPrototype.get().toBuilder().setItem(itemBuilder).build();
+  }
+
+  /**
+   * Returns a function making the reidentify request for a table, by copying a prototype request
+   * built once with the parent and the inspect template.
+   */
+  public Function<Table, ReidentifyContentRequest> tableRequestFn(
+      String parent, String inspectTemplateName) {
+    var prototype =
+        requestPrototype.get().toBuilder()
+            .setParent(parent)
+            .setInspectTemplateName(inspectTemplateName)
+            .build();
+
+    return table ->
+        prototype.toBuilder().setItem(ContentItem.newBuilder().setTable(table)).build();
+  }
+
+  private ReidentifyContentRequest makeRequestPrototype() {
     var requestBuilder =
-        ReidentifyContentRequest.newBuilder()
-            .setItem(itemBuilder)
-            .setReidentifyConfig(makeReIdentifyConfig());
+        ReidentifyContentRequest.newBuilder().setReidentifyConfig(makeReIdentifyConfig());
 
     var customInfoTypes = extractSurrogatesAsCustomInfoTypes();
 
@@ -76,6 +113,26 @@ public final class DlpReIdRequestMaker {
     return requestBuilder.build();
   }
 
+  /** Returns the inspect config detecting the surrogates, empty when none is annotated. */
+  public Optional<InspectConfig> inspectConfig() {
+    var prototype = requestPrototype.get();
+    return prototype.hasInspectConfig()
+        ? Optional.of(prototype.getInspectConfig())
+        : Optional.empty();
+  }
+
+  /**
+   * Returns the surrogate info-type names when every transformation annotates its output with a
+   * surrogate, so that values without any of the surrogate markers need no reidentification.
+   */
+  public Optional<List<String>> requiredSurrogateNames() {
+    var surrogateNames = extractSurrogateNames().distinct().collect(toList());
+
+    return surrogateNames.stream().anyMatch(name -> name == null || name.isBlank())
+        ? Optional.empty()
+        : Optional.of(surrogateNames);
+  }
+
   private List<CustomInfoType> extractSurrogatesAsCustomInfoTypes() {
 
     Function<String, CustomInfoType> makeCustomInfoType =
@@ -85,6 +142,15 @@ public final class DlpReIdRequestMaker {
                 .setSurrogateType(SurrogateType.newBuilder())
                 .build();
 
+    return extractSurrogateNames()
+        .distinct()
+        .filter(name -> (name != null && !name.isBlank()))
+        .map(makeCustomInfoType)
+        .collect(toList());
+  }
+
+  private Stream<String> extractSurrogateNames() {
+
     Function<FieldTransformation, List<String>> extractSurrogateFromField =
         (fieldTransformation) ->
             switch (fieldTransformation.getTransformationCase()) {
@@ -95,28 +161,20 @@ public final class DlpReIdRequestMaker {
               case TRANSFORMATION_NOT_SET -> throwUnknownTransformationException();
             };
 
-    Stream<String> surrogateNamesStream =
-        switch (deidentifyConfig.getTransformationCase()) {
-          case INFO_TYPE_TRANSFORMATIONS -> extractSurrogateName(
-              deidentifyConfig.getInfoTypeTransformations())
-              .stream();
-
-          case RECORD_TRANSFORMATIONS -> deidentifyConfig
-              .getRecordTransformations()
-              .getFieldTransformationsList()
-              .stream()
-              .map(extractSurrogateFromField)
-              .flatMap(List::stream);
+    return switch (deidentifyConfig.getTransformationCase()) {
+      case INFO_TYPE_TRANSFORMATIONS -> extractSurrogateName(
+          deidentifyConfig.getInfoTypeTransformations())
+          .stream();
 
-          case IMAGE_TRANSFORMATIONS,
-              TRANSFORMATION_NOT_SET -> throwUnknownTransformationException();
-        };
+      case RECORD_TRANSFORMATIONS -> deidentifyConfig
+          .getRecordTransformations()
+          .getFieldTransformationsList()
+          .stream()
+          .map(extractSurrogateFromField)
+          .flatMap(List::stream);
 
-    return surrogateNamesStream
-        .distinct()
-        .filter(name -> (name != null && !name.isBlank()))
-        .map(makeCustomInfoType)
-        .collect(toList());
+      case IMAGE_TRANSFORMATIONS, TRANSFORMATION_NOT_SET -> throwUnknownTransformationException();
+    };
   }
 
   private List<String> extractSurrogateName(InfoTypeTransformations infoTypeTransformations) {
@@ -17,22 +17,49 @@
 package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static java.util.stream.Collectors.toList;
 
+import com.google.api.core.ApiFuture;
 import com.google.api.gax.rpc.InvalidArgumentException;
 import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.FlightRecorderEvents;
+import com.google.cloud.solutions.bqremoteencryptionfn.RequestCost;
+import com.google.cloud.solutions.bqremoteencryptionfn.RetryableTransformException;
 import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.base.Utf8;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
 import com.google.privacy.dlp.v2.Table;
 import com.google.privacy.dlp.v2.Table.Row;
 import com.google.privacy.dlp.v2.Value;
+import com.google.protobuf.CodedOutputStream;
+import io.micrometer.observation.Observation;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import javax.annotation.Nullable;
 
 /**
  * Standard execution pattern for batching requests as per DLP request size limits.
@@ -48,14 +75,52 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
 
   public static final int REQUEST_MAX_BYTES = 500000;
 
+  /** Number of consecutive rows that are sorted by size before being packed into tables. */
+  public static final int DEFAULT_PACKING_WINDOW_SIZE = 1000;
+
+  /** Number of sub-batch requests of a call that are sent to DLP at the same time. */
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+  /**
+   * Seconds between two logs of the same per-request log site, as a busy instance sends thousands
+   * of requests per second. The {@link RequestCost} of each call reports the requests in full.
+   */
+  static final int HOT_PATH_LOG_PERIOD_SECONDS = 10;
+
+  /** Upper bound of the tags and length prefixes wrapping a value in a table row. */
+  private static final int ROW_FRAMING_BYTES = 12;
+
+  /** Number of times a table is halved when DLP asks for smaller requests. */
+  private static final int MAX_SPLIT_DEPTH = 10;
+
   private final int requestCellCount;
 
   private final int requestMaxBytes;
 
+  private final int packingWindowSize;
+
+  /** Number of values in each table row, see {@link WideTableLayout}. */
+  private final int rowWidth;
+
+  private final int maxConcurrentRequests;
+
+  private final DlpRetryPolicy retryPolicy;
+
+  private final DlpCircuitBreaker circuitBreaker;
+
+  private final DlpMetrics metrics;
+
   private final String dlpColumnName;
   private final DlpClientFactory dlpClientFactory;
+  @Nullable private final OversizedValueChunker oversizedValueChunker;
 
+  @Nullable
   private final Function<DlpServiceClient, Function<DlpRequestT, DlpResponseT>> dlpCallFnFactory;
+
+  @Nullable
+  private final Function<DlpServiceClient, Function<DlpRequestT, ApiFuture<DlpResponseT>>>
+      dlpFutureCallFnFactory;
+
   private final Function<DlpServiceClient, Function<Table, DlpRequestT>> tableToDlpRequestFnFactory;
 
   private final Function<DlpRequestT, Table> dlpRequestToTableFn;
@@ -64,17 +129,40 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
   private DlpRequestBatchExecutor(
       int requestCellCount,
       int requestMaxBytes,
+      int packingWindowSize,
+      int rowWidth,
+      int maxConcurrentRequests,
+      DlpRetryPolicy retryPolicy,
+      DlpCircuitBreaker circuitBreaker,
+      DlpMetrics metrics,
       String dlpColumnName,
       DlpClientFactory dlpClientFactory,
-      Function<DlpServiceClient, Function<DlpRequestT, DlpResponseT>> dlpCallFnFactory,
+      @Nullable OversizedValueChunker oversizedValueChunker,
+      @Nullable Function<DlpServiceClient, Function<DlpRequestT, DlpResponseT>> dlpCallFnFactory,
+      @Nullable
+          Function<DlpServiceClient, Function<DlpRequestT, ApiFuture<DlpResponseT>>>
+              dlpFutureCallFnFactory,
       Function<DlpServiceClient, Function<Table, DlpRequestT>> tableToDlpRequestFnFactory,
       Function<DlpRequestT, Table> dlpRequestToTableFn,
       Function<DlpResponseT, Table> dlpResponseToTableFn) {
+    checkArgument(
+        maxConcurrentRequests > 0,
+        "Provided maxConcurrentRequests (%s) should be positive",
+        maxConcurrentRequests);
+
     this.requestCellCount = requestCellCount;
     this.requestMaxBytes = requestMaxBytes;
+    this.packingWindowSize = packingWindowSize;
+    this.rowWidth = rowWidth;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.retryPolicy = retryPolicy;
+    this.circuitBreaker = circuitBreaker;
+    this.metrics = metrics;
     this.dlpColumnName = dlpColumnName;
     this.dlpClientFactory = dlpClientFactory;
+    this.oversizedValueChunker = oversizedValueChunker;
     this.dlpCallFnFactory = dlpCallFnFactory;
+    this.dlpFutureCallFnFactory = dlpFutureCallFnFactory;
     this.tableToDlpRequestFnFactory = tableToDlpRequestFnFactory;
     this.dlpRequestToTableFn = dlpRequestToTableFn;
     this.dlpResponseToTableFn = dlpResponseToTableFn;
@@ -83,69 +171,484 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
   public List<String> process(List<String> rows) throws Exception {
 
     try (var dlpClient = dlpClientFactory.newClient()) {
+      return process(dlpClient, rows);
+    }
+  }
 
-      var requestMaker = tableToDlpRequestFnFactory.apply(dlpClient);
-      var rowToTableFn = rowsToTableFn();
-      var tableToRowsFn = new TableToRowsFn();
+  /** Processes the rows using the provided client, the caller is responsible to close it. */
+  public List<String> process(DlpServiceClient dlpClient, List<String> rows) {
+    try {
+      return processAsync(dlpClient, rows).join();
+    } catch (CompletionException completionException) {
+      Throwables.throwIfUnchecked(completionException.getCause());
+      throw new RuntimeException(completionException.getCause());
+    }
+  }
 
-      return rowToTableFn.apply(rows).stream()
-          .map(requestMaker)
-          .map(new RetryingDlpCaller(dlpClient))
-          .flatMap(List::stream)
-          .map(dlpResponseToTableFn)
-          .map(tableToRowsFn)
-          .flatMap(List::stream)
-          .collect(toList());
+  /**
+   * Processes the rows without blocking the calling thread, using a new client that is closed once
+   * the processing completes.
+   */
+  public CompletableFuture<List<String>> processAsync(List<String> rows) {
+    DlpServiceClient dlpClient;
+    try {
+      dlpClient = dlpClientFactory.newClient();
+    } catch (Exception exception) {
+      return CompletableFuture.failedFuture(exception);
     }
+
+    return processAsync(dlpClient, rows).whenComplete((result, error) -> dlpClient.close());
   }
 
   /**
-   * Implements exponential down-sizing of request payload when DLP content API requests to send
-   * smaller requests by throwing {@link InvalidArgumentException}.
+   * Processes the rows without blocking the calling thread, the caller is responsible to close the
+   * client once the returned future completes.
    */
-  private class RetryingDlpCaller implements Function<DlpRequestT, List<DlpResponseT>> {
+  public CompletableFuture<List<String>> processAsync(
+      DlpServiceClient dlpClient, List<String> rows) {
+    try {
+      // Created on the calling thread, to trace and count the requests in the current call.
+      var dlpCaller = new RetryingDlpCaller(dlpClient, tableToDlpRequestFnFactory.apply(dlpClient));
+
+      if (oversizedValueChunker == null) {
+        return processRows(dlpCaller, rows);
+      }
 
-    private final DlpServiceClient dlpClient;
+      return processChunked(dlpClient, dlpCaller, rows);
+    } catch (RuntimeException exception) {
+      return CompletableFuture.failedFuture(exception);
+    }
+  }
 
-    public RetryingDlpCaller(DlpServiceClient dlpClient) {
-      this.dlpClient = dlpClient;
+  /**
+   * Splits the oversized values into chunks, inspected through a caller retrying and recording the
+   * inspection requests like the transformation ones, before processing the chunks as rows.
+   */
+  private CompletableFuture<List<String>> processChunked(
+      DlpServiceClient dlpClient, RetryingDlpCaller dlpCaller, List<String> rows) {
+    var maxValueBytes =
+        (requestMaxBytes - newTable().getSerializedSize()) / rowWidth - ROW_FRAMING_BYTES;
+
+    var inspectCaller =
+        new RecordedDlpCaller<InspectContentRequest, InspectContentResponse>(
+            request -> {
+              try {
+                return toCompletableFuture(dlpClient.inspectContentCallable().futureCall(request));
+              } catch (RuntimeException exception) {
+                return CompletableFuture.failedFuture(exception);
+              }
+            },
+            request -> 1,
+            request -> request.getItem().getSerializedSize());
+
+    var chunkFutures = new ArrayList<CompletableFuture<List<String>>>(rows.size());
+    var oversized = false;
+    for (var value : rows) {
+      if (Utf8.encodedLength(value) > maxValueBytes) {
+        oversized = true;
+        chunkFutures.add(
+            oversizedValueChunker.chunk(inspectCaller::send, value, maxValueBytes / 2));
+      } else {
+        chunkFutures.add(CompletableFuture.completedFuture(List.of(value)));
+      }
     }
 
-    @Override
-    public List<DlpResponseT> apply(DlpRequestT dlpRequest) {
-      var dlpCallFn = dlpCallFnFactory.apply(dlpClient);
-      var retries = 0;
+    if (!oversized) {
+      return processRows(dlpCaller, rows);
+    }
 
-      var requestsToSend = List.of(dlpRequest);
+    return CompletableFuture.allOf(chunkFutures.toArray(CompletableFuture<?>[]::new))
+        .thenCompose(
+            unused -> {
+              var chunkRows = new ArrayList<String>(rows.size());
+              var chunkCounts = new int[rows.size()];
 
-      do {
-        try {
+              for (int index = 0; index < rows.size(); index++) {
+                var chunks = chunkFutures.get(index).join();
+                chunkCounts[index] = chunks.size();
+                chunkRows.addAll(chunks);
+              }
 
-          logger.atInfo().log("Sending Try(%s): ", retries);
+              logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+                  "Split oversized values into %s rows", chunkRows.size() - rows.size());
 
-          return requestsToSend.stream().map(dlpCallFn).toList();
+              return processRows(dlpCaller, chunkRows)
+                  .thenApply(chunkResults -> joinChunks(chunkResults, chunkCounts));
+            });
+  }
 
-        } catch (InvalidArgumentException invalidArgumentException) {
+  private static List<String> joinChunks(List<String> chunkResults, int[] chunkCounts) {
+    var results = new ArrayList<String>(chunkCounts.length);
 
-          logger.atWarning().log(
-              "DLP Caller InvalidArgument: msg: %s, retryable: %s",
-              invalidArgumentException.getMessage(), invalidArgumentException.isRetryable());
+    var chunkIndex = 0;
+    for (var chunkCount : chunkCounts) {
+      results.add(String.join("", chunkResults.subList(chunkIndex, chunkIndex + chunkCount)));
+      chunkIndex += chunkCount;
+    }
 
-          if (!invalidArgumentException.isRetryable()
-              || !invalidArgumentException
-                  .getMessage()
-                  .toLowerCase()
-                  .contains("retry with a smaller request")) {
-            throw invalidArgumentException;
-          }
-        }
+    return results;
+  }
+
+  /**
+   * Sends the tables over at most {@code maxConcurrentRequests} lanes, each sending its next table
+   * once the previous one completes.
+   */
+  private CompletableFuture<List<String>> processRows(
+      RetryingDlpCaller dlpCaller, List<String> rows) {
+    var cost = dlpCaller.cost;
+    var packStartNanos = System.nanoTime();
+    var packingEvent = new FlightRecorderEvents.TablePacking();
+    packingEvent.begin();
+    var packedTables =
+        Observation.createNotStarted("bqfn.dlp.pack", metrics.observationRegistry())
+            .parentObservation(dlpCaller.parentObservation)
+            .highCardinalityKeyValue("dlp.values", String.valueOf(rows.size()))
+            .observe(() -> rowsToTableFn().apply(rows));
+    if (packingEvent.shouldCommit()) {
+      packingEvent.values = rows.size();
+      packingEvent.tables = packedTables.size();
+      packingEvent.commit();
+    }
+    var dlpStartNanos = System.nanoTime();
+    cost.recordStage("pack", dlpStartNanos - packStartNanos);
+    metrics.recordSubBatches(packedTables.size());
+    var tableToRowsFn = new TableToRowsFn();
+
+    var outputRows = new String[rows.size()];
+
+    var lanes =
+        IntStream.range(0, Math.min(maxConcurrentRequests, packedTables.size()))
+            .mapToObj(
+                lane -> {
+                  var laneFuture = CompletableFuture.<Void>completedFuture(null);
+
+                  for (int index = lane;
+                      index < packedTables.size();
+                      index += maxConcurrentRequests) {
+                    var packedTable = packedTables.get(index);
+                    laneFuture =
+                        laneFuture
+                            .thenCompose(unused -> dlpCaller.apply(packedTable.table()))
+                            .thenAccept(
+                                responses ->
+                                    tableToRowsFn.scatter(
+                                        packedTable,
+                                        responses.stream().map(dlpResponseToTableFn).toList(),
+                                        outputRows));
+                  }
+
+                  return laneFuture;
+                })
+            .toArray(CompletableFuture<?>[]::new);
+
+    return CompletableFuture.allOf(lanes)
+        .whenComplete((unused, error) -> cost.recordStage("dlp", System.nanoTime() - dlpStartNanos))
+        .thenApply(unused -> Arrays.asList(outputRows));
+  }
 
-        requestsToSend =
-            requestsToSend.stream().map(this::splitRowsToHalf).flatMap(List::stream).toList();
+  /**
+   * A DLP request table along with the input position of each of its values, in row-major order,
+   * with {@code -1} for the padding cells of the last wide row.
+   */
+  @VisibleForTesting
+  record PackedTable(Table table, int[] rowIndexes) {}
+
+  /**
+   * Sends DLP requests of one type, retrying and hedging each request as per the {@link
+   * DlpRetryPolicy}. Outcomes are recorded in the {@link DlpCircuitBreaker}, and no more retries
+   * are sent once it is open.
+   *
+   * <p>Each request is traced as a child of the observation current when the caller is created,
+   * and counted in the {@link RequestCost} current then, as the requests complete on other threads.
+   */
+  private class RecordedDlpCaller<RequestT, ResponseT> {
+
+    private final Function<RequestT, CompletableFuture<ResponseT>> callFn;
+
+    /** Returns the rows and the bytes of a request, for its span, cost and event. */
+    private final ToIntFunction<RequestT> rowCountFn;
+
+    private final ToIntFunction<RequestT> bytesFn;
+
+    @Nullable protected final Observation parentObservation;
+    protected final RequestCost cost;
+
+    RecordedDlpCaller(
+        Function<RequestT, CompletableFuture<ResponseT>> callFn,
+        ToIntFunction<RequestT> rowCountFn,
+        ToIntFunction<RequestT> bytesFn) {
+      this.callFn = callFn;
+      this.rowCountFn = rowCountFn;
+      this.bytesFn = bytesFn;
+      this.parentObservation = metrics.observationRegistry().getCurrentObservation();
+      this.cost = RequestCost.current();
+    }
+
+    /** Sends the request, retrying it on transient errors. */
+    CompletableFuture<ResponseT> send(RequestT request) {
+      return callWithRetries(request, 0, 1);
+    }
+
+    protected CompletableFuture<ResponseT> callWithRetries(
+        RequestT request, int splitDepth, int attempt) {
+      return hedgedCall(request, splitDepth, attempt)
+          .exceptionallyCompose(
+              error -> {
+                var cause = unwrapCompletionException(error);
+
+                if (attempt >= retryPolicy.maxAttempts() || !retryPolicy.isRetryable(cause)) {
+                  return CompletableFuture.failedFuture(cause);
+                }
+
+                if (circuitBreaker.isOpen()) {
+                  return CompletableFuture.failedFuture(circuitOpenException());
+                }
+
+                metrics.recordRetry();
+                cost.recordDlpRetry();
+                var backoff = retryPolicy.backoff(attempt);
+                logger.atWarning().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+                    "DLP call attempt %s failed (%s), retrying in %s ms",
+                    attempt, cause.getMessage(), backoff.toMillis());
+
+                if (backoff.isZero()) {
+                  return callWithRetries(request, splitDepth, attempt + 1);
+                }
+
+                return CompletableFuture.runAsync(
+                        () -> {},
+                        CompletableFuture.delayedExecutor(backoff.toNanos(), TimeUnit.NANOSECONDS))
+                    .thenCompose(unused -> callWithRetries(request, splitDepth, attempt + 1));
+              });
+    }
+
+    /**
+     * Sends the request, and a duplicate request if it is still pending after the hedging delay,
+     * completing with the first response, or with the error once all the sent requests failed.
+     *
+     * <p>The call still pending once the other responded is cancelled, so that it doesn't keep
+     * using the DLP quota.
+     */
+    private CompletableFuture<ResponseT> hedgedCall(RequestT request, int splitDepth, int attempt) {
+      var primary = recordedCall(request, splitDepth, attempt, /* hedge= */ false);
+
+      var hedgeDelay = retryPolicy.hedgeDelay(bytesFn.applyAsInt(request));
+      if (hedgeDelay.isEmpty() || primary.isDone()) {
+        return primary;
+      }
+
+      var result = new CompletableFuture<ResponseT>();
+      var pendingCalls = new AtomicInteger(1);
+      var hedge = new AtomicReference<CompletableFuture<ResponseT>>();
+      BiConsumer<ResponseT, Throwable> completer =
+          (response, error) -> {
+            if (error == null) {
+              result.complete(response);
+            } else if (pendingCalls.decrementAndGet() == 0) {
+              result.completeExceptionally(unwrapCompletionException(error));
+            }
+          };
+
+      primary.whenComplete(completer);
+      result.thenRun(
+          () -> {
+            primary.cancel(true);
+            var hedgeCall = hedge.get();
+            if (hedgeCall != null) {
+              hedgeCall.cancel(true);
+            }
+          });
+
+      CompletableFuture.delayedExecutor(hedgeDelay.get().toNanos(), TimeUnit.NANOSECONDS)
+          .execute(
+              () -> {
+                // Skips the hedge when the result is known, i.e. no call is pending anymore.
+                if (result.isDone() || pendingCalls.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                  return;
+                }
+
+                logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+                    "Hedging DLP request pending for more than %s ms", hedgeDelay.get().toMillis());
+                metrics.recordHedge();
+                var hedgeCall = recordedCall(request, splitDepth, attempt, /* hedge= */ true);
+                hedge.set(hedgeCall);
+                // Cancels the hedge when the primary responded before it was set.
+                if (result.isDone()) {
+                  hedgeCall.cancel(true);
+                }
+                hedgeCall.whenComplete(completer);
+              });
+
+      return result;
+    }
+
+    /**
+     * Sends the request in its own span once the breaker permits it, recording its latency or error
+     * in the retry policy, the breaker and the metrics, and as a flight recorder event committed by
+     * the completing thread.
+     */
+    private CompletableFuture<ResponseT> recordedCall(
+        RequestT request, int splitDepth, int attempt, boolean hedge) {
+      DlpCircuitBreaker.Permission permission;
+      try {
+        permission = circuitBreaker.acquirePermission();
+      } catch (RetryableTransformException exception) {
+        return CompletableFuture.failedFuture(exception);
+      }
 
-      } while (retries++ < 10);
+      var observation = startRequestObservation(request, splitDepth, attempt, hedge);
+      var rpcEvent = new FlightRecorderEvents.DlpRpc();
+      rpcEvent.begin();
+      var startNanos = System.nanoTime();
 
-      throw new RuntimeException("unable to receive DLP Response after retries");
+      // The scope makes the span current for the gRPC interceptors, which run on this thread.
+      CompletableFuture<ResponseT> responseFuture;
+      try (var unused = observation.openScope()) {
+        responseFuture = callFn.apply(request);
+      }
+
+      var recordedFuture =
+          responseFuture.whenComplete(
+              (response, error) -> {
+                var latencyNanos = System.nanoTime() - startNanos;
+                var cause = (error == null) ? null : unwrapCompletionException(error);
+                metrics.recordRpc(latencyNanos, cause);
+                cost.recordDlpRequest(
+                    bytesFn.applyAsInt(request),
+                    cause != null && !(cause instanceof CancellationException));
+
+                if (cause == null) {
+                  var latency = Duration.ofNanos(latencyNanos);
+                  retryPolicy.recordLatency(latency, bytesFn.applyAsInt(request));
+                  circuitBreaker.onSuccess(permission, latency);
+                } else {
+                  circuitBreaker.onFailure(permission, cause);
+                  observation.error(cause);
+                }
+
+                observation.stop();
+
+                if (rpcEvent.shouldCommit()) {
+                  rpcEvent.rows = rowCountFn.applyAsInt(request);
+                  rpcEvent.bytes = bytesFn.applyAsInt(request);
+                  rpcEvent.status = DlpMetrics.status(cause);
+                  rpcEvent.attempt = attempt;
+                  rpcEvent.splitDepth = splitDepth;
+                  rpcEvent.hedge = hedge;
+                  rpcEvent.commit();
+                }
+              });
+
+      // Cancelling the recorded call, e.g. the losing call of a hedged request, cancels the RPC.
+      recordedFuture.whenComplete(
+          (response, error) -> {
+            if (recordedFuture.isCancelled()) {
+              responseFuture.cancel(true);
+            }
+          });
+      return recordedFuture;
+    }
+
+    private Observation startRequestObservation(
+        RequestT request, int splitDepth, int attempt, boolean hedge) {
+      var observationRegistry = metrics.observationRegistry();
+      if (observationRegistry.isNoop()) {
+        return Observation.NOOP;
+      }
+
+      return Observation.createNotStarted("bqfn.dlp.request", observationRegistry)
+          .parentObservation(parentObservation)
+          .lowCardinalityKeyValue("dlp.hedge", String.valueOf(hedge))
+          .highCardinalityKeyValue("dlp.rows", String.valueOf(rowCountFn.applyAsInt(request)))
+          .highCardinalityKeyValue("dlp.bytes", String.valueOf(bytesFn.applyAsInt(request)))
+          .highCardinalityKeyValue("dlp.attempt", String.valueOf(attempt))
+          .highCardinalityKeyValue("dlp.splitDepth", String.valueOf(splitDepth))
+          .start();
+    }
+
+    protected RetryableTransformException circuitOpenException() {
+      return new RetryableTransformException(
+          String.format("DLP circuit (%s) opened during the call", circuitBreaker.name()));
+    }
+  }
+
+  /**
+   * Implements exponential down-sizing of request payload when DLP content API requests to send
+   * smaller requests by failing with {@link InvalidArgumentException}, the halves of a table are
+   * sent concurrently, and no more splits are sent once the {@link DlpCircuitBreaker} is open.
+   */
+  private class RetryingDlpCaller extends RecordedDlpCaller<DlpRequestT, DlpResponseT>
+      implements Function<Table, CompletableFuture<List<DlpResponseT>>> {
+
+    /** Creates the requests for the split tables, without fetching any resource again. */
+    private final Function<Table, DlpRequestT> requestMaker;
+
+    public RetryingDlpCaller(
+        DlpServiceClient dlpClient, Function<Table, DlpRequestT> requestMaker) {
+      super(
+          makeDlpCallFn(dlpClient),
+          request -> dlpRequestToTableFn.apply(request).getRowsCount(),
+          request -> dlpRequestToTableFn.apply(request).getSerializedSize());
+      this.requestMaker = requestMaker;
+    }
+
+    @Override
+    public CompletableFuture<List<DlpResponseT>> apply(Table table) {
+      return call(requestMaker.apply(table), 0);
+    }
+
+    private CompletableFuture<List<DlpResponseT>> call(DlpRequestT dlpRequest, int splitDepth) {
+      logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+          "Sending Try(%s): ", splitDepth);
+
+      return callWithRetries(dlpRequest, splitDepth, 1)
+          .<List<DlpResponseT>>thenApply(List::of)
+          .exceptionallyCompose(
+              error -> {
+                var cause = unwrapCompletionException(error);
+
+                if (!(cause instanceof InvalidArgumentException invalidArgumentException)
+                    || !isSmallerRequestRequired(invalidArgumentException)) {
+                  return CompletableFuture.failedFuture(cause);
+                }
+
+                if (circuitBreaker.isOpen()) {
+                  return CompletableFuture.failedFuture(circuitOpenException());
+                }
+
+                if (splitDepth >= MAX_SPLIT_DEPTH) {
+                  return CompletableFuture.failedFuture(
+                      new RuntimeException("unable to receive DLP Response after retries"));
+                }
+
+                metrics.recordSplit();
+                cost.recordDlpSplit();
+                var halves =
+                    splitRowsToHalf(dlpRequest).stream()
+                        .map(half -> call(half, splitDepth + 1))
+                        .toList();
+
+                return CompletableFuture.allOf(halves.toArray(CompletableFuture<?>[]::new))
+                    .thenApply(
+                        unused ->
+                            halves.stream()
+                                .map(CompletableFuture::join)
+                                .flatMap(List::stream)
+                                .toList());
+              });
+    }
+
+    private boolean isSmallerRequestRequired(InvalidArgumentException invalidArgumentException) {
+      logger.atWarning().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+          "DLP Caller InvalidArgument: msg: %s, retryable: %s",
+          invalidArgumentException.getMessage(), invalidArgumentException.isRetryable());
+
+      // gRPC clients only flag the codes of their retry settings as retryable, which excludes
+      // INVALID_ARGUMENT, so the message alone identifies the request to split.
+      return invalidArgumentException
+          .getMessage()
+          .toLowerCase()
+          .contains("retry with a smaller request");
     }
 
     private List<DlpRequestT> splitRowsToHalf(DlpRequestT dlpRequest) {
@@ -156,22 +659,101 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
       var rowCount = table.getRowsCount();
       var splitPoint = rowCount / 2;
 
-      logger.atInfo().log("Splitting Table: new RowSize: %s", splitPoint);
+      logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+          "Splitting Table: new RowSize: %s", splitPoint);
 
       return Stream.of(
               table.toBuilder().clearRows().addAllRows(rows.subList(0, splitPoint)).build(),
               table.toBuilder().clearRows().addAllRows(rows.subList(splitPoint, rowCount)).build())
-          .map(subTable -> tableToDlpRequestFnFactory.apply(dlpClient).apply(subTable))
+          .map(requestMaker)
           .toList();
     }
   }
 
+  /**
+   * Returns the DLP call function, using the future call when available, or completing with the
+   * result of the blocking call.
+   */
+  private Function<DlpRequestT, CompletableFuture<DlpResponseT>> makeDlpCallFn(
+      DlpServiceClient dlpClient) {
+    if (dlpFutureCallFnFactory != null) {
+      var futureCallFn = dlpFutureCallFnFactory.apply(dlpClient);
+      return request -> {
+        try {
+          return toCompletableFuture(futureCallFn.apply(request));
+        } catch (RuntimeException exception) {
+          return CompletableFuture.failedFuture(exception);
+        }
+      };
+    }
+
+    var callFn = dlpCallFnFactory.apply(dlpClient);
+    return request -> {
+      try {
+        return CompletableFuture.completedFuture(callFn.apply(request));
+      } catch (RuntimeException exception) {
+        return CompletableFuture.failedFuture(exception);
+      }
+    };
+  }
+
+  private static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> apiFuture) {
+    var completableFuture = new CompletableFuture<T>();
+
+    apiFuture.addListener(
+        () -> {
+          try {
+            completableFuture.complete(apiFuture.get());
+          } catch (ExecutionException executionException) {
+            completableFuture.completeExceptionally(executionException.getCause());
+          } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            completableFuture.completeExceptionally(interruptedException);
+          } catch (RuntimeException exception) {
+            completableFuture.completeExceptionally(exception);
+          }
+        },
+        MoreExecutors.directExecutor());
+
+    // Cancelling the future cancels the RPC instead of waiting for its response.
+    completableFuture.whenComplete(
+        (response, error) -> {
+          if (completableFuture.isCancelled()) {
+            apiFuture.cancel(true);
+          }
+        });
+
+    return completableFuture;
+  }
+
+  private static Throwable unwrapCompletionException(Throwable error) {
+    return (error instanceof CompletionException && error.getCause() != null)
+        ? error.getCause()
+        : error;
+  }
+
   @VisibleForTesting
-  Function<List<String>, List<Table>> rowsToTableFn() {
+  Function<List<String>, List<PackedTable>> rowsToTableFn() {
     return new RowsToTableFn();
   }
 
-  private final class RowsToTableFn implements Function<List<String>, List<Table>> {
+  @VisibleForTesting
+  Function<Table, List<String>> tableToRowsFn() {
+    return new TableToRowsFn();
+  }
+
+  /**
+   * Packs rows into DLP tables using first-fit-decreasing on the serialized row size.
+   *
+   * <p>Rows are sorted by size within windows of {@code packingWindowSize} rows and placed in the
+   * first table that can still hold them, so that a single large row does not close an under-filled
+   * table. Each table keeps the input index of its rows so that the results can be put back in
+   * order.
+   *
+   * <p>With a {@code rowWidth} above 1, consecutive values are first grouped into wide rows, which
+   * are then packed the same way.
+   */
+  private final class RowsToTableFn implements Function<List<String>, List<PackedTable>> {
 
     private RowsToTableFn() {
       checkArgument(
@@ -185,70 +767,203 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
           "Provided DLP requestMaxBytes (%s) is more than maximum (%s)",
           requestMaxBytes,
           REQUEST_MAX_BYTES);
-    }
 
-    @Override
-    public List<Table> apply(List<String> rows) {
-      var requestTableBuilder = ImmutableList.<Table>builder();
-
-      var accTable = newTable();
+      checkArgument(
+          packingWindowSize > 0,
+          "Provided packingWindowSize (%s) should be positive",
+          packingWindowSize);
 
-      for (var stringRow : rows) {
-        var tableRow = convertStringToRow(stringRow);
+      checkArgument(
+          rowWidth > 0 && rowWidth <= requestCellCount,
+          "Provided rowWidth (%s) should be between 1 and requestCellCount (%s)",
+          rowWidth,
+          requestCellCount);
+    }
 
-        if (tableRow.getSerializedSize() >= requestMaxBytes) {
+    @Override
+    public List<PackedTable> apply(List<String> values) {
+      var rows = Lists.partition(values, rowWidth);
+      var tableRows = new Row[rows.size()];
+      var rowBytes = new int[rows.size()];
+      var maxRowsBytes = requestMaxBytes - newTable().getSerializedSize();
+
+      for (int index = 0; index < rows.size(); index++) {
+        tableRows[index] = convertStringsToRow(rows.get(index));
+        rowBytes[index] =
+            CodedOutputStream.computeMessageSize(Table.ROWS_FIELD_NUMBER, tableRows[index]);
+
+        if (rowBytes[index] >= maxRowsBytes) {
           throw new RuntimeException(
               String.format(
                   "Single Row size greater than DLP limit. Found %s bytes",
-                  tableRow.getSerializedSize()));
+                  tableRows[index].getSerializedSize()));
         }
+      }
 
-        if (accTable.getRowsCount() + 1 > requestCellCount
-            || accTable.getSerializedSize() + tableRow.getSerializedSize() >= requestMaxBytes) {
+      var bins = new ArrayList<Bin>();
+      var openBins = new ArrayList<Bin>();
 
-          requestTableBuilder.add(accTable);
-          accTable = newTable();
-        }
+      for (int windowStart = 0; windowStart < rows.size(); windowStart += packingWindowSize) {
+        var windowIndexes =
+            IntStream.range(windowStart, Math.min(rows.size(), windowStart + packingWindowSize))
+                .boxed()
+                .sorted(Comparator.comparingInt((Integer index) -> rowBytes[index]).reversed())
+                .toList();
+
+        for (int index : windowIndexes) {
+          var bin = firstFit(openBins, rowBytes[index], maxRowsBytes);
+
+          if (bin == null) {
+            bin = new Bin();
+            bins.add(bin);
+            openBins.add(bin);
+          }
 
-        accTable = accTable.toBuilder().addRows(tableRow).build();
+          bin.add(index, rowBytes[index]);
+
+          if ((bin.rowIndexes.size() + 1) * rowWidth > requestCellCount) {
+            openBins.remove(bin);
+          }
+        }
       }
 
-      var requestTables = requestTableBuilder.add(accTable).build();
-      logger.atInfo().log("Created %s tables from %s rows", requestTables.size(), rows.size());
+      var requestTables =
+          bins.isEmpty()
+              ? List.of(new PackedTable(newTable(), new int[0]))
+              : bins.stream().map(bin -> bin.toPackedTable(tableRows, values.size())).toList();
+
+      var greedyTablesCount = greedyTablesCount(rowBytes, maxRowsBytes);
+      logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+          "Created %s tables from %s values (greedy packing: %s tables, saved %s requests)",
+          requestTables.size(),
+          values.size(),
+          greedyTablesCount,
+          greedyTablesCount - requestTables.size());
       return requestTables;
     }
 
-    private Row convertStringToRow(String value) {
-      return Row.newBuilder().addValues(Value.newBuilder().setStringValue(value)).build();
+    private Bin firstFit(List<Bin> openBins, int rowBytes, int maxRowsBytes) {
+      for (var bin : openBins) {
+        if (bin.bytes + rowBytes < maxRowsBytes) {
+          return bin;
+        }
+      }
+
+      return null;
     }
 
-    private Table newTable() {
-      return Table.newBuilder().addHeaders(FieldId.newBuilder().setName(dlpColumnName)).build();
+    /** Returns the number of tables that filling the tables in input order would have used. */
+    private int greedyTablesCount(int[] rowBytes, int maxRowsBytes) {
+      var tablesCount = 1;
+      var tableRowsCount = 0;
+      var tableBytes = 0;
+
+      for (var bytes : rowBytes) {
+        if ((tableRowsCount + 1) * rowWidth > requestCellCount
+            || tableBytes + bytes >= maxRowsBytes) {
+          tablesCount++;
+          tableRowsCount = 0;
+          tableBytes = 0;
+        }
+
+        tableRowsCount++;
+        tableBytes += bytes;
+      }
+
+      return tablesCount;
     }
+
+    /** Returns a row of the values, padded with empty values up to the row width. */
+    private Row convertStringsToRow(List<String> values) {
+      var row = Row.newBuilder();
+      values.forEach(value -> row.addValues(Value.newBuilder().setStringValue(value)));
+      IntStream.range(values.size(), rowWidth)
+          .forEach(i -> row.addValues(Value.newBuilder().setStringValue("")));
+      return row.build();
+    }
+
+    private final class Bin {
+      private final List<Integer> rowIndexes = new ArrayList<>();
+      private int bytes;
+
+      private void add(int rowIndex, int rowBytes) {
+        rowIndexes.add(rowIndex);
+        bytes += rowBytes;
+      }
+
+      private PackedTable toPackedTable(Row[] tableRows, int valuesCount) {
+        var sortedIndexes = rowIndexes.stream().mapToInt(Integer::intValue).sorted().toArray();
+        var table = newTable().toBuilder();
+        Arrays.stream(sortedIndexes).mapToObj(index -> tableRows[index]).forEach(table::addRows);
+
+        var valueIndexes =
+            Arrays.stream(sortedIndexes)
+                .flatMap(index -> IntStream.range(index * rowWidth, (index + 1) * rowWidth))
+                .map(valueIndex -> valueIndex < valuesCount ? valueIndex : -1)
+                .toArray();
+
+        return new PackedTable(table.build(), valueIndexes);
+      }
+    }
+  }
+
+  private Table newTable() {
+    var table = Table.newBuilder();
+    WideTableLayout.columnNames(dlpColumnName, rowWidth)
+        .forEach(name -> table.addHeaders(FieldId.newBuilder().setName(name)));
+    return table.build();
   }
 
   private final class TableToRowsFn implements Function<Table, List<String>> {
-    private int getHeaderIndex(List<FieldId> headers) {
-      int headerIndex = 0;
-      for (; headerIndex < headers.size(); headerIndex++) {
-        if (headers.get(headerIndex).getName().equals(dlpColumnName)) {
-          return headerIndex;
-        }
-      }
 
-      throw new RuntimeException(
-          String.format("required Table header (%s) not found in: %s", dlpColumnName, headers));
+    private final ImmutableList<String> columnNames =
+        WideTableLayout.columnNames(dlpColumnName, rowWidth);
+
+    private int[] getHeaderIndexes(List<FieldId> headers) {
+      var headerNames = headers.stream().map(FieldId::getName).toList();
+
+      return columnNames.stream()
+          .mapToInt(
+              columnName -> {
+                var headerIndex = headerNames.indexOf(columnName);
+                if (headerIndex < 0) {
+                  throw new RuntimeException(
+                      String.format(
+                          "required Table header (%s) not found in: %s", columnName, headers));
+                }
+                return headerIndex;
+              })
+          .toArray();
     }
 
+    /** Returns the values of the table, in row-major order for a wide table. */
     @Override
     public List<String> apply(Table table) {
-      final int headerIndex = getHeaderIndex(table.getHeadersList());
+      final int[] headerIndexes = getHeaderIndexes(table.getHeadersList());
 
       return table.getRowsList().stream()
-          .map(r -> r.getValues(headerIndex))
+          .flatMap(r -> Arrays.stream(headerIndexes).mapToObj(r::getValues))
           .map(com.google.privacy.dlp.v2.Value::getStringValue)
           .collect(toImmutableList());
     }
+
+    /** Writes the rows of the response tables at the input positions of the request's rows. */
+    private void scatter(PackedTable packedTable, List<Table> responseTables, String[] outputRows) {
+      var rowIndexes = packedTable.rowIndexes();
+      var values = responseTables.stream().map(this).flatMap(List::stream).toList();
+
+      checkState(
+          values.size() == rowIndexes.length,
+          "DLP returned %s rows for a table of %s rows",
+          values.size(),
+          rowIndexes.length);
+
+      for (int i = 0; i < rowIndexes.length; i++) {
+        if (rowIndexes[i] >= 0) {
+          outputRows[rowIndexes[i]] = values.get(i);
+        }
+      }
+    }
   }
 
   public static <DlpRequestT, DlpResponseT> Builder<DlpRequestT, DlpResponseT> builder() {
@@ -258,9 +973,18 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
   public static class Builder<DlpRequestT, DlpResponseT> {
     private int requestCellCount;
     private int requestMaxBytes;
+    private int packingWindowSize;
+    private int rowWidth;
+    private int maxConcurrentRequests;
+    private DlpRetryPolicy retryPolicy;
+    private DlpCircuitBreaker circuitBreaker;
+    private DlpMetrics metrics;
     private String dlpColumnName;
     private DlpClientFactory dlpClientFactory;
+    private OversizedValueChunker oversizedValueChunker;
     private Function<DlpServiceClient, Function<DlpRequestT, DlpResponseT>> dlpCallFnFactory;
+    private Function<DlpServiceClient, Function<DlpRequestT, ApiFuture<DlpResponseT>>>
+        dlpFutureCallFnFactory;
     private Function<DlpServiceClient, Function<Table, DlpRequestT>> tableToDlpRequestFnFactory;
     private Function<DlpRequestT, Table> dlpRequestToTableFn;
     private Function<DlpResponseT, Table> dlpResponseToTableFn;
@@ -268,6 +992,12 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
     public Builder() {
       this.requestCellCount = REQUEST_MAX_CELL_COUNT;
       this.requestMaxBytes = REQUEST_MAX_BYTES;
+      this.packingWindowSize = DEFAULT_PACKING_WINDOW_SIZE;
+      this.rowWidth = 1;
+      this.maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+      this.retryPolicy = DlpRetryPolicy.noRetries();
+      this.circuitBreaker = DlpCircuitBreaker.disabled();
+      this.metrics = DlpMetrics.noop();
     }
 
     public Builder<DlpRequestT, DlpResponseT> setRequestCellCount(int requestCellCount) {
@@ -280,6 +1010,42 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
       return this;
     }
 
+    public Builder<DlpRequestT, DlpResponseT> setPackingWindowSize(int packingWindowSize) {
+      this.packingWindowSize = packingWindowSize;
+      return this;
+    }
+
+    /**
+     * Sets the number of values packed in each table row, the request function must transform all
+     * the {@link WideTableLayout#columnNames} identically.
+     */
+    public Builder<DlpRequestT, DlpResponseT> setRowWidth(int rowWidth) {
+      this.rowWidth = rowWidth;
+      return this;
+    }
+
+    public Builder<DlpRequestT, DlpResponseT> setMaxConcurrentRequests(int maxConcurrentRequests) {
+      this.maxConcurrentRequests = maxConcurrentRequests;
+      return this;
+    }
+
+    /** Sets the retry and hedging policy of each sub-batch request, no retries by default. */
+    public Builder<DlpRequestT, DlpResponseT> setRetryPolicy(DlpRetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /** Sets the breaker permitting each request and recording its outcome. */
+    public Builder<DlpRequestT, DlpResponseT> setCircuitBreaker(DlpCircuitBreaker circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
+    public Builder<DlpRequestT, DlpResponseT> setMetrics(DlpMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
     public Builder<DlpRequestT, DlpResponseT> setDlpColumnName(String dlpColumnName) {
       this.dlpColumnName = dlpColumnName;
       return this;
@@ -291,12 +1057,33 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
       return this;
     }
 
+    /**
+     * Splits values larger than a table cell into chunks transformed as separate rows, instead of
+     * failing the whole batch.
+     */
+    public Builder<DlpRequestT, DlpResponseT> setOversizedValueChunker(
+        OversizedValueChunker oversizedValueChunker) {
+      this.oversizedValueChunker = oversizedValueChunker;
+      return this;
+    }
+
     public Builder<DlpRequestT, DlpResponseT> setDlpCallFnFactory(
         Function<DlpServiceClient, Function<DlpRequestT, DlpResponseT>> dlpCallFnFactory) {
       this.dlpCallFnFactory = dlpCallFnFactory;
       return this;
     }
 
+    /**
+     * Sets the non-blocking DLP call, e.g. {@code client -> client.deidentifyContentCallable()::
+     * futureCall}, which is used instead of the call function when set.
+     */
+    public Builder<DlpRequestT, DlpResponseT> setDlpFutureCallFnFactory(
+        Function<DlpServiceClient, Function<DlpRequestT, ApiFuture<DlpResponseT>>>
+            dlpFutureCallFnFactory) {
+      this.dlpFutureCallFnFactory = dlpFutureCallFnFactory;
+      return this;
+    }
+
     public Builder<DlpRequestT, DlpResponseT> setTableToDlpRequestFnFactory(
         Function<DlpServiceClient, Function<Table, DlpRequestT>> tableToDlpRequestFnFactory) {
       this.tableToDlpRequestFnFactory = tableToDlpRequestFnFactory;
@@ -319,9 +1106,17 @@ public final class DlpRequestBatchExecutor<DlpRequestT, DlpResponseT> {
       return new DlpRequestBatchExecutor<>(
           requestCellCount,
           requestMaxBytes,
+          packingWindowSize,
+          rowWidth,
+          maxConcurrentRequests,
+          retryPolicy,
+          circuitBreaker,
+          metrics,
           dlpColumnName,
           dlpClientFactory,
+          oversizedValueChunker,
           dlpCallFnFactory,
+          dlpFutureCallFnFactory,
           tableToDlpRequestFnFactory,
           dlpRequestToTableFn,
           dlpResponseToTableFn);
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Retry policy applied to each DLP sub-batch request, so that a transient error on one table does
+ * not fail the whole BigQuery call.
+ *
+ * <p>Failed requests with a retryable status code are retried up to {@code dlp.retry.maxAttempts}
+ * times, waiting an exponential backoff with full jitter between the attempts.
+ *
+ * <p>When hedging is enabled ({@code dlp.hedging}), a duplicate request is sent once a request has
+ * been pending longer than the p95 latency of the recent successful requests of a similar size,
+ * i.e. within the same power of two bytes, and the first response is used.
+ */
+@Component
+@PropertySource("classpath:dlp.properties")
+public class DlpRetryPolicy {
+
+  static final ImmutableSet<StatusCode.Code> DEFAULT_RETRYABLE_CODES =
+      ImmutableSet.of(StatusCode.Code.UNAVAILABLE, StatusCode.Code.DEADLINE_EXCEEDED);
+
+  private static final double BACKOFF_MULTIPLIER = 2.0;
+
+  /** Latency percentile after which a hedged request is sent. */
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  /** Number of recent latencies of each size bucket used to compute its hedging delay. */
+  @VisibleForTesting static final int LATENCY_WINDOW_SIZE = 256;
+
+  /** Number of latencies needed before hedging, to avoid hedging on an unreliable percentile. */
+  @VisibleForTesting static final int MIN_HEDGE_SAMPLES = 20;
+
+  private static final DlpRetryPolicy NO_RETRIES =
+      new DlpRetryPolicy(
+          1, Duration.ZERO, Duration.ZERO, ImmutableSet.of(), /* hedgingEnabled= */ false);
+
+  private final int maxAttempts;
+  private final Duration initialBackoff;
+  private final Duration maxBackoff;
+  private final ImmutableSet<StatusCode.Code> retryableCodes;
+  private final boolean hedgingEnabled;
+
+  /** Latencies of the requests by size bucket, see {@link #sizeBucket(int)}. */
+  private final LatencyWindow[] latencies;
+
+  @Autowired
+  public DlpRetryPolicy(
+      @Value("${dlp.retry.maxAttempts}") int maxAttempts,
+      @Value("${dlp.retry.initialBackoffMillis}") long initialBackoffMillis,
+      @Value("${dlp.retry.maxBackoffMillis}") long maxBackoffMillis,
+      @Value("${dlp.retry.codes}") String retryableCodes,
+      @Value("${dlp.hedging}") boolean hedgingEnabled) {
+    this(
+        maxAttempts,
+        Duration.ofMillis(initialBackoffMillis),
+        Duration.ofMillis(maxBackoffMillis),
+        Splitter.on(',')
+            .trimResults()
+            .omitEmptyStrings()
+            .splitToStream(retryableCodes)
+            .map(StatusCode.Code::valueOf)
+            .collect(toImmutableSet()),
+        hedgingEnabled);
+  }
+
+  public DlpRetryPolicy(
+      int maxAttempts,
+      Duration initialBackoff,
+      Duration maxBackoff,
+      Collection<StatusCode.Code> retryableCodes,
+      boolean hedgingEnabled) {
+    checkArgument(maxAttempts > 0, "Provided maxAttempts (%s) should be positive", maxAttempts);
+    checkArgument(
+        !initialBackoff.isNegative() && initialBackoff.compareTo(maxBackoff) <= 0,
+        "Provided initialBackoff (%s) should be between 0 and maxBackoff (%s)",
+        initialBackoff,
+        maxBackoff);
+
+    this.maxAttempts = maxAttempts;
+    this.initialBackoff = initialBackoff;
+    this.maxBackoff = maxBackoff;
+    this.retryableCodes = ImmutableSet.copyOf(retryableCodes);
+    this.hedgingEnabled = hedgingEnabled;
+    this.latencies = new LatencyWindow[Integer.SIZE];
+    Arrays.setAll(latencies, unused -> new LatencyWindow(LATENCY_WINDOW_SIZE));
+  }
+
+  /** Returns a policy that sends every request once. */
+  public static DlpRetryPolicy noRetries() {
+    return NO_RETRIES;
+  }
+
+  public int maxAttempts() {
+    return maxAttempts;
+  }
+
+  /** Returns true when the request failed with one of the retryable status codes. */
+  public boolean isRetryable(Throwable error) {
+    return error instanceof ApiException apiException
+        && retryableCodes.contains(apiException.getStatusCode().getCode());
+  }
+
+  /** Returns the time to wait before the attempt following the provided failed attempt. */
+  public Duration backoff(int failedAttempt) {
+    var maxDelayNanos =
+        Math.min(
+            initialBackoff.toNanos() * Math.pow(BACKOFF_MULTIPLIER, failedAttempt - 1),
+            maxBackoff.toNanos());
+
+    return maxDelayNanos < 1
+        ? Duration.ZERO
+        : Duration.ofNanos(ThreadLocalRandom.current().nextLong((long) maxDelayNanos + 1));
+  }
+
+  /**
+   * Returns the time after which a pending request of the provided size is hedged, empty when
+   * hedging is disabled or not enough requests of a similar size have completed yet.
+   */
+  public Optional<Duration> hedgeDelay(int requestBytes) {
+    if (!hedgingEnabled) {
+      return Optional.empty();
+    }
+
+    return latencies[sizeBucket(requestBytes)].percentile(HEDGE_PERCENTILE).map(Duration::ofNanos);
+  }
+
+  /** Records the latency of a successful request of the provided size. */
+  public void recordLatency(Duration latency, int requestBytes) {
+    if (hedgingEnabled) {
+      latencies[sizeBucket(requestBytes)].add(latency.toNanos());
+    }
+  }
+
+  /** Returns the base-2 logarithm of the size, so each bucket spans a power of two of bytes. */
+  private static int sizeBucket(int requestBytes) {
+    return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(Math.max(requestBytes, 1));
+  }
+
+  /** Fixed-size ring of the most recent latencies. */
+  private static final class LatencyWindow {
+    private final long[] latencyNanos;
+    private int count;
+    private int next;
+
+    private LatencyWindow(int size) {
+      this.latencyNanos = new long[size];
+    }
+
+    private synchronized void add(long nanos) {
+      latencyNanos[next] = nanos;
+      next = (next + 1) % latencyNanos.length;
+      count = Math.min(count + 1, latencyNanos.length);
+    }
+
+    private Optional<Long> percentile(double percentile) {
+      long[] sorted;
+      synchronized (this) {
+        if (count < MIN_HEDGE_SAMPLES) {
+          return Optional.empty();
+        }
+
+        sorted = Arrays.copyOf(latencyNanos, count);
+      }
+
+      Arrays.sort(sorted);
+      return Optional.of(sorted[(int) Math.ceil(percentile * sorted.length) - 1]);
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the DeidentifyTemplates listed in {@code dlp.prefetchTemplates} along with their DLP
+ * parent, {@link DlpReIdRequestMaker} and {@link SurrogateMarkerFilter}, so that calls using these
+ * templates don't fetch the template every time. Other templates are not cached and are fetched on
+ * every call.
+ *
+ * <p>Entries expire after {@link #DEFAULT_ENTRY_TTL} to pick up template updates.
+ */
+@Component
+@PropertySource("classpath:dlp.properties")
+public class DlpTemplateCache implements MeterBinder {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  static final Duration DEFAULT_ENTRY_TTL = Duration.ofMinutes(10);
+
+  /**
+   * A fetched template with the values derived from it for making DLP requests.
+   *
+   * @param updateTime identifies the version of the template
+   * @param surrogateMarkerFilter matches values containing the template's surrogate markers, empty
+   *     when the surrogates can't be detected reliably.
+   */
+  public record PreparedTemplate(
+      String name,
+      String parent,
+      DeidentifyConfig deidentifyConfig,
+      Timestamp updateTime,
+      DlpReIdRequestMaker reidRequestMaker,
+      Optional<SurrogateMarkerFilter> surrogateMarkerFilter) {}
+
+  private final ImmutableSet<String> templateNames;
+  private final Cache<String, PreparedTemplate> templates;
+
+  @Autowired
+  public DlpTemplateCache(@Value("${dlp.prefetchTemplates}") String templateNames) {
+    this(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(templateNames));
+  }
+
+  public DlpTemplateCache(Collection<String> templateNames) {
+    this(templateNames, DEFAULT_ENTRY_TTL);
+  }
+
+  DlpTemplateCache(Collection<String> templateNames, Duration entryTtl) {
+    this.templateNames = ImmutableSet.copyOf(templateNames);
+    this.templates = CacheBuilder.newBuilder().expireAfterWrite(entryTtl).recordStats().build();
+  }
+
+  /** Exports the hit ratio of the cached templates. */
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    GuavaCacheMetrics.monitor(registry, templates, "dlp.templates");
+  }
+
+  /** Returns a cache that doesn't cache any template. */
+  public static DlpTemplateCache disabled() {
+    return new DlpTemplateCache(ImmutableSet.of());
+  }
+
+  public ImmutableSet<String> templateNames() {
+    return templateNames;
+  }
+
+  /**
+   * Returns the template, fetching it using the client if it is configured for caching and not
+   * present, otherwise fetches the template without caching it.
+   */
+  public PreparedTemplate get(String templateName, DlpServiceClient dlpClient) {
+    if (!templateNames.contains(templateName)) {
+      return prepare(templateName, dlpClient);
+    }
+
+    try {
+      return templates.get(templateName, () -> prepare(templateName, dlpClient));
+    } catch (ExecutionException | UncheckedExecutionException exception) {
+      Throwables.throwIfUnchecked(exception.getCause());
+      throw new IllegalStateException(exception.getCause());
+    }
+  }
+
+  /**
+   * Returns the template like {@link #get(String, DlpServiceClient)}, creating a client only when
+   * the template needs to be fetched.
+   */
+  public PreparedTemplate get(String templateName, DlpClientFactory dlpClientFactory)
+      throws Exception {
+    var cachedTemplate = templates.getIfPresent(templateName);
+    if (cachedTemplate != null) {
+      return cachedTemplate;
+    }
+
+    try (var dlpClient = dlpClientFactory.newClient()) {
+      return get(templateName, dlpClient);
+    }
+  }
+
+  /**
+   * Fetches the configured template and precomputes its reidentify request config. A template
+   * that can't be reidentified is still cached for deidentify calls.
+   */
+  public PreparedTemplate prefetch(String templateName, DlpServiceClient dlpClient) {
+    var template = prepare(templateName, dlpClient);
+
+    try {
+      template.reidRequestMaker().precompute();
+    } catch (RuntimeException reidException) {
+      logger.atInfo().log(
+          "Template (%s) not reidentifiable: %s", templateName, reidException.getMessage());
+    }
+
+    if (templateNames.contains(templateName)) {
+      templates.put(templateName, template);
+    }
+
+    return template;
+  }
+
+  private static PreparedTemplate prepare(String templateName, DlpServiceClient dlpClient) {
+    var template = dlpClient.getDeidentifyTemplate(templateName);
+    var deidentifyConfig = template.getDeidentifyConfig();
+    var reidRequestMaker = DlpReIdRequestMaker.forConfig(deidentifyConfig);
+
+    return new PreparedTemplate(
+        templateName,
+        DlpFn.extractDlpParent(templateName),
+        deidentifyConfig,
+        template.getUpdateTime(),
+        reidRequestMaker,
+        surrogateMarkerFilter(reidRequestMaker));
+  }
+
+  private static Optional<SurrogateMarkerFilter> surrogateMarkerFilter(
+      DlpReIdRequestMaker reidRequestMaker) {
+    try {
+      return reidRequestMaker
+          .requiredSurrogateNames()
+          .map(SurrogateMarkerFilter::forSurrogateNames);
+    } catch (RuntimeException unsupportedTemplate) {
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.GoogleLogger;
+import com.google.privacy.dlp.v2.CryptoDeterministicConfig;
+import com.google.privacy.dlp.v2.DateShiftConfig;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RedactConfig;
+import com.google.privacy.dlp.v2.ReplaceValueConfig;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Executes the record transformations of a {@link DeidentifyConfig} in-process for the value
+ * column, when every transformation applied to the column can be computed locally without
+ * inspection.
+ *
+ * <p>Supported transformations:
+ *
+ * <ul>
+ *   <li>{@link CryptoDeterministicConfig} with an unwrapped key, computed using AES-SIV.
+ *   <li>{@link ReplaceValueConfig} with a string value and {@link RedactConfig}.
+ * </ul>
+ *
+ * <p>{@link DateShiftConfig} is sent to DLP, whose shift derivation is not documented. Character
+ * masking and bucketing are sent to DLP too, see {@link LocalPrimitiveTransforms}.
+ *
+ * <p>Only the crypto transformation is reversible, the engine of any other template returns empty
+ * for every reidentify batch.
+ *
+ * <p>Batches that cannot be transformed locally (e.g. a token that fails verification) return
+ * empty, for the caller to use the DLP API instead.
+ */
+public final class LocalDeidentifyEngine {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** A value transformation created for processing a single batch. */
+  interface ValueTransform {
+
+    String deidentify(String value) throws GeneralSecurityException;
+  }
+
+  /** A value transformation that can also restore the values from their tokens. */
+  interface ReversibleTransform extends ValueTransform {
+
+    String reidentify(String token) throws GeneralSecurityException;
+  }
+
+  /** The compiled configuration of a value transformation, safe to share between batches. */
+  interface ValueTransformSpec {
+
+    ValueTransform newTransform() throws GeneralSecurityException;
+  }
+
+  /** The compiled configuration of a reversible value transformation. */
+  interface ReversibleTransformSpec extends ValueTransformSpec {
+
+    @Override
+    ReversibleTransform newTransform() throws GeneralSecurityException;
+  }
+
+  /** Transforms a single value of a batch. */
+  private interface ValueFn {
+
+    String apply(String value) throws GeneralSecurityException;
+  }
+
+  private final ValueTransformSpec transformSpec;
+
+  /** The transformation used to reidentify, null for one-way transformations. */
+  @Nullable private final ReversibleTransformSpec reversibleSpec;
+
+  private LocalDeidentifyEngine(ValueTransformSpec transformSpec) {
+    this.transformSpec = transformSpec;
+    this.reversibleSpec =
+        (transformSpec instanceof ReversibleTransformSpec reversible) ? reversible : null;
+  }
+
+  /**
+   * Returns an engine for the config's transformations of the column, or empty when any of the
+   * transformations is not supported locally.
+   */
+  public static Optional<LocalDeidentifyEngine> compile(
+      DeidentifyConfig deidentifyConfig, String columnName) {
+    try {
+      return Optional.of(new LocalDeidentifyEngine(compileSpec(deidentifyConfig, columnName)));
+    } catch (UnsupportedTransformationException unsupportedException) {
+      logger.atInfo().log(
+          "Local transformation not supported: %s", unsupportedException.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  public boolean isReversible() {
+    return reversibleSpec != null;
+  }
+
+  /** Returns the deidentified rows, or empty when the batch needs to be sent to DLP. */
+  public Optional<List<String>> deidentify(List<String> rows) {
+    try {
+      return transformRows(rows, transformSpec.newTransform()::deidentify);
+    } catch (GeneralSecurityException exception) {
+      return useDlp(exception);
+    }
+  }
+
+  /**
+   * Returns the reidentified rows, or empty when the batch needs to be sent to DLP, which is always
+   * the case for one-way transformations.
+   */
+  public Optional<List<String>> reidentify(List<String> rows) {
+    if (reversibleSpec == null) {
+      return Optional.empty();
+    }
+
+    try {
+      return transformRows(rows, reversibleSpec.newTransform()::reidentify);
+    } catch (GeneralSecurityException exception) {
+      return useDlp(exception);
+    }
+  }
+
+  private static Optional<List<String>> transformRows(List<String> rows, ValueFn valueFn) {
+    try {
+      var outputRows = ImmutableList.<String>builderWithExpectedSize(rows.size());
+
+      for (var row : rows) {
+        // DLP's handling of empty cells is not replicated locally.
+        if (row.isEmpty()) {
+          return Optional.empty();
+        }
+
+        outputRows.add(valueFn.apply(row));
+      }
+
+      return Optional.of(outputRows.build());
+    } catch (GeneralSecurityException | RuntimeException exception) {
+      return useDlp(exception);
+    }
+  }
+
+  private static Optional<List<String>> useDlp(Exception exception) {
+    logger.atInfo().atMostEvery(1, TimeUnit.MINUTES).log(
+        "Local transformation failed, using DLP: %s", exception.getMessage());
+    return Optional.empty();
+  }
+
+  private static ValueTransformSpec compileSpec(
+      DeidentifyConfig deidentifyConfig, String columnName) {
+
+    if (!deidentifyConfig.hasRecordTransformations()) {
+      throw new UnsupportedTransformationException(
+          "%s requires inspection", deidentifyConfig.getTransformationCase());
+    }
+
+    var recordTransformations = deidentifyConfig.getRecordTransformations();
+
+    if (recordTransformations.getRecordSuppressionsCount() > 0) {
+      throw new UnsupportedTransformationException("record suppressions");
+    }
+
+    var columnTransformations =
+        recordTransformations.getFieldTransformationsList().stream()
+            .filter(
+                fieldTransformation ->
+                    fieldTransformation.getFieldsList().stream()
+                        .map(FieldId::getName)
+                        .anyMatch(columnName::equals))
+            .toList();
+
+    if (columnTransformations.size() != 1) {
+      throw new UnsupportedTransformationException(
+          "%s transformations for column %s", columnTransformations.size(), columnName);
+    }
+
+    return compileFieldTransformation(columnTransformations.get(0));
+  }
+
+  private static ValueTransformSpec compileFieldTransformation(
+      FieldTransformation fieldTransformation) {
+
+    if (fieldTransformation.hasCondition()) {
+      throw new UnsupportedTransformationException("conditional field transformation");
+    }
+
+    if (!fieldTransformation.hasPrimitiveTransformation()) {
+      throw new UnsupportedTransformationException(
+          "%s requires inspection", fieldTransformation.getTransformationCase());
+    }
+
+    return compilePrimitive(fieldTransformation.getPrimitiveTransformation());
+  }
+
+  private static ValueTransformSpec compilePrimitive(
+      PrimitiveTransformation primitiveTransformation) {
+    return switch (primitiveTransformation.getTransformationCase()) {
+      case CRYPTO_DETERMINISTIC_CONFIG -> compileCryptoDeterministic(
+          primitiveTransformation.getCryptoDeterministicConfig());
+      case REPLACE_CONFIG -> LocalPrimitiveTransforms.replaceValue(
+          primitiveTransformation.getReplaceConfig());
+      case REDACT_CONFIG -> LocalPrimitiveTransforms.redact();
+      default -> throw new UnsupportedTransformationException(
+          "primitive %s", primitiveTransformation.getTransformationCase());
+    };
+  }
+
+  private static ReversibleTransformSpec compileCryptoDeterministic(
+      CryptoDeterministicConfig config) {
+    if (config.hasContext()) {
+      throw new UnsupportedTransformationException("crypto deterministic context");
+    }
+
+    if (!config.getCryptoKey().hasUnwrapped()) {
+      throw new UnsupportedTransformationException(
+          "crypto key %s", config.getCryptoKey().getSourceCase());
+    }
+
+    var key = config.getCryptoKey().getUnwrapped().getKey().toByteArray();
+
+    if (key.length != 32 && key.length != 48 && key.length != 64) {
+      throw new UnsupportedTransformationException("crypto key of %s bytes", key.length);
+    }
+
+    var surrogateName =
+        config.hasSurrogateInfoType() && !config.getSurrogateInfoType().getName().isBlank()
+            ? config.getSurrogateInfoType().getName()
+            : null;
+
+    return () -> new CryptoDeterministicTransform(new AesSiv(key), surrogateName);
+  }
+
+  /**
+   * AES-SIV tokens encoded as Base64 of a version byte followed by the synthetic IV and the
+   * ciphertext, optionally annotated as {@code SURROGATE_NAME(<token length>):<token>}.
+   */
+  private static final class CryptoDeterministicTransform implements ReversibleTransform {
+
+    private static final byte TOKEN_VERSION = 1;
+
+    private final AesSiv aesSiv;
+    @Nullable private final String surrogateName;
+
+    private CryptoDeterministicTransform(AesSiv aesSiv, @Nullable String surrogateName) {
+      this.aesSiv = aesSiv;
+      this.surrogateName = surrogateName;
+    }
+
+    @Override
+    public String deidentify(String value) throws GeneralSecurityException {
+      var ciphertext = aesSiv.encrypt(value.getBytes(StandardCharsets.UTF_8));
+
+      var tokenBytes = new byte[ciphertext.length + 1];
+      tokenBytes[0] = TOKEN_VERSION;
+      System.arraycopy(ciphertext, 0, tokenBytes, 1, ciphertext.length);
+
+      var token = Base64.getEncoder().encodeToString(tokenBytes);
+
+      return (surrogateName == null) ? token : surrogateName + "(" + token.length() + "):" + token;
+    }
+
+    @Override
+    public String reidentify(String surrogateToken) throws GeneralSecurityException {
+      var tokenBytes = Base64.getDecoder().decode(stripSurrogate(surrogateToken));
+
+      if (tokenBytes.length == 0 || tokenBytes[0] != TOKEN_VERSION) {
+        throw new GeneralSecurityException("Unknown token version");
+      }
+
+      var plaintext = aesSiv.decrypt(Arrays.copyOfRange(tokenBytes, 1, tokenBytes.length));
+      return new String(plaintext, StandardCharsets.UTF_8);
+    }
+
+    private String stripSurrogate(String surrogateToken) throws GeneralSecurityException {
+      if (surrogateName == null) {
+        return surrogateToken;
+      }
+
+      var lengthStart = surrogateName.length() + 1;
+      var lengthEnd = surrogateToken.indexOf("):", lengthStart);
+
+      if (!surrogateToken.startsWith(surrogateName + "(") || lengthEnd < 0) {
+        throw new GeneralSecurityException("Surrogate annotation not found");
+      }
+
+      var token = surrogateToken.substring(lengthEnd + 2);
+
+      if (Integer.parseInt(surrogateToken.substring(lengthStart, lengthEnd)) != token.length()) {
+        throw new GeneralSecurityException("Surrogate token length mismatch");
+      }
+
+      return token;
+    }
+  }
+
+  /** Thrown when a template contains a transformation that can't be executed locally. */
+  static final class UnsupportedTransformationException extends RuntimeException {
+    UnsupportedTransformationException(String messageFormat, Object... args) {
+      super(String.format(messageFormat, args));
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpTemplateCache.PreparedTemplate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.flogger.GoogleLogger;
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Caches the {@link LocalDeidentifyEngine} compiled for each version of a DeidentifyTemplate, as
+ * identified by its update time, along with the result of verifying its output against the DLP
+ * API.
+ *
+ * <p>Deidentify and reidentify outputs are verified separately. An operation's local output is
+ * used only after a batch computed both locally and through DLP has matched exactly. Afterwards,
+ * one batch in {@link #VERIFICATION_SAMPLE_PERIOD} is still computed both ways. A mismatch
+ * disables the operation's local output for the template version until the entry expires.
+ */
+final class LocalEngineRegistry {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  static final Duration DEFAULT_ENTRY_TTL = Duration.ofMinutes(10);
+
+  /** Number of batches of a verified engine for each batch that is verified again. */
+  static final int VERIFICATION_SAMPLE_PERIOD = 100;
+
+  enum Verification {
+    UNVERIFIED,
+    VERIFIED,
+    MISMATCHED
+  }
+
+  /** The compiled engine of a template version and the verification state of each operation. */
+  static final class Entry {
+    private final Optional<LocalDeidentifyEngine> engine;
+    private final Verifier deidentifyVerifier;
+    private final Verifier reidentifyVerifier;
+
+    private Entry(String templateName, Optional<LocalDeidentifyEngine> engine) {
+      this.engine = engine;
+      this.deidentifyVerifier = new Verifier(templateName, "deidentify");
+      this.reidentifyVerifier = new Verifier(templateName, "reidentify");
+    }
+
+    /** Returns the engine for deidentify unless it's unsupported or its output did not match. */
+    Optional<LocalDeidentifyEngine> deidentifyEngine() {
+      return deidentifyVerifier.isMismatched() ? Optional.empty() : engine;
+    }
+
+    /** Returns the engine for reidentify unless it's unsupported or its output did not match. */
+    Optional<LocalDeidentifyEngine> reidentifyEngine() {
+      return reidentifyVerifier.isMismatched() ? Optional.empty() : engine;
+    }
+
+    Verifier deidentifyVerifier() {
+      return deidentifyVerifier;
+    }
+
+    Verifier reidentifyVerifier() {
+      return reidentifyVerifier;
+    }
+  }
+
+  /** The verification state of one operation of an engine. */
+  static final class Verifier {
+    private final String templateName;
+    private final String operation;
+    private final AtomicReference<Verification> verification;
+    private final AtomicLong verifiedBatches;
+
+    private Verifier(String templateName, String operation) {
+      this.templateName = templateName;
+      this.operation = operation;
+      this.verification = new AtomicReference<>(Verification.UNVERIFIED);
+      this.verifiedBatches = new AtomicLong();
+    }
+
+    private boolean isMismatched() {
+      return verification.get() == Verification.MISMATCHED;
+    }
+
+    /**
+     * Returns true when the batch's local output can be used without DLP, false for the batches
+     * until the first verification and for a sample of the batches afterwards.
+     */
+    boolean skipsVerification() {
+      return verification.get() == Verification.VERIFIED
+          && verifiedBatches.incrementAndGet() % VERIFICATION_SAMPLE_PERIOD != 0;
+    }
+
+    void recordVerification(boolean matched) {
+      // A mismatch of a sampled batch also disables a verified engine.
+      var changed =
+          matched
+              ? verification.compareAndSet(Verification.UNVERIFIED, Verification.VERIFIED)
+              : verification.getAndSet(Verification.MISMATCHED) != Verification.MISMATCHED;
+
+      if (changed) {
+        logger.atInfo().log(
+            "Local %s for template (%s) %s DLP output",
+            operation, templateName, matched ? "matched" : "did not match");
+      }
+    }
+  }
+
+  /** Identifies the engine of a column for a version of a template. */
+  private record EngineKey(String templateName, Timestamp updateTime, String columnName) {}
+
+  private final Cache<EngineKey, Entry> entries;
+
+  LocalEngineRegistry() {
+    this(DEFAULT_ENTRY_TTL);
+  }
+
+  LocalEngineRegistry(Duration entryTtl) {
+    this.entries = CacheBuilder.newBuilder().expireAfterWrite(entryTtl).recordStats().build();
+  }
+
+  /** Exports the hit ratio of the engines cache, returning this registry. */
+  LocalEngineRegistry bindTo(MeterRegistry registry) {
+    GuavaCacheMetrics.monitor(registry, entries, "dlp.localEngines");
+    return this;
+  }
+
+  /**
+   * Returns the cached entry for the template's version, compiling the engine using the template's
+   * DeidentifyConfig when not present.
+   */
+  Entry get(PreparedTemplate template, String columnName) throws ExecutionException {
+    return entries.get(
+        new EngineKey(template.name(), template.updateTime(), columnName),
+        () ->
+            new Entry(
+                template.name(),
+                LocalDeidentifyEngine.compile(template.deidentifyConfig(), columnName)));
+  }
+}
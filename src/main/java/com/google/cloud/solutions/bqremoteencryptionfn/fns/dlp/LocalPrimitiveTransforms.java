@@ -0,0 +1,62 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngine.UnsupportedTransformationException;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngine.ValueTransform;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngine.ValueTransformSpec;
+import com.google.privacy.dlp.v2.ReplaceValueConfig;
+import com.google.privacy.dlp.v2.Value;
+import java.util.function.UnaryOperator;
+
+/**
+ * Compiles the inspection-free DLP primitive transformations into per-value functions for {@link
+ * LocalDeidentifyEngine}.
+ *
+ * <p>Only the transformations whose output doesn't depend on the value are supported, so that a
+ * verified batch shows that every other value matches DLP too. Character masking and bucketing
+ * depend on the characters and the range of each value, and are sent to DLP.
+ *
+ * <p>The cell values sent to DLP are always strings, so replacement values are supported only when
+ * they are strings.
+ */
+final class LocalPrimitiveTransforms {
+
+  static ValueTransformSpec replaceValue(ReplaceValueConfig config) {
+    var replacement = stringValue(config.getNewValue(), "replace value");
+    return oneWay(value -> replacement);
+  }
+
+  static ValueTransformSpec redact() {
+    return oneWay(value -> "");
+  }
+
+  private static String stringValue(Value value, String usage) {
+    if (!value.hasStringValue()) {
+      throw new UnsupportedTransformationException("%s of type %s", usage, value.getTypeCase());
+    }
+
+    return value.getStringValue();
+  }
+
+  private static ValueTransformSpec oneWay(UnaryOperator<String> valueFn) {
+    ValueTransform transform = valueFn::apply;
+    return () -> transform;
+  }
+
+  private LocalPrimitiveTransforms() {}
+}
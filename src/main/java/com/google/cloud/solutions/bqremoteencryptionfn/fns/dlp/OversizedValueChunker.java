@@ -0,0 +1,283 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpRequestBatchExecutor.HOT_PATH_LOG_PERIOD_SECONDS;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.InfoTypeTransformations;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Splits a value too large for a single DLP table cell into chunks that can be transformed as
+ * separate rows and concatenated back.
+ *
+ * <p>The value is first inspected in overlapping windows, with the inspect template or config the
+ * transformation itself uses, and chunks are cut on whitespace boundaries outside of any finding,
+ * so a finding spanning two chunks is still transformed as a whole. There is no chunker without
+ * inspection, as a finding cut in two may no longer be detected and would be left untransformed.
+ */
+public final class OversizedValueChunker {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** Number of characters each inspection window shares with the next one. */
+  public static final int DEFAULT_OVERLAP_CHARS = 256;
+
+  /** The inspection request without the content item. */
+  private final InspectContentRequest requestPrototype;
+
+  private final int overlapChars;
+
+  private OversizedValueChunker(InspectContentRequest requestPrototype, int overlapChars) {
+    this.requestPrototype = requestPrototype;
+    this.overlapChars = overlapChars;
+  }
+
+  /** Returns a chunker that avoids cutting through findings of the inspect template. */
+  public static OversizedValueChunker withInspection(String parent, String inspectTemplateName) {
+    return withInspection(parent, inspectTemplateName, InspectConfig.getDefaultInstance());
+  }
+
+  /**
+   * Returns a chunker that avoids cutting through findings of the inspect template, if not empty,
+   * combined with the inspect config, as DLP does for a request with both.
+   */
+  public static OversizedValueChunker withInspection(
+      String parent, String inspectTemplateName, InspectConfig inspectConfig) {
+    return new OversizedValueChunker(
+        InspectContentRequest.newBuilder()
+            .setParent(parent)
+            .setInspectTemplateName(inspectTemplateName)
+            .setInspectConfig(inspectConfig)
+            .build(),
+        DEFAULT_OVERLAP_CHARS);
+  }
+
+  /**
+   * Returns a chunker that avoids cutting through findings of the info types the config
+   * transforms, or empty when the config transforms whole values, as each chunk would then be
+   * transformed on its own.
+   */
+  public static Optional<OversizedValueChunker> forDeidentifyConfig(
+      String parent, DeidentifyConfig deidentifyConfig) {
+    return inspectConfigFor(deidentifyConfig)
+        .map(inspectConfig -> withInspection(parent, "", inspectConfig));
+  }
+
+  /**
+   * Returns the inspect config finding the info types of the config's info-type transformations,
+   * or empty when the config has any other transformation.
+   */
+  @VisibleForTesting
+  static Optional<InspectConfig> inspectConfigFor(DeidentifyConfig deidentifyConfig) {
+    var infoTypeTransformations =
+        switch (deidentifyConfig.getTransformationCase()) {
+          case INFO_TYPE_TRANSFORMATIONS -> List.of(deidentifyConfig.getInfoTypeTransformations());
+          case RECORD_TRANSFORMATIONS -> {
+            var fieldTransformations =
+                deidentifyConfig.getRecordTransformations().getFieldTransformationsList();
+            if (!fieldTransformations.stream()
+                .allMatch(FieldTransformation::hasInfoTypeTransformations)) {
+              yield List.<InfoTypeTransformations>of();
+            }
+            yield fieldTransformations.stream()
+                .map(FieldTransformation::getInfoTypeTransformations)
+                .toList();
+          }
+          case IMAGE_TRANSFORMATIONS, TRANSFORMATION_NOT_SET -> List.<InfoTypeTransformations>of();
+        };
+
+    if (infoTypeTransformations.isEmpty()) {
+      return Optional.empty();
+    }
+
+    var transformations =
+        infoTypeTransformations.stream()
+            .flatMap(transformation -> transformation.getTransformationsList().stream())
+            .toList();
+
+    // A transformation without info types applies to all the info types detected by default.
+    if (transformations.stream()
+        .anyMatch(transformation -> transformation.getInfoTypesCount() == 0)) {
+      return Optional.of(InspectConfig.getDefaultInstance());
+    }
+
+    return Optional.of(
+        InspectConfig.newBuilder()
+            .addAllInfoTypes(
+                transformations.stream()
+                    .flatMap(transformation -> transformation.getInfoTypesList().stream())
+                    .distinct()
+                    .toList())
+            .build());
+  }
+
+  /**
+   * Returns the chunks of the value, whose concatenation is the value itself.
+   *
+   * @param inspectFn sends an inspection request, e.g. through the retrying caller of the batch.
+   * @param value the value to split.
+   * @param maxChunkBytes the UTF-8 size of a chunk, exceeded only to keep a finding whole.
+   */
+  public CompletableFuture<List<String>> chunk(
+      Function<InspectContentRequest, CompletableFuture<InspectContentResponse>> inspectFn,
+      String value,
+      int maxChunkBytes) {
+    checkArgument(
+        maxChunkBytes > overlapChars * 4,
+        "maxChunkBytes (%s) too small for overlap of %s chars",
+        maxChunkBytes,
+        overlapChars);
+
+    return inspectFindings(inspectFn, value, maxChunkBytes - overlapChars * 4)
+        .thenApply(
+            findingRanges -> {
+              var chunks = cutChunks(value, maxChunkBytes, findingRanges);
+
+              logger.atInfo().atMostEvery(HOT_PATH_LOG_PERIOD_SECONDS, TimeUnit.SECONDS).log(
+                  "Split value of %s chars into %s chunks around %s findings",
+                  value.length(), chunks.size(), findingRanges.asRanges().size());
+              return chunks;
+            });
+  }
+
+  /**
+   * Returns the char ranges of findings in the value, inspected in overlapping windows sent one
+   * after the other.
+   */
+  private CompletableFuture<RangeSet<Integer>> inspectFindings(
+      Function<InspectContentRequest, CompletableFuture<InspectContentResponse>> inspectFn,
+      String value,
+      int maxWindowCoreBytes) {
+    RangeSet<Integer> findingRanges = TreeRangeSet.create();
+    var inspections = CompletableFuture.<Void>completedFuture(null);
+
+    var windowStart = 0;
+    for (var core : cutChunks(value, maxWindowCoreBytes, ImmutableRangeSet.of())) {
+      var windowEnd = Math.min(value.length(), windowStart + core.length() + overlapChars);
+      if (windowEnd < value.length() && Character.isHighSurrogate(value.charAt(windowEnd - 1))) {
+        windowEnd--;
+      }
+
+      var offset = windowStart;
+      var window = value.substring(windowStart, windowEnd);
+      var request =
+          requestPrototype.toBuilder().setItem(ContentItem.newBuilder().setValue(window)).build();
+
+      inspections =
+          inspections
+              .thenCompose(unused -> inspectFn.apply(request))
+              .thenAccept(
+                  response -> {
+                    for (var finding : response.getResult().getFindingsList()) {
+                      var codepointRange = finding.getLocation().getCodepointRange();
+                      var start = window.offsetByCodePoints(0, (int) codepointRange.getStart());
+                      var end = window.offsetByCodePoints(0, (int) codepointRange.getEnd());
+                      findingRanges.add(Range.closedOpen(offset + start, offset + end));
+                    }
+                  });
+
+      windowStart += core.length();
+    }
+
+    return inspections.thenApply(unused -> findingRanges);
+  }
+
+  /**
+   * Cuts the value into chunks of at most {@code maxChunkBytes} UTF-8 bytes, preferring to cut
+   * after a whitespace and never cutting inside one of the protected ranges.
+   */
+  @VisibleForTesting
+  static ImmutableList<String> cutChunks(
+      String value, int maxChunkBytes, RangeSet<Integer> protectedRanges) {
+    var chunks = ImmutableList.<String>builder();
+
+    var chunkStart = 0;
+    while (chunkStart < value.length()) {
+      var cut = cutPoint(value, chunkStart, maxChunkBytes, protectedRanges);
+      chunks.add(value.substring(chunkStart, cut));
+      chunkStart = cut;
+    }
+
+    return chunks.build();
+  }
+
+  private static int cutPoint(
+      String value, int chunkStart, int maxChunkBytes, RangeSet<Integer> protectedRanges) {
+    var limit = chunkStart;
+    var bytes = 0;
+    while (limit < value.length()) {
+      var codePoint = value.codePointAt(limit);
+      bytes += utf8Length(codePoint);
+      if (bytes > maxChunkBytes) {
+        break;
+      }
+      limit += Character.charCount(codePoint);
+    }
+
+    if (limit == value.length()) {
+      return limit;
+    }
+
+    var cut = limit;
+    for (int index = limit; index > chunkStart; index--) {
+      if (Character.isWhitespace(value.charAt(index - 1))) {
+        cut = index;
+        break;
+      }
+    }
+
+    var protectedRange = protectedRanges.rangeContaining(cut);
+    if (protectedRange != null && protectedRange.lowerEndpoint() < cut) {
+      cut =
+          protectedRange.lowerEndpoint() > chunkStart
+              ? protectedRange.lowerEndpoint()
+              : protectedRange.upperEndpoint();
+    }
+
+    return Math.max(cut, chunkStart + Character.charCount(value.codePointAt(chunkStart)));
+  }
+
+  private static int utf8Length(int codePoint) {
+    if (codePoint < 0x80) {
+      return 1;
+    } else if (codePoint < 0x800) {
+      return 2;
+    } else if (codePoint < 0x10000) {
+      return 3;
+    }
+    return 4;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.rpc.FixedHeaderProvider;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.HeaderProvider;
+import com.google.api.gax.rpc.TransportChannel;
+import com.google.api.gax.rpc.UnaryCallSettings;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.dlp.v2.DlpServiceSettings;
+import com.google.cloud.dlp.v2.stub.DlpServiceStubSettings;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.GoogleLogger;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates DLP clients routed to the endpoint serving a template's location, sharing one gRPC
+ * channel pool for each endpoint across all clients.
+ *
+ * <p>Locations are mapped to regional endpoints using {@code DLP_REGIONAL_ENDPOINTS}, as comma
+ * separated {@code location=endpoint} pairs, e.g. {@code
+ * europe-west3=dlp.europe-west3.rep.googleapis.com:443}. Locations without an endpoint use the
+ * default DLP endpoint.
+ *
+ * <p>Clients created by this factory don't own the channels, so closing a client keeps the
+ * channels open for the next call. The channels are closed by {@link #close()}.
+ *
+ * <p>The channels add the current trace context to the calls using the provided propagator.
+ *
+ * <p>The content calls are sent once by the clients, as {@link DlpRetryPolicy} retries them, and
+ * the default client retries would multiply the attempts of every retry.
+ */
+public final class RegionalDlpClientFactory implements DlpClientFactory, AutoCloseable {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private final ImmutableMap<String, String> locationEndpoints;
+  private final int channelsPerEndpoint;
+  private final HeaderProvider headerProvider;
+  private final TextMapPropagator tracePropagator;
+  private final ScheduledExecutorService backgroundExecutor;
+  private final Map<String, RegionalChannel> endpointChannels;
+
+  public RegionalDlpClientFactory(
+      Map<String, String> locationEndpoints,
+      int channelsPerEndpoint,
+      HeaderProvider headerProvider) {
+    this(locationEndpoints, channelsPerEndpoint, headerProvider, TextMapPropagator.noop());
+  }
+
+  public RegionalDlpClientFactory(
+      Map<String, String> locationEndpoints,
+      int channelsPerEndpoint,
+      HeaderProvider headerProvider,
+      TextMapPropagator tracePropagator) {
+    checkArgument(
+        channelsPerEndpoint > 0,
+        "channelsPerEndpoint should be positive. Found %s",
+        channelsPerEndpoint);
+    this.locationEndpoints = ImmutableMap.copyOf(locationEndpoints);
+    this.channelsPerEndpoint = channelsPerEndpoint;
+    this.headerProvider = headerProvider;
+    this.tracePropagator = tracePropagator;
+    this.backgroundExecutor = Executors.newScheduledThreadPool(channelsPerEndpoint);
+    this.endpointChannels = new ConcurrentHashMap<>();
+  }
+
+  /** Parses the {@code location=endpoint} pairs of {@code DLP_REGIONAL_ENDPOINTS}. */
+  public static ImmutableMap<String, String> parseLocationEndpoints(String locationEndpoints) {
+    return ImmutableMap.copyOf(
+        Splitter.on(',')
+            .trimResults()
+            .omitEmptyStrings()
+            .withKeyValueSeparator(Splitter.on('=').trimResults())
+            .split(locationEndpoints));
+  }
+
+  /** Returns the endpoint serving the location. */
+  public String endpointFor(String location) {
+    return locationEndpoints.getOrDefault(location, DlpServiceSettings.getDefaultEndpoint());
+  }
+
+  @Override
+  public DlpServiceClient newClient() throws IOException {
+    return DlpServiceClient.create(settingsFor(DlpServiceSettings.getDefaultEndpoint()));
+  }
+
+  @Override
+  public DlpServiceClient newClient(String location) throws IOException {
+    return DlpServiceClient.create(settingsFor(endpointFor(location)));
+  }
+
+  DlpServiceSettings settingsFor(String endpoint) {
+    return endpointChannels.computeIfAbsent(endpoint, this::openChannel).settings();
+  }
+
+  private RegionalChannel openChannel(String endpoint) {
+    try {
+      var headers =
+          FixedHeaderProvider.create(
+              ImmutableMap.<String, String>builder()
+                  .putAll(
+                      DlpServiceStubSettings.defaultApiClientHeaderProviderBuilder()
+                          .build()
+                          .getHeaders())
+                  .putAll(headerProvider.getHeaders())
+                  .buildKeepingLast());
+
+      var transportChannel =
+          DlpServiceSettings.defaultGrpcTransportProviderBuilder()
+              .setEndpoint(endpoint)
+              .setHeaderProvider(headers)
+              .setChannelPoolSettings(ChannelPoolSettings.staticallySized(channelsPerEndpoint))
+              .setInterceptorProvider(() -> List.of(new TraceContextInterceptor(tracePropagator)))
+              .build()
+              .getTransportChannel();
+
+      var settingsBuilder =
+          DlpServiceSettings.newBuilder()
+              .setEndpoint(endpoint)
+              .setHeaderProvider(headerProvider)
+              .setTransportChannelProvider(FixedTransportChannelProvider.create(transportChannel))
+              .setBackgroundExecutorProvider(FixedExecutorProvider.create(backgroundExecutor));
+      disableRetries(settingsBuilder.deidentifyContentSettings());
+      disableRetries(settingsBuilder.reidentifyContentSettings());
+      disableRetries(settingsBuilder.inspectContentSettings());
+      var settings = settingsBuilder.build();
+
+      logger.atInfo().log(
+          "Opened %s DLP channels for endpoint (%s)", channelsPerEndpoint, endpoint);
+      return new RegionalChannel(transportChannel, settings);
+    } catch (IOException ioException) {
+      throw new UncheckedIOException(
+          "Unable to open channel for DLP endpoint " + endpoint, ioException);
+    }
+  }
+
+  /** Sends the calls once, keeping their default timeouts. */
+  private static void disableRetries(UnaryCallSettings.Builder<?, ?> callSettings) {
+    callSettings.setRetrySettings(
+        callSettings.getRetrySettings().toBuilder().setMaxAttempts(1).build());
+  }
+
+  @Override
+  public void close() throws Exception {
+    for (var channel : endpointChannels.values()) {
+      channel.transportChannel().close();
+    }
+    endpointChannels.clear();
+    backgroundExecutor.shutdown();
+  }
+
+  private record RegionalChannel(TransportChannel transportChannel, DlpServiceSettings settings) {}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * Matches values containing a surrogate annotation marker ({@code SURROGATE_NAME(}) of any of the
+ * given surrogate info-types.
+ *
+ * <p>The markers are compiled into an Aho-Corasick automaton, so each value is scanned once
+ * irrespective of the number of surrogate names. Instances are immutable and thread-safe.
+ */
+public final class SurrogateMarkerFilter implements Predicate<String> {
+
+  private static final int ASCII_LIMIT = 128;
+
+  /** Maps ASCII characters to alphabet index, index 0 is for characters absent in the markers. */
+  private final int[] alphabetIndex;
+
+  private final int alphabetSize;
+
+  /** Transition table of the automaton, indexed by {@code state * alphabetSize + charIndex}. */
+  private final int[] transitions;
+
+  private final boolean[] matchStates;
+
+  private SurrogateMarkerFilter(
+      int[] alphabetIndex, int alphabetSize, int[] transitions, boolean[] matchStates) {
+    this.alphabetIndex = alphabetIndex;
+    this.alphabetSize = alphabetSize;
+    this.transitions = transitions;
+    this.matchStates = matchStates;
+  }
+
+  /** Returns a filter matching the annotation markers of the surrogate info-type names. */
+  public static SurrogateMarkerFilter forSurrogateNames(Collection<String> surrogateNames) {
+    checkArgument(!surrogateNames.isEmpty(), "surrogate names required");
+
+    var markers = surrogateNames.stream().map(name -> name + "(").toList();
+
+    var alphabetIndex = new int[ASCII_LIMIT];
+    var alphabetSize = 1;
+    for (var marker : markers) {
+      for (var ch : marker.toCharArray()) {
+        checkArgument(ch < ASCII_LIMIT, "Non-ASCII surrogate name: %s", marker);
+        if (alphabetIndex[ch] == 0) {
+          alphabetIndex[ch] = alphabetSize++;
+        }
+      }
+    }
+
+    // Build the trie, -1 denotes a missing edge.
+    var trie = new ArrayList<int[]>();
+    var matches = new ArrayList<Boolean>();
+    trie.add(newState(alphabetSize));
+    matches.add(false);
+
+    for (var marker : markers) {
+      var state = 0;
+      for (var ch : marker.toCharArray()) {
+        var index = alphabetIndex[ch];
+        if (trie.get(state)[index] < 0) {
+          trie.get(state)[index] = trie.size();
+          trie.add(newState(alphabetSize));
+          matches.add(false);
+        }
+        state = trie.get(state)[index];
+      }
+      matches.set(state, true);
+    }
+
+    // Convert the trie to a DFA by resolving missing edges through failure links (BFS order).
+    var stateCount = trie.size();
+    var transitions = new int[stateCount * alphabetSize];
+    var matchStates = new boolean[stateCount];
+    var failure = new int[stateCount];
+    var queue = new ArrayDeque<Integer>();
+
+    for (int index = 0; index < alphabetSize; index++) {
+      var next = trie.get(0)[index];
+      transitions[index] = Math.max(next, 0);
+      if (next > 0) {
+        queue.add(next);
+      }
+    }
+    matchStates[0] = matches.get(0);
+
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      matchStates[state] = matches.get(state) || matchStates[failure[state]];
+
+      for (int index = 0; index < alphabetSize; index++) {
+        var next = trie.get(state)[index];
+        var fallback = transitions[failure[state] * alphabetSize + index];
+
+        if (next < 0) {
+          transitions[state * alphabetSize + index] = fallback;
+        } else {
+          failure[next] = fallback;
+          transitions[state * alphabetSize + index] = next;
+          queue.add(next);
+        }
+      }
+    }
+
+    return new SurrogateMarkerFilter(alphabetIndex, alphabetSize, transitions, matchStates);
+  }
+
+  /** Returns true when the value contains any of the surrogate markers. */
+  @Override
+  public boolean test(String value) {
+    var state = 0;
+
+    for (int position = 0; position < value.length(); position++) {
+      var ch = value.charAt(position);
+      var index = (ch < ASCII_LIMIT) ? alphabetIndex[ch] : 0;
+      state = transitions[state * alphabetSize + index];
+
+      if (matchStates[state]) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static int[] newState(int alphabetSize) {
+    var edges = new int[alphabetSize];
+    Arrays.fill(edges, -1);
+    return edges;
+  }
+}
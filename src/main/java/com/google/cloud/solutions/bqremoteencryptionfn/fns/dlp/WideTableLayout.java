@@ -0,0 +1,199 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Wide layout of DLP request tables, which packs several values in each row across identically
+ * transformed columns, to reduce the per-row protobuf framing and the DLP per-row overhead of short
+ * values.
+ *
+ * <p>The first column keeps the value column's name, so info-type transformations without a
+ * context need no change, and record transformations on the value column are repeated on every
+ * other column with {@link #expandConfig}, which also renames a crypto or date shift {@code
+ * context} naming the value column to each column.
+ */
+public final class WideTableLayout {
+
+  private WideTableLayout() {}
+
+  /** Returns the table column names: the value column followed by {@code valueColumn_<i>}. */
+  public static ImmutableList<String> columnNames(String dlpColumnName, int rowWidth) {
+    checkArgument(rowWidth > 0, "rowWidth (%s) should be positive", rowWidth);
+
+    return IntStream.range(0, rowWidth)
+        .mapToObj(index -> index == 0 ? dlpColumnName : dlpColumnName + "_" + index)
+        .collect(toImmutableList());
+  }
+
+  /**
+   * Returns the config with the field transformations of the value column applied to all the
+   * columns of a wide table.
+   *
+   * <p>A crypto or date shift {@code context} naming the value column tweaks each value with
+   * itself, so the transformations using one are repeated per column with the context renamed to
+   * that column, including info-type transformations, which then become per column record
+   * transformations. Conditions of the transformations and record suppressions are not rewritten.
+   */
+  public static DeidentifyConfig expandConfig(
+      DeidentifyConfig deidentifyConfig, String dlpColumnName, int rowWidth) {
+    if (rowWidth == 1) {
+      return deidentifyConfig;
+    }
+
+    var columnFields =
+        columnNames(dlpColumnName, rowWidth).stream()
+            .map(name -> FieldId.newBuilder().setName(name).build())
+            .collect(toImmutableList());
+
+    if (deidentifyConfig.hasInfoTypeTransformations()) {
+      var valueColumn =
+          FieldTransformation.newBuilder()
+              .addFields(columnFields.get(0))
+              .setInfoTypeTransformations(deidentifyConfig.getInfoTypeTransformations())
+              .build();
+
+      if (!usesValueContext(valueColumn, columnFields)) {
+        return deidentifyConfig;
+      }
+
+      return deidentifyConfig.toBuilder()
+          .setRecordTransformations(
+              RecordTransformations.newBuilder()
+                  .addAllFieldTransformations(
+                      perColumn(valueColumn, columnFields).collect(toImmutableList())))
+          .build();
+    }
+
+    if (!deidentifyConfig.hasRecordTransformations()) {
+      return deidentifyConfig;
+    }
+
+    var recordTransformations = deidentifyConfig.getRecordTransformations();
+
+    return deidentifyConfig.toBuilder()
+        .setRecordTransformations(
+            RecordTransformations.newBuilder(recordTransformations)
+                .clearFieldTransformations()
+                .addAllFieldTransformations(
+                    recordTransformations.getFieldTransformationsList().stream()
+                        .flatMap(transformation -> expandFields(transformation, columnFields))
+                        .collect(toImmutableList())))
+        .build();
+  }
+
+  private static Stream<FieldTransformation> expandFields(
+      FieldTransformation fieldTransformation, ImmutableList<FieldId> columnFields) {
+    if (!fieldTransformation.getFieldsList().contains(columnFields.get(0))) {
+      return Stream.of(fieldTransformation);
+    }
+
+    if (usesValueContext(fieldTransformation, columnFields)) {
+      return perColumn(fieldTransformation, columnFields);
+    }
+
+    var expanded = fieldTransformation.toBuilder();
+    columnFields.stream()
+        .filter(field -> !fieldTransformation.getFieldsList().contains(field))
+        .forEach(expanded::addFields);
+    return Stream.of(expanded.build());
+  }
+
+  /**
+   * Returns the transformation of the value column, followed by a copy for each other column with
+   * the value column context renamed to the column.
+   */
+  private static Stream<FieldTransformation> perColumn(
+      FieldTransformation fieldTransformation, ImmutableList<FieldId> columnFields) {
+    var copies =
+        columnFields.stream()
+            .skip(1)
+            .filter(field -> !fieldTransformation.getFieldsList().contains(field))
+            .map(
+                field ->
+                    renameContexts(
+                        fieldTransformation.toBuilder().clearFields().addFields(field).build(),
+                        columnFields.get(0),
+                        field));
+
+    return Stream.concat(Stream.of(fieldTransformation), copies);
+  }
+
+  private static boolean usesValueContext(
+      FieldTransformation fieldTransformation, ImmutableList<FieldId> columnFields) {
+    return !renameContexts(fieldTransformation, columnFields.get(0), columnFields.get(1))
+        .equals(fieldTransformation);
+  }
+
+  /** Returns the transformation with the contexts naming the {@code from} field renamed. */
+  private static FieldTransformation renameContexts(
+      FieldTransformation fieldTransformation, FieldId from, FieldId to) {
+    var renamed = fieldTransformation.toBuilder();
+
+    if (fieldTransformation.hasPrimitiveTransformation()) {
+      renamed.setPrimitiveTransformation(
+          renameContext(fieldTransformation.getPrimitiveTransformation(), from, to));
+    }
+
+    if (fieldTransformation.hasInfoTypeTransformations()) {
+      for (var transformation :
+          renamed.getInfoTypeTransformationsBuilder().getTransformationsBuilderList()) {
+        transformation.setPrimitiveTransformation(
+            renameContext(transformation.getPrimitiveTransformation(), from, to));
+      }
+    }
+
+    return renamed.build();
+  }
+
+  private static PrimitiveTransformation renameContext(
+      PrimitiveTransformation primitiveTransformation, FieldId from, FieldId to) {
+    var renamed = primitiveTransformation.toBuilder();
+
+    switch (primitiveTransformation.getTransformationCase()) {
+      case CRYPTO_DETERMINISTIC_CONFIG -> {
+        if (from.equals(primitiveTransformation.getCryptoDeterministicConfig().getContext())) {
+          renamed.getCryptoDeterministicConfigBuilder().setContext(to);
+        }
+      }
+      case CRYPTO_REPLACE_FFX_FPE_CONFIG -> {
+        if (from.equals(primitiveTransformation.getCryptoReplaceFfxFpeConfig().getContext())) {
+          renamed.getCryptoReplaceFfxFpeConfigBuilder().setContext(to);
+        }
+      }
+      case DATE_SHIFT_CONFIG -> {
+        if (from.equals(primitiveTransformation.getDateShiftConfig().getContext())) {
+          renamed.getDateShiftConfigBuilder().setContext(to);
+        }
+      }
+      default -> {}
+    }
+
+    return renamed.build();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.localmask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.Nullable;
+import org.springframework.core.io.Resource;
+
+/**
+ * Configuration Model of the regex detectors used by {@link LocalMaskFn}.
+ *
+ * <p>Sample configuration:
+ *
+ * <pre>{@code
+ * {
+ *   "detectors": [
+ *     { "name": "EMAIL_ADDRESS", "pattern": "[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+", "action": "MASK" },
+ *     { "name": "PHONE_NUMBER", "pattern": "\\d{3}-\\d{3}-\\d{4}", "action": "REPLACE" }
+ *   ]
+ * }
+ * }</pre>
+ *
+ * @param detectors the detectors in order of precedence, when matches start at the same position.
+ */
+public record DetectorConfig(List<Detector> detectors) {
+
+  /** The action applied to the text matched by a detector. */
+  public enum Action {
+    /** Replaces every character of the match with the masking character. */
+    MASK,
+
+    /** Replaces the match with the replacement text, {@code [NAME]} by default. */
+    REPLACE
+  }
+
+  /**
+   * A single regex based detector.
+   *
+   * @param name the info-type name of the detector, e.g. EMAIL_ADDRESS
+   * @param pattern the {@link Pattern} to match, without capturing groups or backreferences as
+   *     the patterns are combined into one, use {@code (?:...)} for grouping
+   * @param action the action to apply on a match, MASK by default
+   * @param maskingCharacter the character used by MASK, '*' by default
+   * @param replacement the text used by REPLACE
+   */
+  public record Detector(
+      String name,
+      String pattern,
+      @Nullable Action action,
+      @Nullable String maskingCharacter,
+      @Nullable String replacement) {
+
+    public Action effectiveAction() {
+      return (action == null) ? Action.MASK : action;
+    }
+
+    public String effectiveMaskingCharacter() {
+      return (maskingCharacter == null || maskingCharacter.isEmpty()) ? "*" : maskingCharacter;
+    }
+
+    public String effectiveReplacement() {
+      return (replacement == null) ? "[" + name + "]" : replacement;
+    }
+  }
+
+  private static final Gson jsonMapper = new Gson();
+
+  public static DetectorConfig fromJson(String json) {
+    return validate(jsonMapper.fromJson(json, DetectorConfig.class));
+  }
+
+  public static DetectorConfig fromResource(Resource resource) throws IOException {
+    try (Reader reader = new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8)) {
+      return validate(jsonMapper.fromJson(reader, DetectorConfig.class));
+    }
+  }
+
+  private static DetectorConfig validate(DetectorConfig config) {
+    checkArgument(
+        config != null && config.detectors() != null && !config.detectors().isEmpty(),
+        "detectors are required");
+
+    for (var detector : config.detectors()) {
+      checkArgument(
+          detector.name() != null && !detector.name().isBlank(), "detector name is required");
+      checkArgument(
+          detector.pattern() != null && !detector.pattern().isEmpty(),
+          "pattern is required for detector (%s)",
+          detector.name());
+      checkArgument(
+          !usesCapturingGroups(detector.pattern()),
+          "pattern of detector (%s) should not use capturing groups or backreferences, use (?:...)"
+              + " for grouping",
+          detector.name());
+
+      var maskingCharacter = detector.effectiveMaskingCharacter();
+      checkArgument(
+          maskingCharacter.codePointCount(0, maskingCharacter.length()) == 1,
+          "maskingCharacter should be a single character for detector (%s). Found (%s)",
+          detector.name(),
+          maskingCharacter);
+    }
+
+    return config;
+  }
+
+  /**
+   * Returns true when the pattern has capturing groups or backreferences, which would refer to the
+   * groups of other detectors once the patterns are combined. Invalid patterns are reported when
+   * compiling the detectors.
+   */
+  private static boolean usesCapturingGroups(String pattern) {
+    for (int index = 0; index < pattern.length() - 1; index++) {
+      if (pattern.charAt(index) == '\\') {
+        var escaped = pattern.charAt(++index);
+        if ((escaped >= '1' && escaped <= '9') || escaped == 'k') {
+          return true;
+        }
+      }
+    }
+
+    try {
+      return Pattern.compile(pattern).matcher("").groupCount() > 0;
+    } catch (PatternSyntaxException syntaxException) {
+      return false;
+    }
+  }
+
+  /** Returns the detectors with the given names, case-insensitive, in configured order. */
+  public DetectorConfig select(List<String> names) {
+    var upperNames = names.stream().map(name -> name.trim().toUpperCase(Locale.ROOT)).toList();
+    var selected =
+        detectors.stream()
+            .filter(detector -> upperNames.contains(detector.name().toUpperCase(Locale.ROOT)))
+            .toList();
+
+    checkArgument(
+        selected.size() == upperNames.stream().distinct().count(),
+        "Unknown detector in (%s). Configured: %s",
+        names,
+        detectors.stream().map(Detector::name).toList());
+
+    return new DetectorConfig(selected);
+  }
+}
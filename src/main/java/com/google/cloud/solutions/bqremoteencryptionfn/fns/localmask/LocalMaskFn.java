@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.localmask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.TransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.UnaryStringArgFn;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nonnull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Masks the text matched by regex detectors (e.g. emails, phone numbers, IP addresses) locally,
+ * without calling DLP inspection.
+ *
+ * <p>The detectors are loaded from the JSON file configured by {@code localmask.detectorConfig}
+ * (see {@link DetectorConfig}). A call can select a subset using the {@code localmask-info-types}
+ * option with comma separated detector names.
+ *
+ * <p>Batches larger than {@code localmask.chunkSize} are split into chunks that are processed in
+ * parallel on a pool of the factory, sized to the available processors, instead of the common
+ * fork-join pool. Masking is irreversible, hence reidentify is not supported.
+ */
+public final class LocalMaskFn extends UnaryStringArgFn {
+
+  public static final String FN_NAME = "localmask";
+
+  public static final String INFO_TYPES_KEY = "localmask-info-types";
+
+  /** Number of distinct {@code localmask-info-types} selections kept compiled. */
+  static final int MAX_SELECTED_DETECTORS = 64;
+
+  @Component
+  @PropertySource("classpath:localmask.properties")
+  public static class LocalMaskTransformFnFactory implements TransformFnFactory<LocalMaskFn> {
+
+    private final DetectorConfig detectorConfig;
+    private final int chunkSize;
+    private final CompiledDetectors allDetectors;
+    private final LoadingCache<String, CompiledDetectors> selectedDetectors;
+    private final ExecutorService chunkExecutor;
+
+    public LocalMaskTransformFnFactory(
+        @Value("${localmask.detectorConfig}") Resource detectorConfigResource,
+        @Value("${localmask.chunkSize}") int chunkSize)
+        throws IOException {
+      this(DetectorConfig.fromResource(detectorConfigResource), chunkSize);
+    }
+
+    public LocalMaskTransformFnFactory(DetectorConfig detectorConfig, int chunkSize) {
+      checkArgument(chunkSize > 0, "chunkSize should be positive. Found %s", chunkSize);
+      this.detectorConfig = detectorConfig;
+      this.chunkSize = chunkSize;
+      this.allDetectors = CompiledDetectors.compile(detectorConfig);
+      this.selectedDetectors =
+          CacheBuilder.newBuilder()
+              .maximumSize(MAX_SELECTED_DETECTORS)
+              .build(CacheLoader.from(this::compileSelected));
+      this.chunkExecutor =
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              new ThreadFactoryBuilder().setNameFormat("localmask-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public LocalMaskFn createFn(@Nonnull Map<String, String> options) {
+      var infoTypes = options.get(INFO_TYPES_KEY);
+
+      if (infoTypes == null || infoTypes.isBlank()) {
+        return new LocalMaskFn(allDetectors, chunkSize, chunkExecutor);
+      }
+
+      try {
+        return new LocalMaskFn(selectedDetectors.getUnchecked(infoTypes), chunkSize, chunkExecutor);
+      } catch (UncheckedExecutionException exception) {
+        Throwables.throwIfUnchecked(exception.getCause());
+        throw new IllegalStateException(exception.getCause());
+      }
+    }
+
+    private CompiledDetectors compileSelected(String infoTypes) {
+      return CompiledDetectors.compile(
+          detectorConfig.select(
+              Splitter.on(',').trimResults().omitEmptyStrings().splitToList(infoTypes)));
+    }
+
+    @Override
+    public String getFnName() {
+      return FN_NAME;
+    }
+  }
+
+  private final CompiledDetectors detectors;
+  private final int chunkSize;
+  private final Executor chunkExecutor;
+
+  private LocalMaskFn(CompiledDetectors detectors, int chunkSize, Executor chunkExecutor) {
+    this.detectors = detectors;
+    this.chunkSize = chunkSize;
+    this.chunkExecutor = chunkExecutor;
+  }
+
+  @Override
+  public String getName() {
+    return FN_NAME;
+  }
+
+  @Override
+  protected List<String> deidentifyUnaryRow(List<String> rows) {
+    if (rows.size() <= chunkSize) {
+      return rows.stream().map(detectors::apply).collect(toImmutableList());
+    }
+
+    var chunkFutures =
+        Lists.partition(rows, chunkSize).stream()
+            .map(
+                chunk ->
+                    CompletableFuture.supplyAsync(
+                        () -> chunk.stream().map(detectors::apply).collect(toImmutableList()),
+                        chunkExecutor))
+            .toList();
+
+    return chunkFutures.stream()
+        .map(CompletableFuture::join)
+        .flatMap(List::stream)
+        .collect(toImmutableList());
+  }
+
+  @Override
+  protected List<String> reidentifyUnaryRow(List<String> rows) {
+    throw new UnsupportedOperationException("localmask is irreversible, reidentify not supported");
+  }
+}
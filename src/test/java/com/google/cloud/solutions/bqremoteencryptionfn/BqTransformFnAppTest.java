@@ -20,6 +20,7 @@ import static com.google.cloud.solutions.bqremoteencryptionfn.testing.JsonMapper
 import static com.google.cloud.solutions.bqremoteencryptionfn.testing.JsonMapper.jsonToProto;
 import static com.google.cloud.solutions.bqremoteencryptionfn.testing.SimpleBigQueryRemoteFnRequestMaker.testRequest;
 import static com.google.common.truth.Truth.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 
 import com.google.cloud.dlp.v2.DlpServiceClient;
@@ -72,6 +73,7 @@ public final class BqTransformFnAppTest {
   static {
     System.setProperty("AES_KEY", "2lDNBd0hHgCZ+1/P+fWO+g==");
     System.setProperty("AES_IV_PARAMETER_BASE64", "/t2/6YFewDgoHeQM1QBZdw==");
+    System.setProperty("AES_KEYRING", "k2:Um90YXRlZEtleTEyMzQ1Ng==");
   }
 
   @ClassRule public static final SpringClassRule SPRING_CLASS_RULE = new SpringClassRule();
@@ -104,8 +106,14 @@ public final class BqTransformFnAppTest {
 
   @Test
   public void operation_valid() throws Exception {
+    var asyncResult =
+        mockMvc
+            .perform(post("/").contentType("application/json").content(testRequestJson))
+            .andExpect(MockMvcResultMatchers.request().asyncStarted())
+            .andReturn();
+
     mockMvc
-        .perform(post("/").contentType("application/json").content(testRequestJson))
+        .perform(asyncDispatch(asyncResult))
         .andExpect(MockMvcResultMatchers.status().isOk())
         .andExpect(
             result ->
@@ -164,6 +172,17 @@ public final class BqTransformFnAppTest {
               /* expectedResult= */ new BigQueryRemoteFnResponse(List.of("Anant", "Damle"), null),
               /* factories= */ List.of()
             })
+        .add(
+            new Object[] {
+              /* testName= */ "LocalMask Deidentify",
+              /* testRequestJson= */ testRequest(
+                  Map.of("mode", "deidentify", "algo", "localmask"),
+                  List.of("Mail anant@example.com"),
+                  List.of("Call 555-123-4567")),
+              /* expectedResult= */ new BigQueryRemoteFnResponse(
+                  List.of("Mail *****************", "Call ############"), null),
+              /* factories= */ List.of()
+            })
         .add(
             new Object[] {
               /* testName= */ "AES128-ECB Deidentify",
@@ -194,6 +213,46 @@ public final class BqTransformFnAppTest {
               /* expectedResult= */ new BigQueryRemoteFnResponse(List.of("Anant", "Damle"), null),
               /* factories= */ List.of()
             })
+        .add(
+            new Object[] {
+              /* testName= */ "AES128-ECB Keyring Deidentify",
+              /* testRequestJson= */ testRequest(
+                  Map.of(
+                      "mode", "deidentify",
+                      "algo", "aes",
+                      "aes-cipher-type", "AES/ECB/PKCS5PADDING",
+                      "aes-key-id", "k2"),
+                  List.of("Anant"),
+                  List.of("Damle")),
+              /* expectedResult= */ new BigQueryRemoteFnResponse(
+                  List.of("k2:wLZ4KPZgJpq4EPOJZ7xQVw==", "k2:CF+oPrqT9izNHTV1SUGxkw=="), null),
+              /* factories= */ List.of()
+            })
+        .add(
+            new Object[] {
+              /* testName= */ "AES128-ECB Keyring Mixed Keys ReIdentify",
+              /* testRequestJson= */ testRequest(
+                  Map.of(
+                      "mode",
+                      "reidentify",
+                      "algo",
+                      "aes",
+                      "aes-cipher-type",
+                      "AES/ECB/PKCS5PADDING"),
+                  List.of("nrUwN61laFc115jyyQHmng=="),
+                  List.of("k2:CF+oPrqT9izNHTV1SUGxkw==")),
+              /* expectedResult= */ new BigQueryRemoteFnResponse(List.of("Anant", "Damle"), null),
+              /* factories= */ List.of()
+            })
+        .add(
+            new Object[] {
+              /* testName= */ "AES Keyring Unknown Key-id Deidentify",
+              /* testRequestJson= */ testRequest(
+                  Map.of("mode", "deidentify", "algo", "aes", "aes-key-id", "k3"),
+                  List.of("Anant")),
+              /* expectedResult= */ new BigQueryRemoteFnResponse(null, "Unknown AES key-id (k3)"),
+              /* factories= */ List.of()
+            })
         .add(
             new Object[] {
               /* testName= */ "AES128 (default: CBC) Deidentify",
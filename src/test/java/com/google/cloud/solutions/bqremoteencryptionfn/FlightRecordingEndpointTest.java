@@ -0,0 +1,86 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.file.Files;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+
+@RunWith(JUnit4.class)
+public final class FlightRecordingEndpointTest {
+
+  private final FlightRecordingEndpoint endpoint =
+      new FlightRecordingEndpoint("default", /* defaultMaxAgeSeconds= */ 60);
+
+  @After
+  public void closeEndpoint() {
+    endpoint.close();
+  }
+
+  @Test
+  public void dump_containsTransformEvents() throws Exception {
+    endpoint.start(null);
+
+    var event = new FlightRecorderEvents.TablePacking();
+    event.begin();
+    event.values = 10;
+    event.tables = 2;
+    event.commit();
+
+    var dumpFile = Files.createTempFile("FlightRecordingEndpointTest", ".jfr");
+    try {
+      Files.write(dumpFile, endpoint.dump().getBody().getContentAsByteArray());
+
+      var packingEvents =
+          RecordingFile.readAllEvents(dumpFile).stream()
+              .filter(recorded -> recorded.getEventType().getName().equals("bqfn.TablePacking"))
+              .toList();
+      assertThat(packingEvents).hasSize(1);
+      assertThat(packingEvents.get(0).getInt("values")).isEqualTo(10);
+      assertThat(packingEvents.get(0).getInt("tables")).isEqualTo(2);
+    } finally {
+      Files.deleteIfExists(dumpFile);
+    }
+  }
+
+  @Test
+  public void start_reportsRecording() throws Exception {
+    var status = endpoint.start(/* maxAgeSeconds= */ 30L);
+
+    assertThat(status).containsEntry("recording", true);
+    assertThat(status).containsEntry("maxAgeSeconds", 30L);
+  }
+
+  @Test
+  public void dump_withoutRecording_notFound() throws Exception {
+    assertThat(endpoint.dump().getStatus()).isEqualTo(WebEndpointResponse.STATUS_NOT_FOUND);
+  }
+
+  @Test
+  public void stop_endsRecording() throws Exception {
+    endpoint.start(null);
+
+    assertThat(endpoint.stop()).containsEntry("recording", false);
+    assertThat(endpoint.dump().getStatus()).isEqualTo(WebEndpointResponse.STATUS_NOT_FOUND);
+  }
+}
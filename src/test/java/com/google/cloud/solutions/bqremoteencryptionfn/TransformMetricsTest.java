@@ -0,0 +1,101 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryFnCallController.CallMode;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class TransformMetricsTest {
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final TransformMetrics metrics = new TransformMetrics(registry);
+
+  @Test
+  public void startRequest_countedActiveUntilComplete() {
+    var recording = metrics.startRequest(List.of(List.of("a")));
+
+    assertThat(registry.get("bqfn.requests.active").gauge().value()).isEqualTo(1.0);
+
+    recording.complete("success");
+
+    assertThat(registry.get("bqfn.requests.active").gauge().value()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void startRequest_costCurrentUntilComplete() {
+    var recording =
+        metrics.startRequest(
+            new BigQueryRemoteFnRequest(
+                "request1", "caller1", "user1", Map.of(), List.of(List.of("a"))));
+
+    assertThat(RequestCost.current()).isSameInstanceAs(recording.cost());
+
+    recording.complete("success");
+
+    assertThat(RequestCost.current()).isNotSameInstanceAs(recording.cost());
+  }
+
+  @Test
+  public void currentCost_outsideCall_discardsCosts() {
+    RequestCost.current().recordDlpRequest(100, /* failed= */ false);
+    RequestCost.current().recordStage("pack", 100);
+
+    assertThat(RequestCost.current().dlpRequests()).isEqualTo(0);
+    assertThat(RequestCost.current().stageNanos("pack")).isEqualTo(0);
+  }
+
+  @Test
+  public void complete_recordsTaggedLatencyRowsAndBytes() {
+    var recording = metrics.startRequest(List.of(List.of("abc"), List.of("é")));
+    recording.setTransform("base64", CallMode.DEIDENTIFY);
+    recording.complete("success");
+
+    assertThat(
+            registry
+                .get("bqfn.requests")
+                .tags("algo", "base64", "mode", "deidentify", "outcome", "success")
+                .timer()
+                .count())
+        .isEqualTo(1);
+    assertThat(registry.get("bqfn.request.rows").tag("algo", "base64").summary().totalAmount())
+        .isEqualTo(2.0);
+    assertThat(registry.get("bqfn.request.bytes").tag("algo", "base64").summary().totalAmount())
+        .isEqualTo(5.0);
+  }
+
+  @Test
+  public void complete_unresolvedFunction_taggedUnknown() {
+    metrics.startRequest(null).complete("error");
+
+    assertThat(
+            registry
+                .get("bqfn.requests")
+                .tags("algo", "unknown", "mode", "unknown", "outcome", "error")
+                .timer()
+                .count())
+        .isEqualTo(1);
+    assertThat(registry.find("bqfn.request.rows").summary()).isNull();
+  }
+}
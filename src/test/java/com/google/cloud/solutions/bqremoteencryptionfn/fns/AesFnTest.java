@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesFn.AesKeyType;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AesFnTest {
+
+  private static final String DEFAULT_KEY = "2lDNBd0hHgCZ+1/P+fWO+g==";
+  private static final String KEYRING = "k2:Um90YXRlZEtleTEyMzQ1Ng==";
+  private static final String CIPHER_TYPE = "AES/ECB/PKCS5PADDING";
+
+  @Test
+  public void reidentify_legacyAndKeyedTokens_decryptedWithTheirKeys() throws Exception {
+    var legacyFn = newFn(AesFn.DEFAULT_KEY_ID);
+    var keyedFn = newFn("k2");
+    var legacyToken = legacyFn.deidentifyUnaryRow(List.of("Anant")).get(0);
+    var keyedToken = keyedFn.deidentifyUnaryRow(List.of("Damle")).get(0);
+
+    assertThat(keyedToken).startsWith("k2:");
+    assertThat(legacyFn.reidentifyUnaryRow(List.of(legacyToken, keyedToken)))
+        .containsExactly("Anant", "Damle")
+        .inOrder();
+  }
+
+  @Test
+  public void reidentify_prefixNotConfiguredKeyId_decodesWholeTokenAsLegacy() throws Exception {
+    var fn = newFn(AesFn.DEFAULT_KEY_ID);
+    var legacyToken = fn.deidentifyUnaryRow(List.of("Anant")).get(0);
+
+    var exception =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> fn.reidentifyUnaryRow(List.of("k9:" + legacyToken)));
+
+    // The whole token reaches the Base64 decoder, instead of failing on an unknown key-id.
+    assertThat(exception).hasMessageThat().doesNotContain("key-id");
+    assertThat(exception).hasMessageThat().contains("3a");
+  }
+
+  @Test
+  public void parseKeyring_invalidKeyId_throws() {
+    var exception =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> AesFn.parseKeyring(DEFAULT_KEY, "bad id:Um90YXRlZEtleTEyMzQ1Ng=="));
+
+    assertThat(exception).hasMessageThat().contains("Invalid AES key-id (bad id)");
+  }
+
+  private static AesFn newFn(String encryptKeyId) {
+    return new AesFn(
+        AesFn.parseKeyring(DEFAULT_KEY, KEYRING),
+        encryptKeyId,
+        AesKeyType.BASE64_KEY,
+        CIPHER_TYPE,
+        /* ivParameterBase64= */ "",
+        CipherProviders.DEFAULT_PROVIDER_NAME,
+        AesTokenCodec.defaultCodec());
+  }
+}
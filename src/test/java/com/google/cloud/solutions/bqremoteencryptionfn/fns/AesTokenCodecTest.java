@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesTokenCodec.Compression;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.AesTokenCodec.TokenEncoding;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AesTokenCodecTest {
+
+  private static final String LONG_VALUE =
+      "My name is John Doe. My email is john@doe.com. ".repeat(10);
+
+  @Test
+  public void toPlaintext_noCompression_utf8Bytes() {
+    var codec = AesTokenCodec.defaultCodec();
+
+    assertThat(codec.toPlaintext(LONG_VALUE))
+        .isEqualTo(LONG_VALUE.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void toPlaintext_shortValue_storedRaw() throws Exception {
+    var codec = new AesTokenCodec(Compression.DEFLATE, 64, null, TokenEncoding.BASE64);
+
+    var plaintext = codec.toPlaintext("Anant");
+
+    assertThat(plaintext).isEqualTo("Anant".getBytes(StandardCharsets.UTF_8));
+    assertThat(codec.fromPlaintext(plaintext)).isEqualTo("Anant");
+  }
+
+  @Test
+  public void fromPlaintext_compressionEnabled_readsTokenWrittenWithoutCompression()
+      throws Exception {
+    var legacyCodec = AesTokenCodec.defaultCodec();
+    var legacyToken = legacyCodec.encode(legacyCodec.toPlaintext(LONG_VALUE));
+    var codec = new AesTokenCodec(Compression.DEFLATE, 64, null, TokenEncoding.BASE64);
+
+    assertThat(codec.fromPlaintext(codec.decode(legacyToken))).isEqualTo(LONG_VALUE);
+  }
+
+  @Test
+  public void toPlaintext_longValue_compressed() throws Exception {
+    var codec = new AesTokenCodec(Compression.DEFLATE, 64, null, TokenEncoding.BASE64);
+
+    var plaintext = codec.toPlaintext(LONG_VALUE);
+
+    assertThat(plaintext.length).isLessThan(LONG_VALUE.length() / 2);
+    assertThat(codec.fromPlaintext(plaintext)).isEqualTo(LONG_VALUE);
+  }
+
+  @Test
+  public void fromPlaintext_withDictionary_valid() throws Exception {
+    var dictionary = "My name is John Doe. My email is".getBytes(StandardCharsets.UTF_8);
+    var codec = new AesTokenCodec(Compression.DEFLATE, 16, dictionary, TokenEncoding.BASE64);
+
+    var plaintext = codec.toPlaintext("My name is Jane Doe. My email is jane@doe.com");
+
+    assertThat(codec.fromPlaintext(plaintext))
+        .isEqualTo("My name is Jane Doe. My email is jane@doe.com");
+  }
+
+  @Test
+  public void fromPlaintext_dictionaryMissing_throwsDataFormatException() {
+    var dictionary = "My name is John Doe. My email is".getBytes(StandardCharsets.UTF_8);
+    var plaintext =
+        new AesTokenCodec(Compression.DEFLATE, 16, dictionary, TokenEncoding.BASE64)
+            .toPlaintext(LONG_VALUE);
+    var codec = new AesTokenCodec(Compression.DEFLATE, 16, null, TokenEncoding.BASE64);
+
+    assertThrows(DataFormatException.class, () -> codec.fromPlaintext(plaintext));
+  }
+
+  @Test
+  public void encode_base64Url_noPadding() {
+    var codec = new AesTokenCodec(Compression.NONE, 64, null, TokenEncoding.BASE64URL);
+    var bytes = new byte[] {(byte) 0xfb, (byte) 0xff, 0x01, 0x02};
+
+    var token = codec.encode(bytes);
+
+    assertThat(token).isEqualTo("-_8BAg");
+    assertThat(codec.decode(token)).isEqualTo(bytes);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.security.Provider;
+import javax.crypto.Cipher;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class CipherProvidersTest {
+
+  @Test
+  public void findProvider_defaultName_empty() {
+    assertThat(CipherProviders.findProvider(CipherProviders.DEFAULT_PROVIDER_NAME)).isEmpty();
+  }
+
+  @Test
+  public void findProvider_installedProvider_valid() {
+    assertThat(CipherProviders.findProvider("SunJCE").map(Provider::getName)).hasValue("SunJCE");
+  }
+
+  @Test
+  public void newCipher_unknownProvider_fallsBackToDefault() throws Exception {
+    var cipher = CipherProviders.newCipher("AES/CBC/PKCS5PADDING", "NotAProvider");
+
+    assertThat(cipher.getProvider().getName())
+        .isEqualTo(Cipher.getInstance("AES/CBC/PKCS5PADDING").getProvider().getName());
+  }
+}
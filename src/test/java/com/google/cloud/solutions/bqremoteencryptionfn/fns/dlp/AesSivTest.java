@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.io.BaseEncoding;
+import javax.crypto.AEADBadTagException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AesSivTest {
+
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  @Test
+  public void encrypt_rfc5297DeterministicVector_valid() throws Exception {
+    var aesSiv =
+        new AesSiv(HEX.decode("fffefdfcfbfaf9f8f7f6f5f4f3f2f1f0f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff"));
+
+    var output =
+        aesSiv.encrypt(
+            HEX.decode("112233445566778899aabbccddee"),
+            HEX.decode("101112131415161718191a1b1c1d1e1f2021222324252627"));
+
+    assertThat(HEX.encode(output))
+        .isEqualTo("85632d07c6e8f37f950acd320a2ecc9340c02b9690c4dc04daef7f6afe5c");
+  }
+
+  @Test
+  public void encrypt_rfc5297NonceBasedVector_valid() throws Exception {
+    var aesSiv =
+        new AesSiv(HEX.decode("7f7e7d7c7b7a79787776757473727170404142434445464748494a4b4c4d4e4f"));
+
+    var output =
+        aesSiv.encrypt(
+            HEX.decode(
+                "7468697320697320736f6d6520706c61696e7465787420746f20656e6372797074207573696e67"
+                    + "205349562d414553"),
+            HEX.decode(
+                "00112233445566778899aabbccddeeffdeaddadadeaddadaffeeddccbbaa99887766554433221100"),
+            HEX.decode("102030405060708090a0"),
+            HEX.decode("09f911029d74e35bd84156c5635688c0"));
+
+    assertThat(HEX.encode(output))
+        .isEqualTo(
+            "7bdb6e3b432667eb06f4d14bff2fbd0fcb900f2fddbe404326601965c889bf17dba77ceb094fa663b7a3"
+                + "f748ba8af829ea64ad544a272e9c485b62a3fd5c0d");
+  }
+
+  @Test
+  public void decrypt_roundTrip_valid() throws Exception {
+    var aesSiv = new AesSiv(new byte[64]);
+
+    var plaintext = "My name is John Doe".getBytes();
+
+    assertThat(aesSiv.decrypt(aesSiv.encrypt(plaintext))).isEqualTo(plaintext);
+  }
+
+  @Test
+  public void decrypt_tamperedCiphertext_throwsAeadBadTagException() throws Exception {
+    var aesSiv = new AesSiv(new byte[32]);
+    var ciphertext = aesSiv.encrypt("Anant".getBytes());
+    ciphertext[ciphertext.length - 1] ^= 1;
+
+    assertThrows(AEADBadTagException.class, () -> aesSiv.decrypt(ciphertext));
+  }
+
+  @Test
+  public void new_invalidKeyLength_throwsIllegalArgumentException() {
+    var exception = assertThrows(IllegalArgumentException.class, () -> new AesSiv(new byte[16]));
+
+    assertThat(exception)
+        .hasMessageThat()
+        .isEqualTo("AES-SIV key must be 32, 48 or 64 bytes. Found 16");
+  }
+}
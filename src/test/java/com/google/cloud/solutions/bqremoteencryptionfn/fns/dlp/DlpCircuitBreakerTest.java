@@ -0,0 +1,273 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpRetryPolicyTest.apiException;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.RetryableTransformException;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpCircuitBreaker.Settings;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpCircuitBreaker.State;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DlpCircuitBreakerTest {
+
+  private static final Duration OPEN_DURATION = Duration.ofSeconds(30);
+
+  private final AtomicLong clockNanos = new AtomicLong();
+
+  private final DlpCircuitBreakers breakers =
+      new DlpCircuitBreakers(
+          new Settings(
+              /* windowSize= */ 10,
+              /* minimumCalls= */ 5,
+              /* failureRateThreshold= */ 0.5,
+              /* slowCallDuration= */ Duration.ofSeconds(5),
+              /* slowCallRateThreshold= */ 0.8,
+              OPEN_DURATION,
+              /* halfOpenProbes= */ 2),
+          clockNanos::get);
+
+  private final DlpCircuitBreaker breaker = breakers.forLocation("us-central1");
+
+  @Test
+  public void forLocation_sameLocation_sameBreaker() {
+    assertThat(breakers.forLocation("us-central1")).isSameInstanceAs(breaker);
+    assertThat(breakers.forLocation("global")).isNotSameInstanceAs(breaker);
+  }
+
+  @Test
+  public void failures_belowMinimumCalls_staysClosed() {
+    recordFailures(4, Status.Code.UNAVAILABLE);
+
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+    breaker.acquirePermission();
+  }
+
+  @Test
+  public void failureRate_aboveThreshold_opensAndRejectsCalls() {
+    recordSuccesses(5, Duration.ofMillis(10));
+    recordFailures(5, Status.Code.DEADLINE_EXCEEDED);
+
+    assertThat(breaker.state()).isEqualTo(State.OPEN);
+    assertThat(breakers.transitionCount(State.OPEN)).isEqualTo(1);
+    assertThat(breakers.states()).containsExactly("us-central1", State.OPEN);
+    assertThrows(RetryableTransformException.class, breaker::acquirePermission);
+  }
+
+  @Test
+  public void failures_oldOutcomesLeaveTheWindow() {
+    recordFailures(2, Status.Code.UNAVAILABLE);
+    recordSuccesses(10, Duration.ofMillis(10));
+    recordFailures(4, Status.Code.UNAVAILABLE);
+
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void nonBackendFailures_ignored() {
+    recordFailures(10, Status.Code.INVALID_ARGUMENT);
+    IntStream.range(0, 10)
+        .forEach(
+            i -> breaker.onFailure(breaker.acquirePermission(), new IllegalStateException("bug")));
+
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void slowCallRate_aboveThreshold_opens() {
+    recordSuccesses(8, Duration.ofSeconds(6));
+
+    assertThat(breaker.state()).isEqualTo(State.OPEN);
+  }
+
+  @Test
+  public void openDurationElapsed_halfOpenAllowsProbesOnly() {
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+
+    breaker.acquirePermission();
+    breaker.acquirePermission();
+
+    assertThat(breaker.state()).isEqualTo(State.HALF_OPEN);
+    assertThrows(RetryableTransformException.class, breaker::acquirePermission);
+  }
+
+  @Test
+  public void checkPermission_halfOpen_takesNoProbe() {
+    openBreaker();
+    assertThrows(RetryableTransformException.class, breaker::checkPermission);
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+
+    breaker.checkPermission();
+    breaker.checkPermission();
+    breaker.acquirePermission();
+    breaker.acquirePermission();
+
+    assertThrows(RetryableTransformException.class, breaker::checkPermission);
+    assertThrows(RetryableTransformException.class, breaker::acquirePermission);
+  }
+
+  @Test
+  public void halfOpen_probesSucceed_closes() {
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    var firstProbe = breaker.acquirePermission();
+    var secondProbe = breaker.acquirePermission();
+
+    breaker.onSuccess(firstProbe, Duration.ofMillis(10));
+    breaker.onSuccess(secondProbe, Duration.ofMillis(10));
+
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+    assertThat(breakers.transitionCount(State.HALF_OPEN)).isEqualTo(1);
+    assertThat(breakers.transitionCount(State.CLOSED)).isEqualTo(1);
+    breaker.acquirePermission();
+  }
+
+  @Test
+  public void halfOpen_probeFails_opensAgain() {
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    var probe = breaker.acquirePermission();
+
+    breaker.onFailure(probe, apiException(Status.Code.UNAVAILABLE));
+
+    assertThat(breaker.state()).isEqualTo(State.OPEN);
+    assertThat(breakers.transitionCount(State.OPEN)).isEqualTo(2);
+    assertThrows(RetryableTransformException.class, breaker::acquirePermission);
+  }
+
+  @Test
+  public void halfOpen_probesWithoutResponse_newProbesAfterOpenDuration() {
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    breaker.acquirePermission();
+    breaker.acquirePermission();
+
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+
+    breaker.acquirePermission();
+    assertThat(breaker.state()).isEqualTo(State.HALF_OPEN);
+  }
+
+  @Test
+  public void bindTo_exportsTransitionsAndStates() {
+    var registry = new SimpleMeterRegistry();
+    breakers.bindTo(registry);
+
+    openBreaker();
+
+    assertThat(
+            registry
+                .get("bqfn.dlp.circuit.transitions")
+                .tag("state", "open")
+                .functionCounter()
+                .count())
+        .isEqualTo(1.0);
+    assertThat(registry.get("bqfn.dlp.circuits").tag("state", "open").gauge().value())
+        .isEqualTo(1.0);
+    assertThat(registry.get("bqfn.dlp.circuits").tag("state", "closed").gauge().value())
+        .isEqualTo(0.0);
+  }
+
+  @Test
+  public void disabled_neverOpens() {
+    var disabled = DlpCircuitBreakers.disabled().forLocation("us-central1");
+
+    IntStream.range(0, 100)
+        .forEach(
+            i ->
+                disabled.onFailure(
+                    disabled.acquirePermission(), apiException(Status.Code.UNAVAILABLE)));
+
+    assertThat(disabled.state()).isEqualTo(State.CLOSED);
+    disabled.acquirePermission();
+  }
+
+  @Test
+  public void halfOpen_requestPermittedBeforeOpening_ignored() {
+    var earlyPermissions =
+        IntStream.range(0, 2).mapToObj(i -> breaker.acquirePermission()).toList();
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    breaker.acquirePermission();
+
+    earlyPermissions.forEach(permission -> breaker.onSuccess(permission, Duration.ofMillis(10)));
+    assertThat(breaker.state()).isEqualTo(State.HALF_OPEN);
+
+    earlyPermissions.forEach(
+        permission -> breaker.onFailure(permission, apiException(Status.Code.UNAVAILABLE)));
+    assertThat(breaker.state()).isEqualTo(State.HALF_OPEN);
+  }
+
+  @Test
+  public void halfOpen_lateResponseOfExpiredProbe_ignored() {
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    var expiredProbe = breaker.acquirePermission();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    var probe = breaker.acquirePermission();
+
+    breaker.onFailure(expiredProbe, apiException(Status.Code.UNAVAILABLE));
+    assertThat(breaker.state()).isEqualTo(State.HALF_OPEN);
+
+    breaker.onSuccess(probe, Duration.ofMillis(10));
+    breaker.onSuccess(breaker.acquirePermission(), Duration.ofMillis(10));
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  public void closed_requestPermittedBeforeReopening_ignored() {
+    var earlyPermissions =
+        IntStream.range(0, 5).mapToObj(i -> breaker.acquirePermission()).toList();
+    openBreaker();
+    clockNanos.addAndGet(OPEN_DURATION.toNanos());
+    var firstProbe = breaker.acquirePermission();
+    var secondProbe = breaker.acquirePermission();
+    breaker.onSuccess(firstProbe, Duration.ofMillis(10));
+    breaker.onSuccess(secondProbe, Duration.ofMillis(10));
+
+    earlyPermissions.forEach(
+        permission -> breaker.onFailure(permission, apiException(Status.Code.UNAVAILABLE)));
+
+    assertThat(breaker.state()).isEqualTo(State.CLOSED);
+  }
+
+  private void openBreaker() {
+    recordFailures(5, Status.Code.UNAVAILABLE);
+    assertThat(breaker.state()).isEqualTo(State.OPEN);
+  }
+
+  private void recordFailures(int count, Status.Code code) {
+    IntStream.range(0, count)
+        .forEach(i -> breaker.onFailure(breaker.acquirePermission(), apiException(code)));
+  }
+
+  private void recordSuccesses(int count, Duration latency) {
+    IntStream.range(0, count)
+        .forEach(i -> breaker.onSuccess(breaker.acquirePermission(), latency));
+  }
+}
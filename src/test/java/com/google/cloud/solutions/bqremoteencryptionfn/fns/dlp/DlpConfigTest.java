@@ -71,4 +71,33 @@ public class DlpConfigTest {
         json,
         true);
   }
+
+  @Test
+  public void fromJson_mapWithReidPrefilter_valid() {
+    var testJson =
+        ImmutableMap.of("dlp-deid-template", "my-template-id", "dlp-reid-prefilter", "true");
+
+    var config = DlpConfig.fromJson(testJson);
+
+    assertThat(config).isEqualTo(new DlpConfig("my-template-id", null, true));
+    assertThat(config.isReidPrefilterEnabled()).isTrue();
+  }
+
+  @Test
+  public void isReidPrefilterEnabled_notSet_false() {
+    assertThat(new DlpConfig("my-template-id", null).isReidPrefilterEnabled()).isFalse();
+  }
+
+  @Test
+  public void fromJson_mapWithChunkOversizedValues_valid() {
+    var testJson =
+        ImmutableMap.of(
+            "dlp-deid-template", "my-template-id", "dlp-chunk-oversized-values", "true");
+
+    var config = DlpConfig.fromJson(testJson);
+
+    assertThat(config).isEqualTo(new DlpConfig("my-template-id", null, null, true));
+    assertThat(config.isChunkOversizedValuesEnabled()).isTrue();
+    assertThat(config.isReidPrefilterEnabled()).isFalse();
+  }
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryFnCallController;
+import com.google.cloud.solutions.bqremoteencryptionfn.BigQueryRemoteFnRequest;
+import com.google.cloud.solutions.bqremoteencryptionfn.TransformMetrics;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpTransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.SoakTest;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.FaultInjectingDeidentifyFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.FaultInjectingDeidentifyFactory.Faults;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.PatchyDlpStub;
+import com.google.common.flogger.GoogleLogger;
+import io.micrometer.observation.ObservationRegistry;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Sends BigQuery calls through the controller while the DLP stand-in runs scripted error storms,
+ * failing when the throughput drops below a fraction of the clean baseline, when heap or threads
+ * keep growing, or when a reply loses the row order.
+ *
+ * <p>Runs with {@code ./gradlew soakTest}, tuned with the {@code soak.*} properties, e.g. {@code
+ * -Psoak.phaseSeconds=600}.
+ */
+@Category(SoakTest.class)
+@RunWith(JUnit4.class)
+public final class DlpFaultSoakTest {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final Duration PHASE_DURATION =
+      Duration.ofSeconds(Long.getLong("soak.phaseSeconds", 30));
+  private static final int CONCURRENCY = Integer.getInteger("soak.concurrency", 8);
+  private static final int ROWS_PER_CALL = Integer.getInteger("soak.rowsPerCall", 2000);
+  private static final double MIN_THROUGHPUT_FRACTION =
+      Double.parseDouble(System.getProperty("soak.minThroughputFraction", "0.3"));
+  private static final long MAX_HEAP_GROWTH_BYTES = Long.getLong("soak.maxHeapGrowthMb", 64) << 20;
+  private static final int MAX_THREAD_GROWTH = 4;
+  private static final Duration BIGQUERY_RETRY_DELAY = Duration.ofMillis(10);
+
+  private static final Map<String, String> DLP_OPTIONS =
+      Map.of(
+          "mode",
+          "deidentify",
+          "algo",
+          "dlp",
+          "dlp-deid-template",
+          "projects/soak-project/locations/soak-region/deidentifyTemplates/template1");
+
+  private static final FaultInjectingDeidentifyFactory dlp = new FaultInjectingDeidentifyFactory();
+  private static final BigQueryFnCallController controller =
+      new BigQueryFnCallController(
+          List.of(
+              new DlpTransformFnFactory(
+                  "bqfnvalue",
+                  /* requestCellCount= */ 1600,
+                  /* requestBytes= */ 500_000,
+                  /* localEngineEnabled= */ false,
+                  /* localDeidentifyEnabled= */ false,
+                  /* rowWidth= */ 1,
+                  DlpRequestBatchExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS,
+                  () -> DlpServiceClient.create(PatchyDlpStub.using(List.of(dlp))),
+                  DlpTemplateCache.disabled(),
+                  new DlpRetryPolicy(
+                      /* maxAttempts= */ 8,
+                      Duration.ofMillis(1),
+                      Duration.ofMillis(20),
+                      List.of(
+                          StatusCode.Code.UNAVAILABLE,
+                          StatusCode.Code.DEADLINE_EXCEEDED,
+                          StatusCode.Code.RESOURCE_EXHAUSTED),
+                      /* hedgingEnabled= */ false),
+                  new DlpCircuitBreakers(
+                      /* enabled= */ true,
+                      /* windowSize= */ 50,
+                      /* minimumCalls= */ 20,
+                      /* failureRateThreshold= */ 0.5,
+                      /* slowCallMillis= */ 20_000,
+                      /* slowCallRateThreshold= */ 0.8,
+                      /* openMillis= */ 1_000,
+                      /* halfOpenProbes= */ 3),
+                  DlpMetrics.noop())),
+          TransformMetrics.noop(),
+          ObservationRegistry.NOOP);
+
+  private static SoakResult baseline;
+  private static int baselineThreads;
+  private static long baselineHeapBytes;
+
+  @BeforeClass
+  public static void runBaseline() throws Exception {
+    dlp.setFaults(Faults.NONE);
+    baseline = drive("baseline");
+    assertThat(baseline.failedCalls()).isEqualTo(0);
+    assertThat(baseline.misorderedCalls()).isEqualTo(0);
+
+    baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+    baselineHeapBytes = usedHeapAfterGc();
+  }
+
+  @Test
+  public void sizeRejectionStorm_sustainsThroughput() throws Exception {
+    runStorm("size-rejections", new Faults(/* maxRows= */ 100, 0, 0));
+  }
+
+  @Test
+  public void quotaStorm_sustainsThroughput() throws Exception {
+    runStorm("quota", new Faults(0, /* quotaErrorRate= */ 0.2, 0));
+  }
+
+  @Test
+  public void mixedStorm_sustainsThroughput() throws Exception {
+    runStorm(
+        "mixed",
+        new Faults(/* maxRows= */ 200, /* quotaErrorRate= */ 0.1, /* unavailableRate= */ 0.05));
+  }
+
+  private static void runStorm(String name, Faults faults) throws Exception {
+    dlp.setFaults(faults);
+    SoakResult result;
+    try {
+      result = drive(name);
+    } finally {
+      dlp.setFaults(Faults.NONE);
+    }
+
+    assertWithMessage("calls answered with an error").that(result.failedCalls()).isEqualTo(0);
+    assertWithMessage("calls with misordered replies").that(result.misorderedCalls()).isEqualTo(0);
+    assertWithMessage("rows per second, baseline %s", baseline.rowsPerSecond())
+        .that(result.rowsPerSecond())
+        .isAtLeast(MIN_THROUGHPUT_FRACTION * baseline.rowsPerSecond());
+    assertWithMessage("heap growth bytes")
+        .that(usedHeapAfterGc() - baselineHeapBytes)
+        .isAtMost(MAX_HEAP_GROWTH_BYTES);
+    assertWithMessage("thread growth")
+        .that(settledThreadCount(baselineThreads + MAX_THREAD_GROWTH) - baselineThreads)
+        .isAtMost(MAX_THREAD_GROWTH);
+  }
+
+  /** Sends calls from {@code CONCURRENCY} workers for one phase, retrying 503s like BigQuery. */
+  private static SoakResult drive(String name) throws Exception {
+    var calls = new LongAdder();
+    var retriedCalls = new LongAdder();
+    var failedCalls = new LongAdder();
+    var misorderedCalls = new LongAdder();
+    var requestsBefore = dlp.requests();
+    var faultsBefore = dlp.injectedFaults();
+    var deadline = System.nanoTime() + PHASE_DURATION.toNanos();
+    var start = System.nanoTime();
+
+    try (var workers = Executors.newFixedThreadPool(CONCURRENCY)) {
+      for (int worker = 0; worker < CONCURRENCY; worker++) {
+        var valuePrefix = "%s-%s-".formatted(name, worker);
+        var values = IntStream.range(0, ROWS_PER_CALL).mapToObj(i -> valuePrefix + i).toList();
+        var request =
+            new BigQueryRemoteFnRequest(
+                "soak-" + name,
+                "soak-caller",
+                "soak-user",
+                DLP_OPTIONS,
+                values.stream().<List<Object>>map(List::of).toList());
+
+        workers.execute(
+            () -> {
+              while (System.nanoTime() < deadline) {
+                var response = controller.process(request).join();
+
+                if (response.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE) {
+                  retriedCalls.increment();
+                  sleep(BIGQUERY_RETRY_DELAY);
+                  continue;
+                }
+
+                calls.increment();
+                var replies = response.getBody().replies();
+                if (replies == null) {
+                  failedCalls.increment();
+                } else if (!isPrefixedInOrder(values, replies)) {
+                  misorderedCalls.increment();
+                }
+              }
+            });
+      }
+    }
+
+    var result =
+        new SoakResult(
+            calls.sum(),
+            (long) ROWS_PER_CALL * calls.sum(),
+            retriedCalls.sum(),
+            failedCalls.sum(),
+            misorderedCalls.sum(),
+            Duration.ofNanos(System.nanoTime() - start));
+
+    logger.atInfo().log(
+        "%s: %s, %s DLP requests, %s injected faults",
+        name,
+        result,
+        dlp.requests() - requestsBefore,
+        dlp.injectedFaults() - faultsBefore);
+    return result;
+  }
+
+  private static boolean isPrefixedInOrder(List<String> values, List<?> replies) {
+    if (replies.size() != values.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < values.size(); i++) {
+      if (!(FaultInjectingDeidentifyFactory.VALUE_PREFIX + values.get(i)).equals(replies.get(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /** Returns the live thread count once it drops to {@code limit}, or after 5 seconds. */
+  private static int settledThreadCount(int limit) throws InterruptedException {
+    var threads = ManagementFactory.getThreadMXBean();
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+    while (threads.getThreadCount() > limit && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+
+    return threads.getThreadCount();
+  }
+
+  private static void sleep(Duration duration) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(duration.toNanos());
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private record SoakResult(
+      long calls,
+      long rows,
+      long retriedCalls,
+      long failedCalls,
+      long misorderedCalls,
+      Duration elapsed) {
+
+    double rowsPerSecond() {
+      return rows * 1e9 / Math.max(1, elapsed.toNanos());
+    }
+  }
+}
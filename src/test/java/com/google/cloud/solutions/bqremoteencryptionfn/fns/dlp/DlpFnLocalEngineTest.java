@@ -0,0 +1,335 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngineTest.cryptoDeterministic;
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngineTest.recordConfig;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpTransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture.ApiFutureFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.Base64EncodingDlpStub;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.MappingDeidentifyTemplateCallerFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.PatchyDlpStub;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.DeidentifyTemplate;
+import com.google.privacy.dlp.v2.ReidentifyContentRequest;
+import com.google.privacy.dlp.v2.ReidentifyContentResponse;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Table.Row;
+import com.google.privacy.dlp.v2.Value;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DlpFnLocalEngineTest {
+
+  private static final String TEMPLATE_NAME =
+      "projects/test-project-id/locations/global/deidentifyTemplates/local-template";
+
+  private static final DeidentifyConfig DEID_CONFIG =
+      recordConfig(cryptoDeterministic(32, "BQ_TOK"));
+
+  private static final List<List<Object>> TEST_ROWS =
+      List.of(List.of("Anant"), List.of("Damle"), List.of("john@doe.com"));
+
+  @Test
+  public void deidentify_matchingDlpOutput_usesLocalEngineAfterVerification() throws Exception {
+    var dlpCalls = new AtomicInteger();
+    var fn = makeFnFactory(new LocalEngineDeidentifyFactory(dlpCalls)).createFn(fnOptions());
+
+    var firstTokens = fn.deidentify(TEST_ROWS);
+    var secondTokens = fn.deidentify(TEST_ROWS);
+
+    assertThat(dlpCalls.get()).isEqualTo(1);
+    assertThat(secondTokens).isEqualTo(firstTokens);
+    assertThat(fn.reidentify(toCalls(secondTokens)))
+        .containsExactly("Anant", "Damle", "john@doe.com")
+        .inOrder();
+  }
+
+  @Test
+  public void deidentify_localDeidentifyNotEnabled_usesDlp() throws Exception {
+    var dlpCalls = new AtomicInteger();
+    var fn =
+        makeFnFactory(
+                /* localDeidentifyEnabled= */ false, new LocalEngineDeidentifyFactory(dlpCalls))
+            .createFn(fnOptions());
+
+    fn.deidentify(TEST_ROWS);
+    fn.deidentify(TEST_ROWS);
+
+    assertThat(dlpCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void deidentify_templateNotPrefetched_usesDlp() throws Exception {
+    var dlpCalls = new AtomicInteger();
+    var fn =
+        makeFnFactory(
+                DlpTemplateCache.disabled(),
+                /* localDeidentifyEnabled= */ true,
+                new LocalEngineDeidentifyFactory(dlpCalls))
+            .createFn(fnOptions());
+
+    fn.deidentify(TEST_ROWS);
+    fn.deidentify(TEST_ROWS);
+
+    assertThat(dlpCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void deidentify_verifiedEngine_sampleOfBatchesVerifiedAgain() throws Exception {
+    var dlpCalls = new AtomicInteger();
+    var fn = makeFnFactory(new LocalEngineDeidentifyFactory(dlpCalls)).createFn(fnOptions());
+
+    for (int batch = 0; batch <= LocalEngineRegistry.VERIFICATION_SAMPLE_PERIOD; batch++) {
+      fn.deidentify(TEST_ROWS);
+    }
+
+    assertThat(dlpCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void reidentify_unverifiedEngine_usesDlpUntilVerified() throws Exception {
+    var tokens =
+        LocalDeidentifyEngine.compile(DEID_CONFIG, "bqfnvalue")
+            .orElseThrow()
+            .deidentify(List.of("Anant", "Damle", "john@doe.com"))
+            .orElseThrow();
+    var reidCalls = new AtomicInteger();
+    var fn =
+        makeFnFactory(
+                new LocalEngineDeidentifyFactory(new AtomicInteger()),
+                new LocalEngineReidentifyFactory(reidCalls))
+            .createFn(fnOptions());
+
+    var firstValues = fn.reidentify(toCalls(tokens));
+    var secondValues = fn.reidentify(toCalls(tokens));
+
+    assertThat(reidCalls.get()).isEqualTo(1);
+    assertThat(firstValues).containsExactly("Anant", "Damle", "john@doe.com").inOrder();
+    assertThat(secondValues).isEqualTo(firstValues);
+  }
+
+  @Test
+  public void reidentify_verifiedDeidentify_reidentifyVerifiedSeparately() throws Exception {
+    var reidCalls = new AtomicInteger();
+    var fn =
+        makeFnFactory(
+                new LocalEngineDeidentifyFactory(new AtomicInteger()),
+                new LocalEngineReidentifyFactory(reidCalls))
+            .createFn(fnOptions());
+
+    fn.deidentify(TEST_ROWS);
+    var tokens = fn.deidentify(TEST_ROWS);
+    fn.reidentify(toCalls(tokens));
+
+    assertThat(reidCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void deidentify_mismatchedDlpOutput_usesDlp() throws Exception {
+    var base64Stub =
+        new Base64EncodingDlpStub(ImmutableSet.of("bqfnvalue"), "test-project-id", "global");
+    var fnFactory = makeFnFactory(base64Stub.deidentifyFactory());
+
+    fnFactory.createFn(fnOptions()).deidentify(TEST_ROWS);
+    var tokens = fnFactory.createFn(fnOptions()).deidentify(TEST_ROWS);
+
+    assertThat(tokens).containsExactly("QW5hbnQ=", "RGFtbGU=", "am9obkBkb2UuY29t").inOrder();
+  }
+
+  @Test
+  public void deidentify_createsClientOffCallingThread() throws Exception {
+    var base64Stub =
+        new Base64EncodingDlpStub(ImmutableSet.of("bqfnvalue"), "test-project-id", "global");
+    var clientThreads = new CopyOnWriteArrayList<Thread>();
+    var fn =
+        new DlpTransformFnFactory(
+                "bqfnvalue",
+                1600,
+                500000,
+                /* localEngineEnabled= */ false,
+                () -> {
+                  clientThreads.add(Thread.currentThread());
+                  return DlpServiceClient.create(
+                      PatchyDlpStub.using(List.of(base64Stub.deidentifyFactory())));
+                })
+            .createFn(fnOptions());
+
+    var tokens = fn.deidentify(TEST_ROWS);
+
+    assertThat(tokens).containsExactly("QW5hbnQ=", "RGFtbGU=", "am9obkBkb2UuY29t").inOrder();
+    assertThat(clientThreads).isNotEmpty();
+    assertThat(clientThreads).doesNotContain(Thread.currentThread());
+  }
+
+  private static DlpTransformFnFactory makeFnFactory(ApiFutureFactory<?, ?>... dlpFactories) {
+    return makeFnFactory(/* localDeidentifyEnabled= */ true, dlpFactories);
+  }
+
+  private static DlpTransformFnFactory makeFnFactory(
+      boolean localDeidentifyEnabled, ApiFutureFactory<?, ?>... dlpFactories) {
+    return makeFnFactory(
+        new DlpTemplateCache(List.of(TEMPLATE_NAME)), localDeidentifyEnabled, dlpFactories);
+  }
+
+  private static DlpTransformFnFactory makeFnFactory(
+      DlpTemplateCache templateCache,
+      boolean localDeidentifyEnabled,
+      ApiFutureFactory<?, ?>... dlpFactories) {
+    var templateFactory =
+        MappingDeidentifyTemplateCallerFactory.using(
+            Map.of(
+                TEMPLATE_NAME,
+                DeidentifyTemplate.newBuilder()
+                    .setName(TEMPLATE_NAME)
+                    .setDeidentifyConfig(DEID_CONFIG)
+                    .build()));
+
+    return new DlpTransformFnFactory(
+        "bqfnvalue",
+        1600,
+        500000,
+        /* localEngineEnabled= */ true,
+        localDeidentifyEnabled,
+        /* rowWidth= */ 1,
+        DlpRequestBatchExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS,
+        () ->
+            DlpServiceClient.create(
+                PatchyDlpStub.using(
+                    ImmutableList.<ApiFutureFactory<?, ?>>builder()
+                        .add(dlpFactories)
+                        .add(templateFactory)
+                        .build())),
+        templateCache,
+        DlpRetryPolicy.noRetries(),
+        DlpCircuitBreakers.disabled(),
+        DlpMetrics.noop());
+  }
+
+  private static Map<String, String> fnOptions() {
+    return Map.of("dlp-deid-template", TEMPLATE_NAME);
+  }
+
+  private static List<List<Object>> toCalls(List<String> values) {
+    return values.stream().map(value -> List.<Object>of(value)).collect(toImmutableList());
+  }
+
+  /** Simulates DLP producing the same tokens as the local engine. */
+  private static final class LocalEngineDeidentifyFactory
+      extends ApiFutureFactory<DeidentifyContentRequest, DeidentifyContentResponse> {
+
+    private final AtomicInteger calls;
+
+    LocalEngineDeidentifyFactory(AtomicInteger calls) {
+      super(DeidentifyContentRequest.class, DeidentifyContentResponse.class);
+      this.calls = calls;
+    }
+
+    @Override
+    public BaseUnaryApiFuture<DeidentifyContentResponse> create(
+        DeidentifyContentRequest request, ApiCallContext context) {
+      return new BaseUnaryApiFuture<>() {
+        @Override
+        public DeidentifyContentResponse get() {
+          calls.incrementAndGet();
+
+          var table = request.getItem().getTable();
+          var values =
+              table.getRowsList().stream()
+                  .map(row -> row.getValues(0).getStringValue())
+                  .collect(toImmutableList());
+          var tokens =
+              LocalDeidentifyEngine.compile(DEID_CONFIG, "bqfnvalue")
+                  .orElseThrow()
+                  .deidentify(values)
+                  .orElseThrow();
+
+          var responseTable = Table.newBuilder().addAllHeaders(table.getHeadersList());
+          tokens.forEach(
+              token ->
+                  responseTable.addRows(
+                      Row.newBuilder().addValues(Value.newBuilder().setStringValue(token))));
+
+          return DeidentifyContentResponse.newBuilder()
+              .setItem(ContentItem.newBuilder().setTable(responseTable))
+              .build();
+        }
+      };
+    }
+  }
+
+  /** Simulates DLP restoring the values of the local engine's tokens. */
+  private static final class LocalEngineReidentifyFactory
+      extends ApiFutureFactory<ReidentifyContentRequest, ReidentifyContentResponse> {
+
+    private final AtomicInteger calls;
+
+    LocalEngineReidentifyFactory(AtomicInteger calls) {
+      super(ReidentifyContentRequest.class, ReidentifyContentResponse.class);
+      this.calls = calls;
+    }
+
+    @Override
+    public BaseUnaryApiFuture<ReidentifyContentResponse> create(
+        ReidentifyContentRequest request, ApiCallContext context) {
+      return new BaseUnaryApiFuture<>() {
+        @Override
+        public ReidentifyContentResponse get() {
+          calls.incrementAndGet();
+
+          var table = request.getItem().getTable();
+          var tokens =
+              table.getRowsList().stream()
+                  .map(row -> row.getValues(0).getStringValue())
+                  .collect(toImmutableList());
+          var values =
+              LocalDeidentifyEngine.compile(DEID_CONFIG, "bqfnvalue")
+                  .orElseThrow()
+                  .reidentify(tokens)
+                  .orElseThrow();
+
+          var responseTable = Table.newBuilder().addAllHeaders(table.getHeadersList());
+          values.forEach(
+              value ->
+                  responseTable.addRows(
+                      Row.newBuilder().addValues(Value.newBuilder().setStringValue(value))));
+
+          return ReidentifyContentResponse.newBuilder()
+              .setItem(ContentItem.newBuilder().setTable(responseTable))
+              .build();
+        }
+      };
+    }
+  }
+}
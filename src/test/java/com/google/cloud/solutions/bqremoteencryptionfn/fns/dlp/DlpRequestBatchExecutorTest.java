@@ -18,18 +18,45 @@ package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.DeadlineExceededException;
 import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.RetryableTransformException;
+import com.google.cloud.solutions.bqremoteencryptionfn.TransformMetrics;
 import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.Base64EncodingDlpStub;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.NoFindingsInspectCallerFactory;
 import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.PatchyDlpStub;
 import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.RequestSizeLimitingDeidentifyFactory;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.privacy.dlp.v2.ContentItem;
 import com.google.privacy.dlp.v2.DeidentifyContentRequest;
 import com.google.privacy.dlp.v2.DeidentifyContentResponse;
 import com.google.privacy.dlp.v2.ReidentifyContentRequest;
 import com.google.privacy.dlp.v2.ReidentifyContentResponse;
+import io.grpc.Status;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import java.time.Duration;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.IntStream;
 import org.junit.Test;
@@ -138,6 +165,642 @@ public class DlpRequestBatchExecutorTest {
     assertThat(deidRequestMeasuringDlpCaller.getRequestCalls()).isEqualTo(expectedTableRequests);
   }
 
+  @Test
+  public void processAsync_futureCallSplitsTheTableWhenRequested_valid() throws Exception {
+
+    var testRows = makeRows("SplittingTest", 1000);
+    var futureCalls = new AtomicInteger();
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(new RequestSizeLimitingDeidentifyFactory(300))));
+
+    var deidRows =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpFutureCallFnFactory(
+                dlpClient ->
+                    request -> {
+                      futureCalls.incrementAndGet();
+                      return dlpClient.deidentifyContentCallable().futureCall(request);
+                    })
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setParent("projects/test-project-id")
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+            .build()
+            .processAsync(testRows)
+            .get();
+
+    assertThat(deidRows).containsExactlyElementsIn(testRows).inOrder();
+    // 1000 rows fail, 2 x 500 rows fail, 4 x 250 rows succeed.
+    assertThat(futureCalls.get()).isEqualTo(7);
+  }
+
+  @Test
+  public void processAsync_splitTable_recordsSplitsAndRpcs() throws Exception {
+
+    var registry = new SimpleMeterRegistry();
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(new RequestSizeLimitingDeidentifyFactory(300))));
+
+    DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+        .setDlpColumnName("dlpColumnName")
+        .setDlpClientFactory(() -> dlpServiceClient)
+        .setDlpFutureCallFnFactory(
+            dlpClient -> request -> dlpClient.deidentifyContentCallable().futureCall(request))
+        .setTableToDlpRequestFnFactory(
+            dlpClient ->
+                table ->
+                    DeidentifyContentRequest.newBuilder()
+                        .setParent("projects/test-project-id")
+                        .setItem(ContentItem.newBuilder().setTable(table))
+                        .build())
+        .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+        .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+        .setMetrics(new DlpMetrics(registry))
+        .build()
+        .processAsync(makeRows("MetricsTest", 1000))
+        .get();
+
+    assertThat(registry.get("bqfn.dlp.subbatches").summary().count()).isEqualTo(1);
+    assertThat(registry.get("bqfn.dlp.splits").counter().count()).isEqualTo(3.0);
+    assertThat(registry.get("bqfn.dlp.rpc").timers().stream().mapToLong(Timer::count).sum())
+        .isEqualTo(7);
+    assertThat(registry.get("bqfn.dlp.rpc").tag("status", "OK").timer().count()).isEqualTo(4);
+    assertThat(registry.get("bqfn.dlp.retries").counter().count()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void processAsync_splitTable_recordsCostOfCurrentCall() throws Exception {
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(new RequestSizeLimitingDeidentifyFactory(300))));
+    var recording = TransformMetrics.noop().startRequest(List.of());
+
+    try {
+      DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+          .setDlpColumnName("dlpColumnName")
+          .setDlpClientFactory(() -> dlpServiceClient)
+          .setDlpFutureCallFnFactory(
+              dlpClient -> request -> dlpClient.deidentifyContentCallable().futureCall(request))
+          .setTableToDlpRequestFnFactory(
+              dlpClient ->
+                  table ->
+                      DeidentifyContentRequest.newBuilder()
+                          .setParent("projects/test-project-id")
+                          .setItem(ContentItem.newBuilder().setTable(table))
+                          .build())
+          .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+          .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+          .build()
+          .processAsync(makeRows("CostTest", 1000))
+          .get();
+    } finally {
+      recording.complete("success");
+    }
+
+    var cost = recording.cost();
+    assertThat(cost.dlpRequests()).isEqualTo(7);
+    assertThat(cost.dlpErrors()).isEqualTo(3);
+    assertThat(cost.dlpSplits()).isEqualTo(3);
+    assertThat(cost.dlpRetries()).isEqualTo(0);
+    assertThat(cost.dlpRequestBytes()).isGreaterThan(0);
+    assertThat(cost.stageNanos("pack")).isGreaterThan(0);
+    assertThat(cost.stageNanos("dlp")).isGreaterThan(0);
+  }
+
+  @Test
+  public void processAsync_splitTable_requestsTracedAsChildrenOfCaller() throws Exception {
+
+    var stoppedObservations = new ConcurrentLinkedQueue<Observation.Context>();
+    var observationRegistry = ObservationRegistry.create();
+    observationRegistry
+        .observationConfig()
+        .observationHandler(
+            new ObservationHandler<>() {
+              @Override
+              public void onStop(Observation.Context context) {
+                stoppedObservations.add(context);
+              }
+
+              @Override
+              public boolean supportsContext(Observation.Context context) {
+                return true;
+              }
+            });
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(new RequestSizeLimitingDeidentifyFactory(300))));
+    var executor =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpFutureCallFnFactory(
+                dlpClient -> request -> dlpClient.deidentifyContentCallable().futureCall(request))
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setParent("projects/test-project-id")
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+            .setMetrics(new DlpMetrics(new SimpleMeterRegistry(), observationRegistry))
+            .build();
+
+    var callerObservation = Observation.start("caller", observationRegistry);
+    try (var unused = callerObservation.openScope()) {
+      executor.processAsync(makeRows("TracingTest", 1000)).get();
+    }
+
+    var requestObservations =
+        stoppedObservations.stream()
+            .filter(context -> context.getName().equals("bqfn.dlp.request"))
+            .toList();
+    assertThat(
+            requestObservations.stream()
+                .map(context -> context.getHighCardinalityKeyValue("dlp.rows").getValue())
+                .toList())
+        .containsExactly("1000", "500", "500", "250", "250", "250", "250");
+    assertThat(
+            requestObservations.stream()
+                .filter(context -> context.getError() != null)
+                .map(context -> context.getHighCardinalityKeyValue("dlp.splitDepth").getValue())
+                .toList())
+        .containsExactly("0", "1", "1");
+    assertThat(
+            requestObservations.stream()
+                .map(Observation.Context::getParentObservation)
+                .distinct()
+                .toList())
+        .containsExactly(callerObservation);
+    assertThat(stoppedObservations.stream().map(Observation.Context::getName).toList())
+        .contains("bqfn.dlp.pack");
+  }
+
+  @Test
+  public void processAsync_nonRetryableError_failsFuture() {
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(new RequestSizeLimitingDeidentifyFactory(10))));
+
+    var resultFuture =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setRequestCellCount(20)
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpFutureCallFnFactory(
+                dlpClient ->
+                    request -> {
+                      throw new IllegalStateException("backend unavailable");
+                    })
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+            .build()
+            .processAsync(makeRows("Failing", 100));
+
+    var executionException = assertThrows(ExecutionException.class, resultFuture::get);
+
+    assertThat(executionException).hasCauseThat().isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void process_transientUnavailableError_retriedAndSucceeds() throws Exception {
+
+    var testRows = makeRows("RetryTest", 1000);
+    var futureCalls = new AtomicInteger();
+    var failedRequests = ConcurrentHashMap.<DeidentifyContentRequest>newKeySet();
+
+    var deidRows =
+        echoExecutorBuilder(
+                request -> {
+                  futureCalls.incrementAndGet();
+                  return failedRequests.add(request)
+                      ? ApiFutures.immediateFailedFuture(
+                          DlpRetryPolicyTest.apiException(Status.Code.UNAVAILABLE))
+                      : ApiFutures.immediateFuture(echoResponse(request));
+                })
+            .setRequestCellCount(200)
+            .setRetryPolicy(
+                new DlpRetryPolicy(
+                    3,
+                    Duration.ZERO,
+                    Duration.ZERO,
+                    DlpRetryPolicy.DEFAULT_RETRYABLE_CODES,
+                    /* hedgingEnabled= */ false))
+            .build()
+            .process(testRows);
+
+    assertThat(deidRows).containsExactlyElementsIn(testRows).inOrder();
+    // every one of the 5 tables fails once before succeeding.
+    assertThat(futureCalls.get()).isEqualTo(10);
+  }
+
+  @Test
+  public void processAsync_retriesExhausted_failsWithLastError() {
+
+    var futureCalls = new AtomicInteger();
+
+    var resultFuture =
+        echoExecutorBuilder(
+                request -> {
+                  futureCalls.incrementAndGet();
+                  return ApiFutures.immediateFailedFuture(
+                      DlpRetryPolicyTest.apiException(Status.Code.DEADLINE_EXCEEDED));
+                })
+            .setRetryPolicy(
+                new DlpRetryPolicy(
+                    3,
+                    Duration.ofMillis(1),
+                    Duration.ofMillis(5),
+                    DlpRetryPolicy.DEFAULT_RETRYABLE_CODES,
+                    /* hedgingEnabled= */ false))
+            .build()
+            .processAsync(makeRows("Failing", 100));
+
+    var executionException = assertThrows(ExecutionException.class, resultFuture::get);
+
+    assertThat(executionException).hasCauseThat().isInstanceOf(DeadlineExceededException.class);
+    assertThat(futureCalls.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void processAsync_nonRetryableCode_notRetried() {
+
+    var futureCalls = new AtomicInteger();
+
+    var resultFuture =
+        echoExecutorBuilder(
+                request -> {
+                  futureCalls.incrementAndGet();
+                  return ApiFutures.immediateFailedFuture(
+                      DlpRetryPolicyTest.apiException(Status.Code.PERMISSION_DENIED));
+                })
+            .setRetryPolicy(
+                new DlpRetryPolicy(
+                    3,
+                    Duration.ZERO,
+                    Duration.ZERO,
+                    DlpRetryPolicy.DEFAULT_RETRYABLE_CODES,
+                    /* hedgingEnabled= */ false))
+            .build()
+            .processAsync(makeRows("Failing", 100));
+
+    assertThrows(ExecutionException.class, resultFuture::get);
+    assertThat(futureCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void processAsync_circuitOpensDuringCall_stopsRetrying() {
+
+    var futureCalls = new AtomicInteger();
+    var circuitBreaker =
+        new DlpCircuitBreakers(
+                new DlpCircuitBreaker.Settings(
+                    /* windowSize= */ 2,
+                    /* minimumCalls= */ 2,
+                    /* failureRateThreshold= */ 0.5,
+                    /* slowCallDuration= */ Duration.ofSeconds(5),
+                    /* slowCallRateThreshold= */ 1.0,
+                    /* openDuration= */ Duration.ofMinutes(1),
+                    /* halfOpenProbes= */ 1),
+                System::nanoTime)
+            .forLocation("global");
+
+    var resultFuture =
+        echoExecutorBuilder(
+                request -> {
+                  futureCalls.incrementAndGet();
+                  return ApiFutures.immediateFailedFuture(
+                      DlpRetryPolicyTest.apiException(Status.Code.UNAVAILABLE));
+                })
+            .setRetryPolicy(
+                new DlpRetryPolicy(
+                    5,
+                    Duration.ZERO,
+                    Duration.ZERO,
+                    DlpRetryPolicy.DEFAULT_RETRYABLE_CODES,
+                    /* hedgingEnabled= */ false))
+            .setCircuitBreaker(circuitBreaker)
+            .build()
+            .processAsync(makeRows("Failing", 100));
+
+    var executionException = assertThrows(ExecutionException.class, resultFuture::get);
+
+    assertThat(executionException).hasCauseThat().isInstanceOf(RetryableTransformException.class);
+    assertThat(futureCalls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void processAsync_halfOpenCircuit_probeIsSingleRequest() throws Exception {
+
+    var clockNanos = new AtomicLong();
+    var circuitBreaker =
+        new DlpCircuitBreakers(
+                new DlpCircuitBreaker.Settings(
+                    /* windowSize= */ 2,
+                    /* minimumCalls= */ 2,
+                    /* failureRateThreshold= */ 0.5,
+                    /* slowCallDuration= */ Duration.ofSeconds(5),
+                    /* slowCallRateThreshold= */ 1.0,
+                    /* openDuration= */ Duration.ofMinutes(1),
+                    /* halfOpenProbes= */ 1),
+                clockNanos::get)
+            .forLocation("global");
+    circuitBreaker.onFailure(
+        circuitBreaker.acquirePermission(),
+        DlpRetryPolicyTest.apiException(Status.Code.UNAVAILABLE));
+    circuitBreaker.onFailure(
+        circuitBreaker.acquirePermission(),
+        DlpRetryPolicyTest.apiException(Status.Code.UNAVAILABLE));
+    clockNanos.addAndGet(Duration.ofMinutes(1).toNanos());
+
+    var futureCalls = new AtomicInteger();
+    var probeResponse = SettableApiFuture.<DeidentifyContentResponse>create();
+    var probeRequest = new AtomicReference<DeidentifyContentRequest>();
+
+    var resultFuture =
+        echoExecutorBuilder(
+                request -> {
+                  futureCalls.incrementAndGet();
+                  probeRequest.compareAndSet(null, request);
+                  return probeResponse;
+                })
+            .setRequestCellCount(10)
+            .setMaxConcurrentRequests(4)
+            .setCircuitBreaker(circuitBreaker)
+            .build()
+            .processAsync(makeRows("Probe", 100));
+
+    assertThat(futureCalls.get()).isEqualTo(1);
+    assertThat(circuitBreaker.state()).isEqualTo(DlpCircuitBreaker.State.HALF_OPEN);
+
+    probeResponse.set(echoResponse(probeRequest.get()));
+
+    var executionException = assertThrows(ExecutionException.class, resultFuture::get);
+    assertThat(executionException).hasCauseThat().isInstanceOf(RetryableTransformException.class);
+    assertThat(circuitBreaker.state()).isEqualTo(DlpCircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void processAsync_requestSlowerThanP95_hedgedWithFirstResponseUsed() throws Exception {
+
+    var testRows = makeRows("HedgingTest", 100);
+    var futureCalls = new AtomicInteger();
+    var stuckResponse = SettableApiFuture.<DeidentifyContentResponse>create();
+
+    var retryPolicy =
+        new DlpRetryPolicy(
+            1,
+            Duration.ZERO,
+            Duration.ZERO,
+            DlpRetryPolicy.DEFAULT_RETRYABLE_CODES,
+            /* hedgingEnabled= */ true);
+    // Primes the hedging delay of every request size.
+    IntStream.range(0, Integer.SIZE - 1)
+        .forEach(
+            bit ->
+                IntStream.range(0, DlpRetryPolicy.MIN_HEDGE_SAMPLES)
+                    .forEach(i -> retryPolicy.recordLatency(Duration.ofMillis(5), 1 << bit)));
+    var stuckCancelled = new CountDownLatch(1);
+    stuckResponse.addListener(stuckCancelled::countDown, MoreExecutors.directExecutor());
+
+    var deidRows =
+        echoExecutorBuilder(
+                request ->
+                    futureCalls.incrementAndGet() == 1
+                        ? stuckResponse
+                        : ApiFutures.immediateFuture(echoResponse(request)))
+            .setRetryPolicy(retryPolicy)
+            .build()
+            .processAsync(testRows)
+            .get(10, TimeUnit.SECONDS);
+
+    assertThat(deidRows).containsExactlyElementsIn(testRows).inOrder();
+    assertThat(futureCalls.get()).isEqualTo(2);
+    assertThat(stuckCancelled.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(stuckResponse.isCancelled()).isTrue();
+  }
+
+  @Test
+  public void process_splitTable_requestMakerCreatedOnce() throws Exception {
+
+    var testRows = makeRows("SplittingTest", 1000);
+    var requestMakerCreations = new AtomicInteger();
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(new RequestSizeLimitingDeidentifyFactory(300))));
+
+    var deidRows =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpCallFnFactory(dlpClient -> dlpClient::deidentifyContent)
+            .setTableToDlpRequestFnFactory(
+                dlpClient -> {
+                  requestMakerCreations.incrementAndGet();
+                  return table ->
+                      DeidentifyContentRequest.newBuilder()
+                          .setParent("projects/test-project-id")
+                          .setItem(ContentItem.newBuilder().setTable(table))
+                          .build();
+                })
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+            .build()
+            .process(testRows);
+
+    assertThat(deidRows).hasSize(testRows.size());
+    assertThat(requestMakerCreations.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void process_mixedSizeRows_preservesInputOrder() throws Exception {
+
+    var testRows =
+        IntStream.range(0, 500)
+            .mapToObj(i -> String.format("MixedSize %03d ", i).repeat(1 + (i * 7) % 11))
+            .collect(toImmutableList());
+
+    var base64EncodingStub =
+        new Base64EncodingDlpStub(ImmutableSet.of("dlpColumnName"), "test-project-id", "global");
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(base64EncodingStub.deidentifyFactory())));
+
+    var deidRows =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setRequestMaxBytes(5000)
+            .setPackingWindowSize(100)
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpCallFnFactory(dlpClient -> dlpClient::deidentifyContent)
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setParent("projects/test-project-id")
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+            .build()
+            .process(testRows);
+
+    assertThat(deidRows)
+        .containsExactlyElementsIn(
+            testRows.stream()
+                .map(row -> Base64.getEncoder().encodeToString(row.getBytes(UTF_8)))
+                .toList())
+        .inOrder();
+  }
+
+  @Test
+  public void process_oversizedValue_chunkedAndStitched() throws Exception {
+
+    var oversizedValue = String.join(" ", makeRows("FreeText", 400));
+    var testRows =
+        ImmutableList.<String>builder()
+            .addAll(makeRows("Short", 10))
+            .add(oversizedValue)
+            .addAll(makeRows("Short", 10))
+            .build();
+
+    // The stub leaves the values unchanged as it transforms only the "bqfnvalue" column.
+    var identityStub =
+        new Base64EncodingDlpStub(ImmutableSet.of("bqfnvalue"), "test-project-id", "global");
+
+    var inspectFactory = new NoFindingsInspectCallerFactory();
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(identityStub.deidentifyFactory(), inspectFactory)));
+
+    RequestMeasuringDlpCaller<DeidentifyContentRequest, DeidentifyContentResponse>
+        deidRequestMeasuringDlpCaller =
+            new RequestMeasuringDlpCaller<>(dlpClient -> dlpClient::deidentifyContent);
+
+    var executorBuilder =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setRequestMaxBytes(2000)
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpCallFnFactory(deidRequestMeasuringDlpCaller)
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setParent("projects/test-project-id")
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable());
+
+    var unchunkedException =
+        assertThrows(RuntimeException.class, () -> executorBuilder.build().process(testRows));
+
+    var deidRows =
+        executorBuilder
+            .setOversizedValueChunker(
+                OversizedValueChunker.withInspection(
+                    "projects/test-project-id", "projects/test-project-id/inspectTemplates/t"))
+            .build()
+            .process(testRows);
+
+    assertThat(unchunkedException).hasMessageThat().startsWith("Single Row size greater");
+    assertThat(deidRows).containsExactlyElementsIn(testRows).inOrder();
+    assertThat(inspectFactory.getRequestCount()).isGreaterThan(0);
+    assertThat(deidRequestMeasuringDlpCaller.getRequestCalls()).isAtLeast(4);
+  }
+
+  @Test
+  public void process_wideRows_transformsAllColumnsInOrder() throws Exception {
+
+    var testRows = makeRows("Wide", 1001);
+
+    var base64EncodingStub =
+        new Base64EncodingDlpStub(
+            ImmutableSet.copyOf(WideTableLayout.columnNames("dlpColumnName", 4)),
+            "test-project-id",
+            "global");
+
+    var dlpServiceClient =
+        DlpServiceClient.create(
+            PatchyDlpStub.using(List.of(base64EncodingStub.deidentifyFactory())));
+
+    var deidRows =
+        DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+            .setDlpColumnName("dlpColumnName")
+            .setRowWidth(4)
+            .setRequestCellCount(100)
+            .setDlpClientFactory(() -> dlpServiceClient)
+            .setDlpCallFnFactory(dlpClient -> dlpClient::deidentifyContent)
+            .setTableToDlpRequestFnFactory(
+                dlpClient ->
+                    table ->
+                        DeidentifyContentRequest.newBuilder()
+                            .setParent("projects/test-project-id")
+                            .setItem(ContentItem.newBuilder().setTable(table))
+                            .build())
+            .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+            .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable())
+            .build()
+            .process(testRows);
+
+    assertThat(deidRows)
+        .containsExactlyElementsIn(
+            testRows.stream()
+                .map(row -> Base64.getEncoder().encodeToString(row.getBytes(UTF_8)))
+                .toList())
+        .inOrder();
+  }
+
+  /** Returns an executor builder using the future call, with a client that is never called. */
+  private static DlpRequestBatchExecutor.Builder<
+          DeidentifyContentRequest, DeidentifyContentResponse>
+      echoExecutorBuilder(
+          Function<DeidentifyContentRequest, ApiFuture<DeidentifyContentResponse>> futureCallFn) {
+    var dlpServiceClient = DlpServiceClient.create(PatchyDlpStub.using(List.of()));
+
+    return DlpRequestBatchExecutor.<DeidentifyContentRequest, DeidentifyContentResponse>builder()
+        .setDlpColumnName("dlpColumnName")
+        .setDlpClientFactory(() -> dlpServiceClient)
+        .setDlpFutureCallFnFactory(dlpClient -> futureCallFn)
+        .setTableToDlpRequestFnFactory(
+            dlpClient ->
+                table ->
+                    DeidentifyContentRequest.newBuilder()
+                        .setItem(ContentItem.newBuilder().setTable(table))
+                        .build())
+        .setDlpRequestToTableFn(deidRequest -> deidRequest.getItem().getTable())
+        .setDlpResponseToTableFn(deidResponse -> deidResponse.getItem().getTable());
+  }
+
+  private static DeidentifyContentResponse echoResponse(DeidentifyContentRequest request) {
+    return DeidentifyContentResponse.newBuilder()
+        .setItem(ContentItem.newBuilder().setTable(request.getItem().getTable()))
+        .build();
+  }
+
   private static List<String> makeRows(String base, int rowCount) {
     return IntStream.range(0, rowCount)
         .boxed()
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import io.grpc.Status;
+import java.time.Duration;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DlpRetryPolicyTest {
+
+  private static final int REQUEST_BYTES = 10_000;
+
+  private final DlpRetryPolicy policy =
+      new DlpRetryPolicy(3, 100, 1000, "UNAVAILABLE, DEADLINE_EXCEEDED", true);
+
+  @Test
+  public void isRetryable_configuredCode_true() {
+    assertThat(policy.isRetryable(apiException(Status.Code.UNAVAILABLE))).isTrue();
+    assertThat(policy.isRetryable(apiException(Status.Code.DEADLINE_EXCEEDED))).isTrue();
+  }
+
+  @Test
+  public void isRetryable_otherCode_false() {
+    assertThat(policy.isRetryable(apiException(Status.Code.INVALID_ARGUMENT))).isFalse();
+    assertThat(policy.isRetryable(apiException(Status.Code.PERMISSION_DENIED))).isFalse();
+  }
+
+  @Test
+  public void isRetryable_nonApiException_false() {
+    assertThat(policy.isRetryable(new IllegalStateException("unavailable"))).isFalse();
+  }
+
+  @Test
+  public void noRetries_singleAttempt() {
+    var noRetries = DlpRetryPolicy.noRetries();
+
+    assertThat(noRetries.maxAttempts()).isEqualTo(1);
+    assertThat(noRetries.isRetryable(apiException(Status.Code.UNAVAILABLE))).isFalse();
+  }
+
+  @Test
+  public void backoff_boundedByExponentialAndMaxBackoff() {
+    IntStream.range(0, 100)
+        .forEach(
+            i -> {
+              assertThat(policy.backoff(1)).isAtMost(Duration.ofMillis(100));
+              assertThat(policy.backoff(3)).isAtMost(Duration.ofMillis(400));
+              assertThat(policy.backoff(10)).isAtMost(Duration.ofMillis(1000));
+            });
+  }
+
+  @Test
+  public void hedgeDelay_notEnoughSamples_empty() {
+    IntStream.range(1, DlpRetryPolicy.MIN_HEDGE_SAMPLES)
+        .forEach(i -> policy.recordLatency(Duration.ofMillis(i), REQUEST_BYTES));
+
+    assertThat(policy.hedgeDelay(REQUEST_BYTES)).isEmpty();
+  }
+
+  @Test
+  public void hedgeDelay_returnsP95OfRecordedLatencies() {
+    IntStream.rangeClosed(1, 100)
+        .forEach(i -> policy.recordLatency(Duration.ofMillis(i), REQUEST_BYTES));
+
+    assertThat(policy.hedgeDelay(REQUEST_BYTES)).hasValue(Duration.ofMillis(95));
+  }
+
+  @Test
+  public void hedgeDelay_usesRecentLatenciesOnly() {
+    IntStream.range(0, DlpRetryPolicy.LATENCY_WINDOW_SIZE)
+        .forEach(i -> policy.recordLatency(Duration.ofSeconds(10), REQUEST_BYTES));
+    IntStream.range(0, DlpRetryPolicy.LATENCY_WINDOW_SIZE)
+        .forEach(i -> policy.recordLatency(Duration.ofMillis(20), REQUEST_BYTES));
+
+    assertThat(policy.hedgeDelay(REQUEST_BYTES)).hasValue(Duration.ofMillis(20));
+  }
+
+  @Test
+  public void hedgeDelay_separatePerRequestSize() {
+    IntStream.range(0, DlpRetryPolicy.MIN_HEDGE_SAMPLES)
+        .forEach(i -> policy.recordLatency(Duration.ofSeconds(2), 400_000));
+    IntStream.range(0, DlpRetryPolicy.MIN_HEDGE_SAMPLES)
+        .forEach(i -> policy.recordLatency(Duration.ofMillis(20), 2_000));
+
+    assertThat(policy.hedgeDelay(300_000)).hasValue(Duration.ofSeconds(2));
+    assertThat(policy.hedgeDelay(3_000)).hasValue(Duration.ofMillis(20));
+    assertThat(policy.hedgeDelay(REQUEST_BYTES)).isEmpty();
+  }
+
+  @Test
+  public void hedgeDelay_hedgingDisabled_empty() {
+    var noHedging = new DlpRetryPolicy(3, 100, 1000, "UNAVAILABLE", false);
+
+    IntStream.rangeClosed(1, 100)
+        .forEach(i -> noHedging.recordLatency(Duration.ofMillis(i), REQUEST_BYTES));
+
+    assertThat(noHedging.hedgeDelay(REQUEST_BYTES)).isEmpty();
+  }
+
+  static Exception apiException(Status.Code code) {
+    return ApiExceptionFactory.createException(
+        new RuntimeException(code.name()), GrpcStatusCode.of(code), false);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngineTest.cryptoDeterministic;
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngineTest.recordConfig;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.MappingDeidentifyTemplateCallerFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.PatchyDlpStub;
+import com.google.privacy.dlp.v2.DeidentifyTemplate;
+import com.google.privacy.dlp.v2.GetDeidentifyTemplateRequest;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RedactConfig;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DlpTemplateCacheTest {
+
+  private static final String REGIONAL_TEMPLATE =
+      "projects/test-project-id/locations/test-region1/deidentifyTemplates/template1";
+
+  private static final String GLOBAL_TEMPLATE =
+      "projects/test-project-id/locations/global/deidentifyTemplates/template2";
+
+  private final CountingTemplateCallerFactory templateFactory =
+      new CountingTemplateCallerFactory(
+          Map.of(
+              REGIONAL_TEMPLATE,
+              DeidentifyTemplate.newBuilder()
+                  .setName(REGIONAL_TEMPLATE)
+                  .setDeidentifyConfig(recordConfig(cryptoDeterministic(32, "BQ_TOK")))
+                  .build(),
+              GLOBAL_TEMPLATE,
+              DeidentifyTemplate.newBuilder()
+                  .setName(GLOBAL_TEMPLATE)
+                  .setDeidentifyConfig(
+                      recordConfig(
+                          PrimitiveTransformation.newBuilder()
+                              .setRedactConfig(RedactConfig.getDefaultInstance())
+                              .build()))
+                  .build()));
+
+  @Test
+  public void get_configuredTemplate_fetchedOnce() throws Exception {
+    var cache = new DlpTemplateCache(List.of(REGIONAL_TEMPLATE));
+
+    try (var dlpClient = newClient()) {
+      var first = cache.get(REGIONAL_TEMPLATE, dlpClient);
+      var second = cache.get(REGIONAL_TEMPLATE, dlpClient);
+
+      assertThat(second).isSameInstanceAs(first);
+      assertThat(first.parent()).isEqualTo("projects/test-project-id/locations/test-region1");
+    }
+
+    assertThat(templateFactory.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void get_notConfiguredTemplate_fetchedEveryTime() throws Exception {
+    var cache = new DlpTemplateCache(List.of(REGIONAL_TEMPLATE));
+
+    try (var dlpClient = newClient()) {
+      cache.get(GLOBAL_TEMPLATE, dlpClient);
+      var template = cache.get(GLOBAL_TEMPLATE, dlpClient);
+
+      assertThat(template.parent()).isEqualTo("projects/test-project-id");
+    }
+
+    assertThat(templateFactory.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void prefetch_nonReversibleTemplate_cachedForDeidentify() throws Exception {
+    var cache = new DlpTemplateCache(List.of(GLOBAL_TEMPLATE));
+
+    try (var dlpClient = newClient()) {
+      var prefetched = cache.prefetch(GLOBAL_TEMPLATE, dlpClient);
+
+      assertThat(cache.get(GLOBAL_TEMPLATE, dlpClient)).isSameInstanceAs(prefetched);
+    }
+
+    assertThat(templateFactory.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void prefetch_surrogateTemplate_buildsMarkerFilter() throws Exception {
+    var cache = new DlpTemplateCache(List.of(REGIONAL_TEMPLATE));
+
+    try (var dlpClient = newClient()) {
+      var markerFilter = cache.prefetch(REGIONAL_TEMPLATE, dlpClient).surrogateMarkerFilter();
+
+      assertThat(markerFilter).isPresent();
+      assertThat(markerFilter.get().test("id BQ_TOK(44):abc")).isTrue();
+      assertThat(markerFilter.get().test("plain value")).isFalse();
+    }
+  }
+
+  @Test
+  public void prefetch_nonReversibleTemplate_noMarkerFilter() throws Exception {
+    var cache = new DlpTemplateCache(List.of(GLOBAL_TEMPLATE));
+
+    try (var dlpClient = newClient()) {
+      assertThat(cache.prefetch(GLOBAL_TEMPLATE, dlpClient).surrogateMarkerFilter()).isEmpty();
+    }
+  }
+
+  @Test
+  public void fromProperty_commaSeparatedNames_trimmed() {
+    var cache = new DlpTemplateCache(" " + REGIONAL_TEMPLATE + " ,," + GLOBAL_TEMPLATE);
+
+    assertThat(cache.templateNames()).containsExactly(REGIONAL_TEMPLATE, GLOBAL_TEMPLATE);
+  }
+
+  private DlpServiceClient newClient() throws Exception {
+    return DlpServiceClient.create(PatchyDlpStub.using(List.of(templateFactory)));
+  }
+
+  private static final class CountingTemplateCallerFactory
+      extends MappingDeidentifyTemplateCallerFactory {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    CountingTemplateCallerFactory(Map<String, DeidentifyTemplate> nameTemplateMap) {
+      super(nameTemplateMap);
+    }
+
+    @Override
+    public BaseUnaryApiFuture<DeidentifyTemplate> create(
+        GetDeidentifyTemplateRequest request, ApiCallContext context) {
+      calls.incrementAndGet();
+      return super.create(request, context);
+    }
+  }
+}
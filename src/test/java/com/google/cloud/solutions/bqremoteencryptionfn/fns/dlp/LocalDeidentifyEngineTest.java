@@ -0,0 +1,271 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.privacy.dlp.v2.BucketingConfig;
+import com.google.privacy.dlp.v2.BucketingConfig.Bucket;
+import com.google.privacy.dlp.v2.CharacterMaskConfig;
+import com.google.privacy.dlp.v2.CharsToIgnore;
+import com.google.privacy.dlp.v2.CryptoDeterministicConfig;
+import com.google.privacy.dlp.v2.CryptoKey;
+import com.google.privacy.dlp.v2.DateShiftConfig;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.FixedSizeBucketingConfig;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InfoTypeTransformations;
+import com.google.privacy.dlp.v2.KmsWrappedCryptoKey;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import com.google.privacy.dlp.v2.RedactConfig;
+import com.google.privacy.dlp.v2.ReplaceValueConfig;
+import com.google.privacy.dlp.v2.UnwrappedCryptoKey;
+import com.google.privacy.dlp.v2.Value;
+import com.google.protobuf.ByteString;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class LocalDeidentifyEngineTest {
+
+  private static final String COLUMN = "bqfnvalue";
+
+  private static final String KMS_KEY_NAME = "projects/p/locations/l/keyRings/r/cryptoKeys/k";
+
+  @Test
+  public void deidentify_cryptoDeterministicWithSurrogate_annotatedTokens() {
+    var engine =
+        LocalDeidentifyEngine.compile(recordConfig(cryptoDeterministic(32, "BQ_TOK")), COLUMN)
+            .orElseThrow();
+
+    var tokens = engine.deidentify(List.of("Anant", "Damle", "Anant")).orElseThrow();
+
+    assertThat(tokens).hasSize(3);
+    assertThat(tokens.get(0)).isEqualTo(tokens.get(2));
+    assertThat(tokens.get(0)).matches("^BQ_TOK\\(\\d+\\):AQ[A-Za-z0-9+/=]+$");
+  }
+
+  @Test
+  public void reidentify_roundTrip_valid() {
+    var engine =
+        LocalDeidentifyEngine.compile(recordConfig(cryptoDeterministic(64, "BQ_TOK")), COLUMN)
+            .orElseThrow();
+    var rows = List.of("Anant", "Damle", "My email is john@doe.com");
+
+    var tokens = engine.deidentify(rows).orElseThrow();
+
+    assertThat(engine.reidentify(tokens)).hasValue(rows);
+  }
+
+  @Test
+  public void reidentify_tamperedToken_empty() {
+    var engine =
+        LocalDeidentifyEngine.compile(recordConfig(cryptoDeterministic(32, "")), COLUMN)
+            .orElseThrow();
+    var token = engine.deidentify(List.of("Anant")).orElseThrow().get(0);
+    var tamperedToken =
+        token.substring(0, 5) + (token.charAt(5) == 'A' ? 'B' : 'A') + token.substring(6);
+
+    assertThat(engine.reidentify(List.of(tamperedToken))).isEmpty();
+  }
+
+  @Test
+  public void deidentify_emptyValue_empty() {
+    var engine =
+        LocalDeidentifyEngine.compile(recordConfig(cryptoDeterministic(32, "")), COLUMN)
+            .orElseThrow();
+
+    assertThat(engine.deidentify(List.of("Anant", ""))).isEmpty();
+  }
+
+  @Test
+  public void compile_kmsWrappedKey_empty() {
+    var primitive =
+        PrimitiveTransformation.newBuilder()
+            .setCryptoDeterministicConfig(
+                CryptoDeterministicConfig.newBuilder()
+                    .setCryptoKey(
+                        CryptoKey.newBuilder()
+                            .setKmsWrapped(
+                                KmsWrappedCryptoKey.newBuilder()
+                                    .setWrappedKey(ByteString.copyFromUtf8("wrapped"))
+                                    .setCryptoKeyName(KMS_KEY_NAME))))
+            .build();
+
+    assertThat(LocalDeidentifyEngine.compile(recordConfig(primitive), COLUMN)).isEmpty();
+  }
+
+  @Test
+  public void compile_infoTypeTransformations_empty() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setInfoTypeTransformations(
+                InfoTypeTransformations.newBuilder()
+                    .addTransformations(
+                        InfoTypeTransformations.InfoTypeTransformation.newBuilder()
+                            .setPrimitiveTransformation(cryptoDeterministic(32, "BQ_TOK"))))
+            .build();
+
+    assertThat(LocalDeidentifyEngine.compile(config, COLUMN)).isEmpty();
+  }
+
+  @Test
+  public void compile_columnNotTransformed_empty() {
+    assertThat(
+            LocalDeidentifyEngine.compile(
+                recordConfig(cryptoDeterministic(32, "BQ_TOK")), "otherColumn"))
+        .isEmpty();
+  }
+
+  @Test
+  public void compile_characterMask_empty() {
+    var primitive =
+        PrimitiveTransformation.newBuilder()
+            .setCharacterMaskConfig(
+                CharacterMaskConfig.newBuilder()
+                    .setNumberToMask(5)
+                    .addCharactersToIgnore(CharsToIgnore.newBuilder().setCharactersToSkip("-")))
+            .build();
+
+    assertThat(LocalDeidentifyEngine.compile(recordConfig(primitive), COLUMN)).isEmpty();
+  }
+
+  @Test
+  public void deidentify_replaceAndRedact_valid() {
+    var replaceEngine =
+        LocalDeidentifyEngine.compile(
+                recordConfig(
+                    PrimitiveTransformation.newBuilder()
+                        .setReplaceConfig(
+                            ReplaceValueConfig.newBuilder()
+                                .setNewValue(Value.newBuilder().setStringValue("[redacted]")))
+                        .build()),
+                COLUMN)
+            .orElseThrow();
+    var redactEngine =
+        LocalDeidentifyEngine.compile(
+                recordConfig(
+                    PrimitiveTransformation.newBuilder()
+                        .setRedactConfig(RedactConfig.getDefaultInstance())
+                        .build()),
+                COLUMN)
+            .orElseThrow();
+
+    assertThat(replaceEngine.deidentify(List.of("Anant", "Damle")))
+        .hasValue(List.of("[redacted]", "[redacted]"));
+    assertThat(redactEngine.deidentify(List.of("Anant"))).hasValue(List.of(""));
+    assertThat(redactEngine.reidentify(List.of(""))).isEmpty();
+  }
+
+  @Test
+  public void compile_replaceWithIntegerValue_empty() {
+    var primitive =
+        PrimitiveTransformation.newBuilder()
+            .setReplaceConfig(
+                ReplaceValueConfig.newBuilder().setNewValue(Value.newBuilder().setIntegerValue(0)))
+            .build();
+
+    assertThat(LocalDeidentifyEngine.compile(recordConfig(primitive), COLUMN)).isEmpty();
+  }
+
+  @Test
+  public void compile_bucketing_empty() {
+    var fixedSizeBucketing =
+        PrimitiveTransformation.newBuilder()
+            .setFixedSizeBucketingConfig(
+                FixedSizeBucketingConfig.newBuilder()
+                    .setLowerBound(Value.newBuilder().setIntegerValue(10))
+                    .setUpperBound(Value.newBuilder().setIntegerValue(89))
+                    .setBucketSize(10))
+            .build();
+    var bucketing =
+        PrimitiveTransformation.newBuilder()
+            .setBucketingConfig(
+                BucketingConfig.newBuilder()
+                    .addBuckets(
+                        Bucket.newBuilder()
+                            .setMax(Value.newBuilder().setIntegerValue(18))
+                            .setReplacementValue(Value.newBuilder().setStringValue("minor"))))
+            .build();
+
+    assertThat(LocalDeidentifyEngine.compile(recordConfig(fixedSizeBucketing), COLUMN)).isEmpty();
+    assertThat(LocalDeidentifyEngine.compile(recordConfig(bucketing), COLUMN)).isEmpty();
+  }
+
+  @Test
+  public void compile_dateShiftWithValueContext_empty() {
+    var primitive =
+        PrimitiveTransformation.newBuilder()
+            .setDateShiftConfig(
+                DateShiftConfig.newBuilder()
+                    .setLowerBoundDays(-10)
+                    .setUpperBoundDays(10)
+                    .setContext(FieldId.newBuilder().setName(COLUMN))
+                    .setCryptoKey(
+                        CryptoKey.newBuilder()
+                            .setUnwrapped(
+                                UnwrappedCryptoKey.newBuilder()
+                                    .setKey(ByteString.copyFrom(new byte[32])))))
+            .build();
+
+    assertThat(LocalDeidentifyEngine.compile(recordConfig(primitive), COLUMN)).isEmpty();
+  }
+
+  @Test
+  public void reidentify_oneWayTransformation_empty() {
+    var primitive =
+        PrimitiveTransformation.newBuilder()
+            .setRedactConfig(RedactConfig.getDefaultInstance())
+            .build();
+    var engine = LocalDeidentifyEngine.compile(recordConfig(primitive), COLUMN).orElseThrow();
+
+    assertThat(engine.isReversible()).isFalse();
+    assertThat(engine.reidentify(List.of("value"))).isEmpty();
+  }
+
+  static DeidentifyConfig recordConfig(PrimitiveTransformation primitiveTransformation) {
+    return DeidentifyConfig.newBuilder()
+        .setRecordTransformations(
+            RecordTransformations.newBuilder()
+                .addFieldTransformations(
+                    FieldTransformation.newBuilder()
+                        .addFields(FieldId.newBuilder().setName(COLUMN))
+                        .setPrimitiveTransformation(primitiveTransformation)))
+        .build();
+  }
+
+  static PrimitiveTransformation cryptoDeterministic(int keyBytes, String surrogateName) {
+    var configBuilder =
+        CryptoDeterministicConfig.newBuilder()
+            .setCryptoKey(
+                CryptoKey.newBuilder()
+                    .setUnwrapped(
+                        UnwrappedCryptoKey.newBuilder()
+                            .setKey(ByteString.copyFrom(new byte[keyBytes]))));
+
+    if (!surrogateName.isEmpty()) {
+      configBuilder.setSurrogateInfoType(InfoType.newBuilder().setName(surrogateName));
+    }
+
+    return PrimitiveTransformation.newBuilder().setCryptoDeterministicConfig(configBuilder).build();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngineTest.cryptoDeterministic;
+import static com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.LocalDeidentifyEngineTest.recordConfig;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpTemplateCache.PreparedTemplate;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.protobuf.Timestamp;
+import java.util.Optional;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class LocalEngineRegistryTest {
+
+  private static final String TEMPLATE_NAME =
+      "projects/test-project-id/locations/global/deidentifyTemplates/local-template";
+
+  private static final DeidentifyConfig DEID_CONFIG =
+      recordConfig(cryptoDeterministic(32, "BQ_TOK"));
+
+  private final LocalEngineRegistry registry = new LocalEngineRegistry();
+
+  @Test
+  public void get_sameTemplateVersion_sameEntry() throws Exception {
+    var first = registry.get(template(100), "bqfnvalue");
+    var second = registry.get(template(100), "bqfnvalue");
+
+    assertThat(second).isSameInstanceAs(first);
+  }
+
+  @Test
+  public void get_updatedTemplate_newUnverifiedEntry() throws Exception {
+    var entry = registry.get(template(100), "bqfnvalue");
+    entry.deidentifyVerifier().recordVerification(true);
+
+    var updatedEntry = registry.get(template(200), "bqfnvalue");
+
+    assertThat(entry.deidentifyVerifier().skipsVerification()).isTrue();
+    assertThat(updatedEntry.deidentifyVerifier().skipsVerification()).isFalse();
+  }
+
+  @Test
+  public void recordVerification_deidentifyMismatch_keepsReidentifyEngine() throws Exception {
+    var entry = registry.get(template(100), "bqfnvalue");
+
+    entry.deidentifyVerifier().recordVerification(false);
+
+    assertThat(entry.deidentifyEngine()).isEmpty();
+    assertThat(entry.reidentifyEngine()).isPresent();
+  }
+
+  @Test
+  public void recordVerification_deidentifyMatch_reidentifyStillUnverified() throws Exception {
+    var entry = registry.get(template(100), "bqfnvalue");
+
+    entry.deidentifyVerifier().recordVerification(true);
+
+    assertThat(entry.reidentifyVerifier().skipsVerification()).isFalse();
+  }
+
+  private static PreparedTemplate template(long updateSeconds) {
+    return new PreparedTemplate(
+        TEMPLATE_NAME,
+        DlpFn.extractDlpParent(TEMPLATE_NAME),
+        DEID_CONFIG,
+        Timestamp.newBuilder().setSeconds(updateSeconds).build(),
+        DlpReIdRequestMaker.forConfig(DEID_CONFIG),
+        Optional.empty());
+  }
+}
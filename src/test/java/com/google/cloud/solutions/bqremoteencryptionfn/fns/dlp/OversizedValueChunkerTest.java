@@ -0,0 +1,264 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.base.Utf8;
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.Range;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.Finding;
+import com.google.privacy.dlp.v2.InfoType;
+import com.google.privacy.dlp.v2.InfoTypeTransformations;
+import com.google.privacy.dlp.v2.InfoTypeTransformations.InfoTypeTransformation;
+import com.google.privacy.dlp.v2.InspectConfig;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
+import com.google.privacy.dlp.v2.InspectResult;
+import com.google.privacy.dlp.v2.Location;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import com.google.privacy.dlp.v2.ReplaceWithInfoTypeConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class OversizedValueChunkerTest {
+
+  private static final String TEXT =
+      "The quick brown fox jumps over the lazy dog while alice@example.com watches";
+
+  private static final String EMAIL = "alice@example.com";
+
+  private static final String NAME = "Alice Smith";
+
+  private static final InfoType PERSON_NAME = InfoType.newBuilder().setName("PERSON_NAME").build();
+
+  @Test
+  public void cutChunks_smallValue_singleChunk() {
+    assertThat(OversizedValueChunker.cutChunks("short value", 100, ImmutableRangeSet.of()))
+        .containsExactly("short value");
+  }
+
+  @Test
+  public void cutChunks_cutsAfterWhitespace() {
+    var chunks = OversizedValueChunker.cutChunks(TEXT, 20, ImmutableRangeSet.of());
+
+    assertThat(String.join("", chunks)).isEqualTo(TEXT);
+    chunks.forEach(chunk -> assertThat(chunk.length()).isAtMost(20));
+    chunks.subList(0, chunks.size() - 1).forEach(chunk -> assertThat(chunk).endsWith(" "));
+  }
+
+  @Test
+  public void cutChunks_noWhitespace_hardCut() {
+    var value = "x".repeat(45);
+
+    assertThat(OversizedValueChunker.cutChunks(value, 20, ImmutableRangeSet.of()))
+        .containsExactly("x".repeat(20), "x".repeat(20), "x".repeat(5))
+        .inOrder();
+  }
+
+  @Test
+  public void cutChunks_multiByteChars_limitsUtf8Bytes() {
+    var value = "\u00e9t\u00e9 ".repeat(20) + "\uD83D\uDE00".repeat(10);
+
+    var chunks = OversizedValueChunker.cutChunks(value, 16, ImmutableRangeSet.of());
+
+    assertThat(String.join("", chunks)).isEqualTo(value);
+    chunks.forEach(chunk -> assertThat(Utf8.encodedLength(chunk)).isAtMost(16));
+  }
+
+  @Test
+  public void cutChunks_protectedRange_notSplit() {
+    var emailStart = TEXT.indexOf("alice@example.com");
+    var emailEnd = emailStart + "alice@example.com".length();
+    var protectedRanges = ImmutableRangeSet.of(Range.closedOpen(emailStart - 6, emailEnd));
+
+    var chunks = OversizedValueChunker.cutChunks(TEXT, 60, protectedRanges);
+
+    assertThat(String.join("", chunks)).isEqualTo(TEXT);
+    assertThat(chunks.stream().anyMatch(chunk -> chunk.contains("while alice@example.com")))
+        .isTrue();
+  }
+
+  @Test
+  public void chunk_withInspection_keepsFindingWhole() {
+    var value = "lorem ipsum ".repeat(200) + "alice@example.com " + "dolor sit ".repeat(200);
+    var requests = new ArrayList<InspectContentRequest>();
+
+    var chunks =
+        OversizedValueChunker.withInspection("projects/test", "inspect-template")
+            .chunk(
+                request -> {
+                  requests.add(request);
+                  return CompletableFuture.completedFuture(findings(request, EMAIL));
+                },
+                value,
+                1500)
+            .join();
+
+    assertThat(String.join("", chunks)).isEqualTo(value);
+    assertThat(chunks.stream().anyMatch(chunk -> chunk.contains("alice@example.com"))).isTrue();
+    assertThat(requests.size()).isGreaterThan(1);
+    requests.forEach(
+        request -> assertThat(request.getInspectTemplateName()).isEqualTo("inspect-template"));
+  }
+
+  @Test
+  public void chunk_inspectionFails_completesExceptionally() {
+    var value = "lorem ipsum ".repeat(400);
+
+    var chunks =
+        OversizedValueChunker.withInspection("projects/test", "inspect-template")
+            .chunk(
+                request -> CompletableFuture.failedFuture(new IllegalStateException("DLP down")),
+                value,
+                1500);
+
+    var exception = assertThrows(CompletionException.class, chunks::join);
+    assertThat(exception).hasCauseThat().hasMessageThat().isEqualTo("DLP down");
+  }
+
+  @Test
+  public void chunk_deidentifyConfigInfoTypeStraddlingBoundary_keepsFindingWhole() {
+    // The last whitespace within the first 1500 chars is the one inside the name.
+    var value = "lorem ipsum ".repeat(124) + "see " + NAME + " dolor sit".repeat(200);
+    var requests = new ArrayList<InspectContentRequest>();
+
+    var chunks =
+        OversizedValueChunker.forDeidentifyConfig(
+                "projects/test", infoTypeConfig(List.of(PERSON_NAME)))
+            .orElseThrow()
+            .chunk(
+                request -> {
+                  requests.add(request);
+                  return CompletableFuture.completedFuture(
+                      request.getInspectConfig().getInfoTypesList().contains(PERSON_NAME)
+                          ? findings(request, NAME)
+                          : InspectContentResponse.getDefaultInstance());
+                },
+                value,
+                1500)
+            .join();
+
+    assertThat(
+            OversizedValueChunker.cutChunks(value, 1500, ImmutableRangeSet.of()).stream()
+                .anyMatch(chunk -> chunk.contains(NAME)))
+        .isFalse();
+    assertThat(String.join("", chunks)).isEqualTo(value);
+    assertThat(chunks.stream().anyMatch(chunk -> chunk.contains(NAME))).isTrue();
+    requests.forEach(request -> assertThat(request.getInspectTemplateName()).isEmpty());
+  }
+
+  @Test
+  public void inspectConfigFor_infoTypeTransformations_inspectsTheirInfoTypes() {
+    var emailAddress = InfoType.newBuilder().setName("EMAIL_ADDRESS").build();
+
+    assertThat(
+            OversizedValueChunker.inspectConfigFor(
+                infoTypeConfig(List.of(PERSON_NAME, emailAddress, PERSON_NAME))))
+        .hasValue(
+            InspectConfig.newBuilder()
+                .addInfoTypes(PERSON_NAME)
+                .addInfoTypes(emailAddress)
+                .build());
+  }
+
+  @Test
+  public void inspectConfigFor_transformationWithoutInfoTypes_inspectsDefaultInfoTypes() {
+    assertThat(OversizedValueChunker.inspectConfigFor(infoTypeConfig(List.of())))
+        .hasValue(InspectConfig.getDefaultInstance());
+  }
+
+  @Test
+  public void inspectConfigFor_recordInfoTypeTransformations_inspectsTheirInfoTypes() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setRecordTransformations(
+                RecordTransformations.newBuilder()
+                    .addFieldTransformations(
+                        FieldTransformation.newBuilder()
+                            .addFields(FieldId.newBuilder().setName("bqfnvalue"))
+                            .setInfoTypeTransformations(
+                                infoTypeConfig(List.of(PERSON_NAME)).getInfoTypeTransformations())))
+            .build();
+
+    assertThat(OversizedValueChunker.inspectConfigFor(config))
+        .hasValue(InspectConfig.newBuilder().addInfoTypes(PERSON_NAME).build());
+  }
+
+  @Test
+  public void forDeidentifyConfig_primitiveFieldTransformation_empty() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setRecordTransformations(
+                RecordTransformations.newBuilder()
+                    .addFieldTransformations(
+                        FieldTransformation.newBuilder()
+                            .addFields(FieldId.newBuilder().setName("bqfnvalue"))
+                            .setPrimitiveTransformation(replaceWithInfoType())))
+            .build();
+
+    assertThat(OversizedValueChunker.forDeidentifyConfig("projects/test", config)).isEmpty();
+  }
+
+  private static DeidentifyConfig infoTypeConfig(List<InfoType> infoTypes) {
+    return DeidentifyConfig.newBuilder()
+        .setInfoTypeTransformations(
+            InfoTypeTransformations.newBuilder()
+                .addTransformations(
+                    InfoTypeTransformation.newBuilder()
+                        .addAllInfoTypes(infoTypes)
+                        .setPrimitiveTransformation(replaceWithInfoType())))
+        .build();
+  }
+
+  private static PrimitiveTransformation replaceWithInfoType() {
+    return PrimitiveTransformation.newBuilder()
+        .setReplaceWithInfoTypeConfig(ReplaceWithInfoTypeConfig.getDefaultInstance())
+        .build();
+  }
+
+  private static InspectContentResponse findings(InspectContentRequest request, String text) {
+    var window = request.getItem().getValue();
+    var result = InspectResult.newBuilder();
+
+    var start = window.indexOf(text);
+    if (start >= 0) {
+      var end = start + text.length();
+      result.addFindings(
+          Finding.newBuilder()
+              .setLocation(
+                  Location.newBuilder()
+                      .setCodepointRange(
+                          com.google.privacy.dlp.v2.Range.newBuilder()
+                              .setStart(window.codePointCount(0, start))
+                              .setEnd(window.codePointCount(0, end)))));
+    }
+
+    return InspectContentResponse.newBuilder().setResult(result).build();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.dlp.v2.DlpServiceClient;
+import com.google.cloud.dlp.v2.DlpServiceSettings;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpClientFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp.DlpFn.DlpTransformFnFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.Base64EncodingDlpStub;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp.PatchyDlpStub;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class RegionalDlpClientFactoryTest {
+
+  private static final String EUROPE_ENDPOINT = "dlp.europe-west3.rep.googleapis.com:443";
+
+  private final RegionalDlpClientFactory clientFactory =
+      new RegionalDlpClientFactory(
+          ImmutableMap.of("europe-west3", EUROPE_ENDPOINT), 1, ImmutableMap::of);
+
+  @After
+  public void closeFactory() throws Exception {
+    clientFactory.close();
+  }
+
+  @Test
+  public void parseLocationEndpoints_valid() {
+    assertThat(
+            RegionalDlpClientFactory.parseLocationEndpoints(
+                " europe-west3 = " + EUROPE_ENDPOINT + ",,us-east1=dlp.us-east1:443"))
+        .containsExactly("europe-west3", EUROPE_ENDPOINT, "us-east1", "dlp.us-east1:443");
+  }
+
+  @Test
+  public void endpointFor_unmappedLocation_defaultEndpoint() {
+    assertThat(clientFactory.endpointFor("europe-west3")).isEqualTo(EUROPE_ENDPOINT);
+    assertThat(clientFactory.endpointFor("global"))
+        .isEqualTo(DlpServiceSettings.getDefaultEndpoint());
+  }
+
+  @Test
+  public void settingsFor_sameEndpoint_sharesChannel() {
+    var globalSettings = clientFactory.settingsFor(clientFactory.endpointFor("global"));
+    var usSettings = clientFactory.settingsFor(clientFactory.endpointFor("us-central1"));
+    var europeSettings = clientFactory.settingsFor(clientFactory.endpointFor("europe-west3"));
+
+    assertThat(usSettings).isSameInstanceAs(globalSettings);
+    assertThat(europeSettings).isNotSameInstanceAs(globalSettings);
+    assertThat(europeSettings.getEndpoint()).isEqualTo(EUROPE_ENDPOINT);
+    assertThat(europeSettings.getTransportChannelProvider().shouldAutoClose()).isFalse();
+  }
+
+  @Test
+  public void settingsFor_contentCallsSentOnce() {
+    var settings = clientFactory.settingsFor(clientFactory.endpointFor("global"));
+
+    assertThat(settings.deidentifyContentSettings().getRetrySettings().getMaxAttempts())
+        .isEqualTo(1);
+    assertThat(settings.reidentifyContentSettings().getRetrySettings().getMaxAttempts())
+        .isEqualTo(1);
+    assertThat(settings.inspectContentSettings().getRetrySettings().getMaxAttempts())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void dlpFn_regionalTemplate_clientForTemplateLocation() throws Exception {
+    var requestedLocations = new ArrayList<String>();
+    var base64Stub =
+        new Base64EncodingDlpStub(ImmutableSet.of("bqfnvalue"), "test-project-id", "test-region1");
+    var routingFactory =
+        new DlpClientFactory() {
+          @Override
+          public DlpServiceClient newClient() {
+            throw new AssertionError("default client requested");
+          }
+
+          @Override
+          public DlpServiceClient newClient(String location) throws Exception {
+            requestedLocations.add(location);
+            return DlpServiceClient.create(
+                PatchyDlpStub.using(List.of(base64Stub.deidentifyFactory())));
+          }
+        };
+
+    var tokens =
+        new DlpTransformFnFactory("bqfnvalue", 1600, 500000, false, routingFactory)
+            .createFn(
+                Map.of(
+                    "dlp-deid-template",
+                    "projects/test-project-id/locations/test-region1/deidentifyTemplates/t1"))
+            .deidentify(List.of(List.of("Anant"), List.of("Damle")));
+
+    assertThat(tokens).containsExactly("QW5hbnQ=", "RGFtbGU=").inOrder();
+    assertThat(requestedLocations).containsExactly("test-region1");
+  }
+}
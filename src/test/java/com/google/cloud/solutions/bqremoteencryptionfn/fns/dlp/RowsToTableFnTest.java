@@ -23,6 +23,9 @@ import static org.junit.Assert.assertThrows;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.GoogleLogger;
 import com.google.common.truth.extensions.proto.ProtoTruth;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.Value;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
 import org.junit.Before;
@@ -74,7 +77,10 @@ public final class RowsToTableFnTest {
     @Test
     public void apply_valid() {
 
-      var tables = executor.rowsToTableFn().apply(testRows);
+      var tables =
+          executor.rowsToTableFn().apply(testRows).stream()
+              .map(DlpRequestBatchExecutor.PackedTable::table)
+              .toList();
 
       assertThat(tables).hasSize(expectedTablesCount);
       tables.forEach(
@@ -123,6 +129,103 @@ public final class RowsToTableFnTest {
     }
   }
 
+  @RunWith(JUnit4.class)
+  public static final class PackingTests {
+
+    @Test
+    public void apply_mixedSizes_packsFewerTablesThanGreedy() {
+      // Serialized row sizes 46, 56, 36, 46 bytes, with a 17 bytes header: greedy needs 3 tables.
+      var testRows = List.of("a".repeat(40), "b".repeat(50), "c".repeat(30), "d".repeat(40));
+
+      var packedTables =
+          DlpRequestBatchExecutor.builder()
+              .setDlpColumnName("testDlpColumn")
+              .setRequestMaxBytes(110)
+              .setRequestCellCount(10)
+              .build()
+              .rowsToTableFn()
+              .apply(testRows);
+
+      assertThat(packedTables).hasSize(2);
+      packedTables.forEach(
+          packedTable ->
+              ProtoTruth.assertThat(packedTable.table()).serializedSize().isLessThan(110));
+      assertThat(
+              packedTables.stream()
+                  .flatMapToInt(packedTable -> Arrays.stream(packedTable.rowIndexes()))
+                  .boxed()
+                  .toList())
+          .containsExactly(0, 1, 2, 3);
+    }
+
+    @Test
+    public void apply_rowIndexes_matchTableRows() {
+      var testRows =
+          IntStream.range(0, 200)
+              .mapToObj(i -> String.format("%03d", i).repeat(1 + (i * 7) % 13))
+              .collect(toImmutableList());
+
+      var packedTables =
+          DlpRequestBatchExecutor.builder()
+              .setDlpColumnName("testDlpColumn")
+              .setRequestMaxBytes(500)
+              .setRequestCellCount(20)
+              .setPackingWindowSize(50)
+              .build()
+              .rowsToTableFn()
+              .apply(testRows);
+
+      packedTables.forEach(
+          packedTable -> {
+            assertThat(packedTable.table().getRowsCount()).isAtMost(20);
+            assertThat(
+                    packedTable.table().getRowsList().stream()
+                        .map(row -> row.getValues(0))
+                        .map(Value::getStringValue)
+                        .toList())
+                .containsExactlyElementsIn(
+                    Arrays.stream(packedTable.rowIndexes()).mapToObj(testRows::get).toList())
+                .inOrder();
+          });
+      assertThat(packedTables.stream().mapToInt(table -> table.rowIndexes().length).sum())
+          .isEqualTo(200);
+    }
+  }
+
+  @RunWith(JUnit4.class)
+  public static final class WideLayoutTests {
+
+    @Test
+    public void apply_rowWidth_packsValuesAcrossColumns() {
+      var testRows = IntStream.range(0, 10).mapToObj(i -> "value" + i).toList();
+
+      var packedTables =
+          DlpRequestBatchExecutor.builder()
+              .setDlpColumnName("testDlpColumn")
+              .setRowWidth(3)
+              .setRequestCellCount(6)
+              .build()
+              .rowsToTableFn()
+              .apply(testRows);
+
+      assertThat(packedTables).hasSize(2);
+      packedTables.forEach(
+          packedTable -> {
+            assertThat(packedTable.table().getHeadersList().stream().map(FieldId::getName).toList())
+                .containsExactly("testDlpColumn", "testDlpColumn_1", "testDlpColumn_2")
+                .inOrder();
+            assertThat(packedTable.table().getRowsCount()).isEqualTo(2);
+          });
+      assertThat(
+              packedTables.stream()
+                  .flatMapToInt(packedTable -> Arrays.stream(packedTable.rowIndexes()))
+                  .boxed()
+                  .toList())
+          .containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, -1, -1)
+          .inOrder();
+    }
+  }
+
   @RunWith(JUnit4.class)
   public static final class ExceptionTests {
 
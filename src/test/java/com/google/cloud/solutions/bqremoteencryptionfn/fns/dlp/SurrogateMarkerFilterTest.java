@@ -0,0 +1,61 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class SurrogateMarkerFilterTest {
+
+  private final SurrogateMarkerFilter filter =
+      SurrogateMarkerFilter.forSurrogateNames(ImmutableList.of("EMAIL_TOKEN", "TOKEN", "PHONE"));
+
+  @Test
+  public void test_containsMarker_true() {
+    assertThat(filter.test("TOKEN(12):abcdefghijkl")).isTrue();
+    assertThat(filter.test("Contact EMAIL_TOKEN(20):xyz today")).isTrue();
+    assertThat(filter.test("call PHONE(3):abc")).isTrue();
+  }
+
+  @Test
+  public void test_overlappingPrefix_true() {
+    assertThat(filter.test("PHONPHONE(")).isTrue();
+    assertThat(filter.test("EMAIL_TOKTOKEN(")).isTrue();
+  }
+
+  @Test
+  public void test_noMarker_false() {
+    assertThat(filter.test("")).isFalse();
+    assertThat(filter.test("QW5hbnQ=")).isFalse();
+    assertThat(filter.test("TOKEN without parenthesis")).isFalse();
+    assertThat(filter.test("token(12):lowercase")).isFalse();
+    assertThat(filter.test("PHONÉ(12) non-ascii")).isFalse();
+  }
+
+  @Test
+  public void forSurrogateNames_empty_throwsIllegalArgumentException() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> SurrogateMarkerFilter.forSurrogateNames(ImmutableList.of()));
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.dlp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.truth.extensions.proto.ProtoTruth;
+import com.google.privacy.dlp.v2.CryptoDeterministicConfig;
+import com.google.privacy.dlp.v2.CryptoReplaceFfxFpeConfig;
+import com.google.privacy.dlp.v2.DateShiftConfig;
+import com.google.privacy.dlp.v2.DeidentifyConfig;
+import com.google.privacy.dlp.v2.FieldId;
+import com.google.privacy.dlp.v2.FieldTransformation;
+import com.google.privacy.dlp.v2.InfoTypeTransformations;
+import com.google.privacy.dlp.v2.InfoTypeTransformations.InfoTypeTransformation;
+import com.google.privacy.dlp.v2.PrimitiveTransformation;
+import com.google.privacy.dlp.v2.RecordTransformations;
+import com.google.privacy.dlp.v2.RedactConfig;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class WideTableLayoutTest {
+
+  @Test
+  public void columnNames_firstColumnKeepsName() {
+    assertThat(WideTableLayout.columnNames("bqfnvalue", 3))
+        .containsExactly("bqfnvalue", "bqfnvalue_1", "bqfnvalue_2")
+        .inOrder();
+  }
+
+  @Test
+  public void expandConfig_recordTransformations_repeatedOnAllColumns() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setRecordTransformations(
+                RecordTransformations.newBuilder()
+                    .addFieldTransformations(
+                        FieldTransformation.newBuilder()
+                            .addFields(FieldId.newBuilder().setName("bqfnvalue"))
+                            .setPrimitiveTransformation(
+                                PrimitiveTransformation.newBuilder()
+                                    .setCryptoReplaceFfxFpeConfig(
+                                        CryptoReplaceFfxFpeConfig.getDefaultInstance())))
+                    .addFieldTransformations(
+                        FieldTransformation.newBuilder()
+                            .addFields(FieldId.newBuilder().setName("other"))
+                            .setPrimitiveTransformation(
+                                PrimitiveTransformation.newBuilder()
+                                    .setRedactConfig(RedactConfig.getDefaultInstance()))))
+            .build();
+
+    var expanded = WideTableLayout.expandConfig(config, "bqfnvalue", 3);
+
+    var fieldTransformations = expanded.getRecordTransformations().getFieldTransformationsList();
+    var expandedFieldNames =
+        fieldTransformations.get(0).getFieldsList().stream().map(FieldId::getName).toList();
+    assertThat(expandedFieldNames)
+        .containsExactly("bqfnvalue", "bqfnvalue_1", "bqfnvalue_2")
+        .inOrder();
+    ProtoTruth.assertThat(fieldTransformations.get(1))
+        .isEqualTo(config.getRecordTransformations().getFieldTransformations(1));
+  }
+
+  @Test
+  public void expandConfig_infoTypeTransformations_unchanged() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setInfoTypeTransformations(InfoTypeTransformations.getDefaultInstance())
+            .build();
+
+    ProtoTruth.assertThat(WideTableLayout.expandConfig(config, "bqfnvalue", 4)).isEqualTo(config);
+  }
+
+  @Test
+  public void expandConfig_valueColumnContext_renamedPerColumn() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setRecordTransformations(
+                RecordTransformations.newBuilder()
+                    .addFieldTransformations(
+                        FieldTransformation.newBuilder()
+                            .addFields(FieldId.newBuilder().setName("bqfnvalue"))
+                            .setPrimitiveTransformation(
+                                PrimitiveTransformation.newBuilder()
+                                    .setCryptoDeterministicConfig(
+                                        CryptoDeterministicConfig.newBuilder()
+                                            .setContext(
+                                                FieldId.newBuilder().setName("bqfnvalue"))))))
+            .build();
+
+    var expanded = WideTableLayout.expandConfig(config, "bqfnvalue", 3);
+
+    var fieldTransformations = expanded.getRecordTransformations().getFieldTransformationsList();
+    assertThat(fieldTransformations).hasSize(3);
+    for (int index = 0; index < 3; index++) {
+      var columnName = index == 0 ? "bqfnvalue" : "bqfnvalue_" + index;
+      var fieldTransformation = fieldTransformations.get(index);
+      assertThat(fieldTransformation.getFieldsList())
+          .containsExactly(FieldId.newBuilder().setName(columnName).build());
+      assertThat(
+              fieldTransformation
+                  .getPrimitiveTransformation()
+                  .getCryptoDeterministicConfig()
+                  .getContext()
+                  .getName())
+          .isEqualTo(columnName);
+    }
+  }
+
+  @Test
+  public void expandConfig_infoTypeValueColumnContext_renamedPerColumn() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setInfoTypeTransformations(
+                InfoTypeTransformations.newBuilder()
+                    .addTransformations(
+                        InfoTypeTransformation.newBuilder()
+                            .setPrimitiveTransformation(
+                                PrimitiveTransformation.newBuilder()
+                                    .setDateShiftConfig(
+                                        DateShiftConfig.newBuilder()
+                                            .setContext(
+                                                FieldId.newBuilder().setName("bqfnvalue"))))))
+            .build();
+
+    var expanded = WideTableLayout.expandConfig(config, "bqfnvalue", 2);
+
+    var fieldTransformations = expanded.getRecordTransformations().getFieldTransformationsList();
+    assertThat(fieldTransformations).hasSize(2);
+    assertThat(
+            fieldTransformations
+                .get(1)
+                .getInfoTypeTransformations()
+                .getTransformations(0)
+                .getPrimitiveTransformation()
+                .getDateShiftConfig()
+                .getContext()
+                .getName())
+        .isEqualTo("bqfnvalue_1");
+  }
+
+  @Test
+  public void expandConfig_otherContext_sharedTransformation() {
+    var config =
+        DeidentifyConfig.newBuilder()
+            .setRecordTransformations(
+                RecordTransformations.newBuilder()
+                    .addFieldTransformations(
+                        FieldTransformation.newBuilder()
+                            .addFields(FieldId.newBuilder().setName("bqfnvalue"))
+                            .setPrimitiveTransformation(
+                                PrimitiveTransformation.newBuilder()
+                                    .setCryptoDeterministicConfig(
+                                        CryptoDeterministicConfig.newBuilder()
+                                            .setContext(FieldId.newBuilder().setName("other"))))))
+            .build();
+
+    var expanded = WideTableLayout.expandConfig(config, "bqfnvalue", 3);
+
+    assertThat(expanded.getRecordTransformations().getFieldTransformationsList()).hasSize(1);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.fns.localmask;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.solutions.bqremoteencryptionfn.fns.localmask.LocalMaskFn.LocalMaskTransformFnFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.core.io.ClassPathResource;
+
+@RunWith(JUnit4.class)
+public final class LocalMaskFnTest {
+
+  private static final String TEST_DETECTORS =
+      """
+      {
+        "detectors": [
+          { "name": "EMAIL_ADDRESS", "pattern": "[a-z]+@[a-z]+\\\\.com" },
+          { "name": "PHONE_NUMBER", "pattern": "\\\\d{3}-\\\\d{4}", "action": "REPLACE" },
+          { "name": "SSN", "pattern": "\\\\d{3}-\\\\d{2}-\\\\d{4}", "maskingCharacter": "#" }
+        ]
+      }
+      """;
+
+  @Test
+  public void deidentify_allDetectors_maskedAndReplaced() throws Exception {
+    var fn = new LocalMaskTransformFnFactory(DetectorConfig.fromJson(TEST_DETECTORS), 10);
+
+    var masked =
+        fn.createFn(Map.of())
+            .deidentify(
+                toCalls(
+                    List.of(
+                        "mail john@doe.com", "call 555-1234", "ssn 123-45-6789", "nothing here")));
+
+    assertThat(masked)
+        .containsExactly(
+            "mail ************", "call [PHONE_NUMBER]", "ssn ###########", "nothing here")
+        .inOrder();
+  }
+
+  @Test
+  public void deidentify_selectedInfoTypes_onlySelectedApplied() throws Exception {
+    var fn =
+        new LocalMaskTransformFnFactory(DetectorConfig.fromJson(TEST_DETECTORS), 10)
+            .createFn(Map.of(LocalMaskFn.INFO_TYPES_KEY, "phone_number"));
+
+    assertThat(fn.deidentify(toCalls(List.of("john@doe.com 555-1234"))))
+        .containsExactly("john@doe.com [PHONE_NUMBER]");
+  }
+
+  @Test
+  public void deidentify_largeBatch_chunkedInOrder() throws Exception {
+    var fn = new LocalMaskTransformFnFactory(DetectorConfig.fromJson(TEST_DETECTORS), 7);
+    var values =
+        IntStream.range(0, 1000)
+            .mapToObj(i -> "row" + i + " user@mail.com")
+            .collect(toImmutableList());
+
+    var masked = fn.createFn(Map.of()).deidentify(toCalls(values));
+
+    assertThat(masked)
+        .containsExactlyElementsIn(
+            IntStream.range(0, 1000).mapToObj(i -> "row" + i + " *************").toList())
+        .inOrder();
+  }
+
+  @Test
+  public void createFn_unknownInfoType_throwsIllegalArgumentException() {
+    var factory = new LocalMaskTransformFnFactory(DetectorConfig.fromJson(TEST_DETECTORS), 10);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> factory.createFn(Map.of(LocalMaskFn.INFO_TYPES_KEY, "IBAN")));
+  }
+
+  @Test
+  public void reidentify_throwsUnsupportedOperationException() {
+    var fn =
+        new LocalMaskTransformFnFactory(DetectorConfig.fromJson(TEST_DETECTORS), 10)
+            .createFn(Map.of());
+
+    assertThrows(
+        UnsupportedOperationException.class, () -> fn.reidentify(toCalls(List.of("*****"))));
+  }
+
+  @Test
+  public void defaultDetectors_sampleValues_masked() throws Exception {
+    var fn =
+        new LocalMaskTransformFnFactory(new ClassPathResource("localmask_detectors.json"), 100)
+            .createFn(Map.of());
+
+    assertThat(
+            fn.deidentify(
+                toCalls(
+                    List.of(
+                        "Contact john@doe.com or 555-123-4567",
+                        "server 10.0.0.12 is down",
+                        "no sensitive data"))))
+        .containsExactly(
+            "Contact ************ or ############",
+            "server [IP_ADDRESS] is down",
+            "no sensitive data")
+        .inOrder();
+  }
+
+  @Test
+  public void fromJson_invalidPattern_throwsIllegalArgumentException() {
+    var config =
+        DetectorConfig.fromJson(
+            "{\"detectors\": [{\"name\": \"BROKEN\", \"pattern\": \"(unclosed\"}]}");
+
+    assertThrows(IllegalArgumentException.class, () -> new LocalMaskTransformFnFactory(config, 10));
+  }
+
+  @Test
+  public void fromJson_capturingGroup_throwsIllegalArgumentException() {
+    var exception =
+        assertThrows(
+            IllegalArgumentException.class,
+            () ->
+                DetectorConfig.fromJson(
+                    "{\"detectors\": [{\"name\": \"GROUPED\", \"pattern\": \"(a|b)c\"}]}"));
+
+    assertThat(exception).hasMessageThat().contains("GROUPED");
+  }
+
+  @Test
+  public void fromJson_namedGroup_throwsIllegalArgumentException() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            DetectorConfig.fromJson(
+                "{\"detectors\": [{\"name\": \"NAMED\", \"pattern\": \"(?<id>\\\\d+)\"}]}"));
+  }
+
+  @Test
+  public void fromJson_backreference_throwsIllegalArgumentException() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            DetectorConfig.fromJson(
+                "{\"detectors\": [{\"name\": \"REPEATED\", \"pattern\": \"(?:x)\\\\1\"}]}"));
+  }
+
+  @Test
+  public void deidentify_nonCapturingGroups_eachDetectorApplied() throws Exception {
+    var config =
+        DetectorConfig.fromJson(
+            """
+            {"detectors": [
+              {"name": "FIRST", "pattern": "(?:ab)+", "action": "REPLACE"},
+              {"name": "SECOND", "pattern": "(?:cd)+", "action": "REPLACE"}
+            ]}
+            """);
+    var fn = new LocalMaskTransformFnFactory(config, 10).createFn(Map.of());
+
+    assertThat(fn.deidentify(toCalls(List.of("abab x cd")))).containsExactly("[FIRST] x [SECOND]");
+  }
+
+  private static List<List<Object>> toCalls(List<String> values) {
+    return values.stream().map(value -> List.<Object>of(value)).collect(toImmutableList());
+  }
+}
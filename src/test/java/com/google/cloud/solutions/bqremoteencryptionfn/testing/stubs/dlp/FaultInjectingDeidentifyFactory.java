@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture.ApiFutureFactory;
+import com.google.privacy.dlp.v2.ContentItem;
+import com.google.privacy.dlp.v2.DeidentifyContentRequest;
+import com.google.privacy.dlp.v2.DeidentifyContentResponse;
+import com.google.privacy.dlp.v2.Table;
+import com.google.privacy.dlp.v2.Value;
+import io.grpc.Status;
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Answers DeidentifyContent requests by prefixing each string value with {@link #VALUE_PREFIX},
+ * failing requests as per the current {@link Faults}, which can change while calls are running.
+ */
+public class FaultInjectingDeidentifyFactory
+    extends ApiFutureFactory<DeidentifyContentRequest, DeidentifyContentResponse> {
+
+  public static final String VALUE_PREFIX = "dlp:";
+
+  /**
+   * Faults injected in the requests.
+   *
+   * @param maxRows tables with more rows fail with "Retry with a smaller request", 0 for no limit
+   * @param quotaErrorRate fraction of the requests failing with RESOURCE_EXHAUSTED
+   * @param unavailableRate fraction of the requests failing with UNAVAILABLE
+   */
+  public record Faults(int maxRows, double quotaErrorRate, double unavailableRate)
+      implements Serializable {
+    public static final Faults NONE = new Faults(0, 0, 0);
+  }
+
+  private volatile Faults faults = Faults.NONE;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong injectedFaults = new AtomicLong();
+
+  public FaultInjectingDeidentifyFactory() {
+    super(DeidentifyContentRequest.class, DeidentifyContentResponse.class);
+  }
+
+  public void setFaults(Faults faults) {
+    this.faults = faults;
+  }
+
+  public long requests() {
+    return requests.get();
+  }
+
+  public long injectedFaults() {
+    return injectedFaults.get();
+  }
+
+  @Override
+  public BaseUnaryApiFuture<DeidentifyContentResponse> create(
+      DeidentifyContentRequest request, ApiCallContext context) {
+    requests.incrementAndGet();
+    var fault = injectedFault(request.getItem().getTable());
+    if (fault != null) {
+      injectedFaults.incrementAndGet();
+    }
+
+    return new BaseUnaryApiFuture<>() {
+      @Override
+      public DeidentifyContentResponse get() {
+        if (fault != null) {
+          throw fault;
+        }
+
+        return DeidentifyContentResponse.newBuilder()
+            .setItem(ContentItem.newBuilder().setTable(prefixValues(request.getItem().getTable())))
+            .build();
+      }
+    };
+  }
+
+  @Nullable
+  private ApiException injectedFault(Table table) {
+    var currentFaults = faults;
+
+    if (currentFaults.maxRows() > 0 && table.getRowsCount() > currentFaults.maxRows()) {
+      return apiException(
+          Status.Code.INVALID_ARGUMENT,
+          "Too many findings to de-identify. Retry with a smaller request.");
+    }
+
+    var random = ThreadLocalRandom.current().nextDouble();
+    if (random < currentFaults.quotaErrorRate()) {
+      return apiException(Status.Code.RESOURCE_EXHAUSTED, "Quota exceeded.");
+    }
+
+    if (random < currentFaults.quotaErrorRate() + currentFaults.unavailableRate()) {
+      return apiException(Status.Code.UNAVAILABLE, "The service is currently unavailable.");
+    }
+
+    return null;
+  }
+
+  private static ApiException apiException(Status.Code code, String message) {
+    return ApiExceptionFactory.createException(
+        new RuntimeException(message), GrpcStatusCode.of(code), /* retryable= */ false);
+  }
+
+  private static Table prefixValues(Table table) {
+    var prefixed = Table.newBuilder().addAllHeaders(table.getHeadersList());
+
+    for (var row : table.getRowsList()) {
+      var prefixedRow = prefixed.addRowsBuilder();
+      for (var value : row.getValuesList()) {
+        prefixedRow.addValues(
+            value.hasStringValue()
+                ? Value.newBuilder().setStringValue(VALUE_PREFIX + value.getStringValue())
+                : value.toBuilder());
+      }
+    }
+
+    return prefixed.build();
+  }
+}
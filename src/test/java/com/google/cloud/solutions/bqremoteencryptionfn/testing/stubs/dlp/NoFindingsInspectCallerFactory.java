@@ -0,0 +1,51 @@
+/*
+ * Copyright 2023 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.dlp;
+
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture;
+import com.google.cloud.solutions.bqremoteencryptionfn.testing.stubs.BaseUnaryApiFuture.ApiFutureFactory;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Inspects any content without findings, counting the requests. */
+public class NoFindingsInspectCallerFactory
+    extends ApiFutureFactory<InspectContentRequest, InspectContentResponse> {
+
+  private final AtomicInteger requestCount = new AtomicInteger();
+
+  public NoFindingsInspectCallerFactory() {
+    super(InspectContentRequest.class, InspectContentResponse.class);
+  }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  @Override
+  public BaseUnaryApiFuture<InspectContentResponse> create(
+      InspectContentRequest request, ApiCallContext context) {
+    requestCount.incrementAndGet();
+    return new BaseUnaryApiFuture<>() {
+      @Override
+      public InspectContentResponse get() {
+        return InspectContentResponse.getDefaultInstance();
+      }
+    };
+  }
+}
@@ -27,6 +27,8 @@ import com.google.privacy.dlp.v2.DeidentifyContentRequest;
 import com.google.privacy.dlp.v2.DeidentifyContentResponse;
 import com.google.privacy.dlp.v2.DeidentifyTemplate;
 import com.google.privacy.dlp.v2.GetDeidentifyTemplateRequest;
+import com.google.privacy.dlp.v2.InspectContentRequest;
+import com.google.privacy.dlp.v2.InspectContentResponse;
 import com.google.privacy.dlp.v2.ReidentifyContentRequest;
 import com.google.privacy.dlp.v2.ReidentifyContentResponse;
 import java.io.Serializable;
@@ -97,6 +99,12 @@ public class PatchyDlpStub extends DlpServiceStub implements Serializable {
         super::reidentifyContentCallable);
   }
 
+  @Override
+  public UnaryCallable<InspectContentRequest, InspectContentResponse> inspectContentCallable() {
+    return findCallable(
+        InspectContentRequest.class, InspectContentResponse.class, super::inspectContentCallable);
+  }
+
   @Override
   public UnaryCallable<GetDeidentifyTemplateRequest, DeidentifyTemplate>
       getDeidentifyTemplateCallable() {